@@ -0,0 +1,83 @@
+package com.project.fileserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+final class BenchmarkFixtures {
+
+	private static final String[] WORDS = { "bucket", "folder", "archive", "upload", "download", "metadata",
+			"session", "range", "checksum", "the", "of", "and", "to", "in", "2021-06-01T12:00:00Z", "{", "}", ":",
+			"\"id\"", "\"size\"", "0", "1", "42", "1024", "\n" };
+
+	private BenchmarkFixtures() {
+	}
+
+	// the same defaults the application would inject
+	static CommonServiceUtils commonService(Path temppath) {
+		CommonServiceUtils commonService = new CommonServiceUtils();
+		ReflectionTestUtils.setField(commonService, "temppath", temppath.toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "level", 1);
+		ReflectionTestUtils.setField(commonService, "metrics", metrics());
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		return commonService;
+	}
+
+	static FileserverMetrics metrics() {
+		return new FileserverMetrics(new SimpleMeterRegistry());
+	}
+
+	// text compresses roughly like logs and json, random like media and archives
+	static byte[] content(int size, boolean text, Random random) {
+		byte[] bytes = new byte[size];
+		if (!text) {
+			random.nextBytes(bytes);
+			return bytes;
+		}
+		int position = 0;
+		while (position < size) {
+			byte[] word = (WORDS[random.nextInt(WORDS.length)] + " ").getBytes(StandardCharsets.US_ASCII);
+			int length = Math.min(word.length, size - position);
+			System.arraycopy(word, 0, bytes, position, length);
+			position += length;
+		}
+		return bytes;
+	}
+
+	static List<Path> writeFiles(Path folder, Distribution distribution, boolean text) throws IOException {
+		Files.createDirectories(folder);
+		Random random = new Random(distribution.ordinal());
+		List<Path> files = new ArrayList<>();
+		int[] sizes = distribution.getSizes();
+		for (int index = 0; index < sizes.length; index++) {
+			Path file = folder.resolve(String.format("file%04d.%s", index, text ? "txt" : "bin"));
+			files.add(Files.write(file, content(sizes[index], text, random)));
+		}
+		return files;
+	}
+
+	static void delete(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(entry -> entry.toFile().delete());
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.project.fileserver.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.IoThrottle;
+
+// zip and unzip paths used by multi-file downloads, archival and rehydration
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "SMALL", "MIXED", "LARGE" })
+	private Distribution distribution;
+
+	@Param({ "true", "false" })
+	private boolean text;
+
+	private Path root;
+	private Path folder;
+	private Path archive;
+	private Path target;
+	private List<Resource> resources;
+	private CommonServiceUtils commonService;
+	private int invocation;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("fileserver-compression");
+		commonService = BenchmarkFixtures.commonService(root.resolve("temp"));
+		folder = root.resolve("folder");
+		resources = new ArrayList<>();
+		for (Path file : BenchmarkFixtures.writeFiles(folder, distribution, text)) {
+			resources.add(new FileSystemResource(file));
+		}
+		archive = root.resolve("folder.zip");
+		commonService.zipDirectory(folder, archive);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkFixtures.delete(root);
+	}
+
+	// extracted folders would otherwise fill the disk over a long run
+	@TearDown(Level.Invocation)
+	public void clean() throws IOException {
+		if (target != null) {
+			BenchmarkFixtures.delete(target);
+			target = null;
+		}
+	}
+
+	@Benchmark
+	public long zipFiles() throws IOException {
+		return commonService.zipFiles(resources, OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public long zipDirectory() throws IOException {
+		Path zip = root.resolve("directory.zip");
+		commonService.zipDirectory(folder, zip, Deflater.DEFAULT_COMPRESSION, Collections.emptySet(),
+				new IoThrottle(0));
+		return Files.size(zip);
+	}
+
+	@Benchmark
+	public Path unzip() throws IOException {
+		target = root.resolve("unzipped" + invocation++);
+		commonService.unzip(archive, target);
+		return target;
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.project.fileserver.benchmarks;
+
+import java.util.Arrays;
+
+// file sets the storage benchmarks run against
+public enum Distribution {
+
+	// many small files, where per entry overhead dominates
+	SMALL(256, 4 * 1024),
+	// sizes doubling from 1 KiB to 1 MiB, a few of each
+	MIXED(0, 0),
+	// a handful of large files, where raw throughput dominates
+	LARGE(4, 8 * 1024 * 1024);
+
+	private final int count;
+	private final int size;
+
+	Distribution(int count, int size) {
+		this.count = count;
+		this.size = size;
+	}
+
+	int[] getSizes() {
+		if (this != MIXED) {
+			int[] sizes = new int[count];
+			Arrays.fill(sizes, size);
+			return sizes;
+		}
+		int[] sizes = new int[44];
+		for (int index = 0; index < sizes.length; index++) {
+			sizes[index] = 1024 << (index % 11);
+		}
+		return sizes;
+	}
+
+}
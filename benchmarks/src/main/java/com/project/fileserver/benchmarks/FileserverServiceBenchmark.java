@@ -0,0 +1,117 @@
+package com.project.fileserver.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.Resource;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.AccessTrackerService;
+import com.project.fileserver.service.BlobStoreService;
+import com.project.fileserver.service.ChecksumService;
+import com.project.fileserver.service.FileCacheService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
+import com.project.fileserver.service.impl.LocalFileserverService;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.StoragePathResolver;
+
+// upload and download through the local storage service, without http
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileserverServiceBenchmark {
+
+	private static final String BUCKET = "benchmark";
+	private static final String FILENAME = "file.bin";
+
+	@Param({ "4096", "1048576" })
+	private int size;
+
+	@Param({ "true", "false" })
+	private boolean cache;
+
+	@Param({ "false", "true" })
+	private boolean dedup;
+
+	@Param({ "0", "2" })
+	private int levels;
+
+	private Path root;
+	private byte[] content;
+	private PackStoreService packStore;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private LocalFileserverService fileserverService;
+	private RequiredObject folder;
+	private String filenames;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		root = Files.createTempDirectory("fileserver-service");
+		StoragePathResolver paths = new StoragePathResolver(root.resolve("files").toString(),
+				root.resolve("archives").toString(), levels);
+		packStore = new PackStoreService(root.resolve("archives").resolve(".packs").toString(), true, 262144,
+				268435456, 0.5);
+		metadataIndex = new MetadataIndexService(paths, packStore,
+				root.resolve("metadata").resolve("index.mv.db").toString(), false);
+		accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 10, 100000);
+		BlobStoreService blobStore = new BlobStoreService(dedup, root.resolve("blobs").toString(), 262144);
+		FolderLockManager folderLocks = new FolderLockManager();
+		fileserverService = new LocalFileserverService(0, 60, 100000, true, paths,
+				BenchmarkFixtures.commonService(root.resolve("temp")), folderLocks, metadataIndex, accessTracker,
+				new FileCacheService(folderLocks, cache, 64 * 1024 * 1024, 2 * 1024 * 1024, 32 * 1024 * 1024),
+				blobStore, new ChecksumService(blobStore, true, 10000), packStore, BenchmarkFixtures.metrics());
+		folder = new RequiredObject(BUCKET, null);
+		folder.setFolderid(fileserverService.generateFolderUniqueId(folder, "bench"));
+		content = BenchmarkFixtures.content(size, false, new Random(size));
+		filenames = String.format("[\"%s\"]", FILENAME);
+		fileserverService.uploadFile(folder, FILENAME, new ByteArrayInputStream(content), true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		accessTracker.close();
+		metadataIndex.close();
+		packStore.close();
+		BenchmarkFixtures.delete(root);
+	}
+
+	// replaces the same file so the folder does not grow with the run
+	@Benchmark
+	public long upload() throws Exception {
+		return fileserverService.uploadFile(folder, FILENAME, new ByteArrayInputStream(content), true);
+	}
+
+	@Benchmark
+	public long download() throws Exception {
+		List<Resource> resources = fileserverService.getFiles(folder, filenames);
+		try (InputStream in = resources.get(0).getInputStream()) {
+			return in.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+
+}
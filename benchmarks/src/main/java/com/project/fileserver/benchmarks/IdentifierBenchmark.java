@@ -0,0 +1,73 @@
+package com.project.fileserver.benchmarks;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonArray;
+import com.project.fileserver.utils.CommonServiceUtils;
+
+// per request string handling: bucket names, generated ids and filename lists
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierBenchmark {
+
+	private CommonServiceUtils commonService;
+
+	@Setup
+	public void setUp() {
+		Path temppath = Paths.get(System.getProperty("java.io.tmpdir"), "fileserver-identifier");
+		commonService = BenchmarkFixtures.commonService(temppath);
+	}
+
+	@Benchmark
+	public String refactorBucketName() {
+		return commonService.refactorBucketName("Customer-Uploads_2021");
+	}
+
+	@Benchmark
+	public String generateUniqueId() {
+		return commonService.generateUniqueId("Invoice");
+	}
+
+	@Benchmark
+	public JsonArray getFilenameList(FilenameList list) {
+		return commonService.getFilenameList(list.json);
+	}
+
+	@State(Scope.Benchmark)
+	public static class FilenameList {
+
+		@Param({ "1", "100" })
+		private int filenames;
+
+		private String json;
+
+		@Setup
+		public void setUp() {
+			StringBuilder builder = new StringBuilder("[");
+			for (int index = 0; index < filenames; index++) {
+				builder.append(index == 0 ? "" : ",").append(String.format("\"report-%04d.pdf\"", index));
+			}
+			json = builder.append("]").toString();
+		}
+
+	}
+
+}
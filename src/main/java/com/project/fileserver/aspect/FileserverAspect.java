@@ -1,5 +1,7 @@
 package com.project.fileserver.aspect;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -7,34 +9,52 @@ import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
 import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.AsyncTransferUtils;
 import com.project.fileserver.utils.CommonServiceUtils;
-
-import lombok.extern.log4j.Log4j2;
+import com.project.fileserver.utils.FileserverMetrics;
 
 @Component
 @Aspect
-@Log4j2
 public class FileserverAspect {
 
 	@Autowired
 	private CommonServiceUtils commonService;
 
+	@Autowired
+	private FileserverMetrics metrics;
+
+	@Autowired
+	private AsyncTransferUtils asyncTransfer;
+
 	@Before(value = "execution(* com.project.fileserver.service.FileserverService.*(com.project.fileserver.model.RequiredObject,..)) and args(requiredObject,..)", argNames = "requiredObject")
 	public void refactorBucketName(JoinPoint joinPoint, RequiredObject requiredObject) {
 		requiredObject.setBucket(commonService.refactorBucketName(requiredObject.getBucket()));
 	}
 
-	@Around("execution(* com.project.fileserver..*(..)) && !within(com.project.fileserver.aspect.*)")
-	public Object logAppender(ProceedingJoinPoint joinPoint) throws Throwable {
-		String methodname = joinPoint.getSignature().toShortString();
-		long start = System.currentTimeMillis();
-		log.debug("{} starting...", methodname);
-		Object obj = joinPoint.proceed();
-		long end = System.currentTimeMillis();
-		log.debug("{} finished in {} ms", methodname, end - start);
-		return obj;
+	// request latency is left to http.server.requests; only the requests in
+	// progress are counted here, until their response is sent, also when a
+	// transfer goes on after the handler returned
+	@Around("within(com.project.fileserver.controller..*)")
+	public Object countRequest(ProceedingJoinPoint joinPoint) throws Throwable {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		HttpServletRequest request = attributes instanceof ServletRequestAttributes
+				? ((ServletRequestAttributes) attributes).getRequest()
+				: null;
+		metrics.requestStarted();
+		try {
+			return joinPoint.proceed();
+		} finally {
+			if (request == null) {
+				metrics.requestFinished();
+			} else {
+				asyncTransfer.closeWhenDone(metrics::requestFinished, request);
+			}
+		}
 	}
 
 }
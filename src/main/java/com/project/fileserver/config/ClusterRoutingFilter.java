@@ -0,0 +1,164 @@
+package com.project.fileserver.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import com.project.fileserver.service.ClusterService;
+
+import lombok.extern.log4j.Log4j2;
+
+// sends requests for buckets owned by another node to that node, either as a
+// redirect or by passing them through; requests for an upload session or a
+// deletion job go to the node that started it. Runs before the multipart
+// resolver so the body is streamed on untouched. The cluster endpoints are
+// not routed, ClusterController checks the signature of those only nodes
+// may call
+@Component
+@Log4j2
+public class ClusterRoutingFilter extends OncePerRequestFilter {
+
+	private static final String API_PATH = "/api/";
+	private static final List<String> LOCAL_PATHS = List.of("/api/cluster", "/api/admin", "/api/cache");
+	private static final List<String> ID_PATHS = List.of("/api/upload/sessions/", "/api/delete/jobs/");
+	// hop-by-hop headers, the ones the client sets itself and the ones only
+	// a node may set
+	private static final Set<String> SKIPPED_HEADERS = Set.of("connection", "keep-alive", "transfer-encoding", "te",
+			"trailer", "upgrade", "host", "content-length", "expect", "date", "from", "via", "warning",
+			ClusterService.NODE_HEADER.toLowerCase(), ClusterService.SIGNATURE_HEADER.toLowerCase());
+
+	private ClusterService cluster;
+
+	public ClusterRoutingFilter(ClusterService cluster) {
+		this.cluster = cluster;
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		if (!cluster.isEnabled()) {
+			return true;
+		}
+		String path = getPath(request);
+		return !path.startsWith(API_PATH) || LOCAL_PATHS.stream().anyMatch(path::startsWith);
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String node = request.getHeader(ClusterService.NODE_HEADER);
+		if (node != null) {
+			if (cluster.isSignedByPeer(request)) {
+				chain.doFilter(request, response);
+			} else {
+				log.error("Rejected a request claiming to come from node {}", node);
+				response.sendError(HttpStatus.FORBIDDEN.value());
+			}
+			return;
+		}
+		String owner = getOwner(request);
+		if (owner == null || owner.equals(cluster.getSelf())) {
+			chain.doFilter(request, response);
+		} else if (cluster.isForwarding()) {
+			forward(request, response, owner);
+		} else {
+			response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+			response.setHeader(HttpHeaders.LOCATION, cluster.getUrl(owner, cluster.getTarget(request)));
+		}
+	}
+
+	private String getOwner(HttpServletRequest request) {
+		String path = getPath(request);
+		for (String prefix : ID_PATHS) {
+			if (path.startsWith(prefix)) {
+				return cluster.getIdOwner(path.substring(prefix.length()).split("/", 2)[0]);
+			}
+		}
+		// the bucket is taken from the query string only, request parameters
+		// would read a form or multipart body
+		String bucket = getBucket(request.getQueryString());
+		return bucket == null ? null : cluster.getOwner(bucket);
+	}
+
+	private void forward(HttpServletRequest request, HttpServletResponse response, String owner)
+			throws IOException {
+		long length = request.getContentLengthLong();
+		BodyPublisher body = BodyPublishers.noBody();
+		if (length > 0 || request.getHeader(HttpHeaders.TRANSFER_ENCODING) != null) {
+			BodyPublisher stream = BodyPublishers.ofInputStream(() -> getInputStream(request));
+			body = length > 0 ? BodyPublishers.fromPublisher(stream, length) : stream;
+		}
+		HttpRequest.Builder builder = cluster.newRequest(owner, request.getMethod(), cluster.getTarget(request),
+				body);
+		for (String name : Collections.list(request.getHeaderNames())) {
+			if (!SKIPPED_HEADERS.contains(name.toLowerCase())) {
+				for (String value : Collections.list(request.getHeaders(name))) {
+					builder.header(name, value);
+				}
+			}
+		}
+		HttpResponse<InputStream> upstream;
+		try {
+			upstream = cluster.getClient().send(builder.build(), BodyHandlers.ofInputStream());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		} catch (IOException e) {
+			log.error("Forwarding to {} failed: {}", owner, e.getMessage());
+			response.sendError(HttpStatus.BAD_GATEWAY.value());
+			return;
+		}
+		response.setStatus(upstream.statusCode());
+		upstream.headers().map().forEach((name, values) -> {
+			if (!name.startsWith(":") && !SKIPPED_HEADERS.contains(name.toLowerCase())
+					|| HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+				values.forEach(value -> response.addHeader(name, value));
+			}
+		});
+		try (InputStream in = upstream.body()) {
+			in.transferTo(response.getOutputStream());
+		}
+	}
+
+	private InputStream getInputStream(HttpServletRequest request) {
+		try {
+			return request.getInputStream();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private String getPath(HttpServletRequest request) {
+		return request.getRequestURI().substring(request.getContextPath().length());
+	}
+
+	private String getBucket(String query) {
+		if (query == null) {
+			return null;
+		}
+		String bucket = UriComponentsBuilder.newInstance().query(query).build().getQueryParams().getFirst("bucket");
+		return bucket == null || bucket.isEmpty() ? null : URLDecoder.decode(bucket, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.project.fileserver.config;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+
+import com.project.fileserver.service.FileserverService;
+import com.project.fileserver.service.impl.CachingFileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+
+@Configuration
+public class FileserverConfiguration {
+
+	public static final String STREAMING_UPLOAD_PATH = "/api/upload/stream";
+
+	@Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+	public MultipartResolver multipartResolver(MultipartProperties multipartProperties) {
+		// streaming uploads parse the body themselves and must not be spooled by
+		// the container
+		StandardServletMultipartResolver resolver = new StandardServletMultipartResolver() {
+			@Override
+			public boolean isMultipart(HttpServletRequest request) {
+				return !request.getRequestURI().startsWith(request.getContextPath() + STREAMING_UPLOAD_PATH)
+						&& super.isMultipart(request);
+			}
+		};
+		resolver.setResolveLazily(multipartProperties.isResolveLazily());
+		return resolver;
+	}
+
+	// storage backends named in cache.disk.backends are served through a local
+	// disk cache; everything that looks a backend up by its name gets the
+	// cached one
+	@Bean
+	public static BeanPostProcessor diskCachePostProcessor(Environment environment, BeanFactory beanFactory) {
+		List<String> backends = Arrays.asList(environment.getProperty("cache.disk.backends", String[].class,
+				new String[0]));
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				if (!(bean instanceof FileserverService) || !backends.contains(beanName)) {
+					return bean;
+				}
+				try {
+					return new CachingFileserverService((FileserverService) bean,
+							beanFactory.getBean(CommonServiceUtils.class),
+							Paths.get(environment.getProperty("cache.disk.path", "/fileserver/diskcache"), beanName),
+							environment.getProperty("cache.disk.maxsize", Long.class, 10737418240L),
+							"write-back".equals(environment.getProperty("cache.disk.mode", "write-through")),
+							environment.getProperty("cache.disk.retry", Long.class, 30L),
+							environment.getProperty("cache.disk.grace", Long.class, 60L));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.project.fileserver.controller;
+
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.project.fileserver.executors.LifecycleScheduler;
+import com.project.fileserver.model.ClusterStatus;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.ClusterService;
+
+import lombok.extern.log4j.Log4j2;
+
+@RestController
+@RequestMapping("/api/cluster")
+@Log4j2
+public class ClusterController {
+
+	private ClusterService cluster;
+	private LifecycleScheduler lifecycleScheduler;
+
+	public ClusterController(ClusterService cluster, LifecycleScheduler lifecycleScheduler) {
+		this.cluster = cluster;
+		this.lifecycleScheduler = lifecycleScheduler;
+	}
+
+	@GetMapping(produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<ClusterStatus> getStatus() {
+		return new ResponseEntity<>(cluster.getStatus(), HttpStatus.OK);
+	}
+
+	// new members take effect at once and folders that moved to another node
+	// are handed over by a rebalance pass; the request has to be signed with
+	// the cluster secret in the name of a member, as nodes sign theirs
+	@PutMapping(value = "/nodes", consumes = { MediaType.APPLICATION_JSON_VALUE }, produces = {
+			MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<ClusterStatus> setNodes(@RequestBody Map<String, String> nodes,
+			HttpServletRequest request) {
+		if (!cluster.isEnabled()) {
+			return new ResponseEntity<>(HttpStatus.CONFLICT);
+		}
+		if (!cluster.isSignedByPeer(request)) {
+			log.error("Rejected an unsigned change of the cluster members");
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+		try {
+			cluster.setNodes(nodes);
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		lifecycleScheduler.trigger("rebalance");
+		return new ResponseEntity<>(cluster.getStatus(), HttpStatus.OK);
+	}
+
+	// receives a folder handed over by another node
+	@PutMapping(value = "/folders", produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<Integer> receive(@RequestParam(name = "bucket", required = true) String bucket,
+			@RequestParam(name = "id", required = true) String id, HttpServletRequest request) {
+		if (!cluster.isSignedByPeer(request)) {
+			log.error("Rejected an unsigned folder handover for {}/{}", bucket, id);
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+		try {
+			return new ResponseEntity<>(cluster.receive(new RequiredObject(bucket, id), request.getInputStream()),
+					HttpStatus.OK);
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.project.fileserver.controller;
+
+import java.nio.file.NoSuchFileException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.project.fileserver.model.DeletionStatus;
+import com.project.fileserver.service.DeletionJobService;
+
+import lombok.extern.log4j.Log4j2;
+
+@RestController
+@RequestMapping("/api/delete")
+@Log4j2
+public class DeletionJobController {
+
+	private DeletionJobService deletionJobService;
+
+	public DeletionJobController(DeletionJobService deletionJobService) {
+		this.deletionJobService = deletionJobService;
+	}
+
+	@PostMapping(value = "/folders", produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<DeletionStatus> deleteFolders(@RequestParam(name = "bucket", required = true) String bucket,
+			@RequestBody String folderids) {
+		try {
+			return new ResponseEntity<>(deletionJobService.submit(bucket, folderids), HttpStatus.ACCEPTED);
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@GetMapping(value = "/jobs/{job}", produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<DeletionStatus> getStatus(@PathVariable("job") String job) {
+		try {
+			return new ResponseEntity<>(deletionJobService.getStatus(job), HttpStatus.OK);
+		} catch (NoSuchFileException ex) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+}
@@ -1,16 +1,24 @@
 package com.project.fileserver.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -19,9 +27,22 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import com.google.gson.JsonArray;
+import com.project.fileserver.model.CacheStatistics;
+import com.project.fileserver.model.ManifestEntry;
 import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.FileCacheService;
 import com.project.fileserver.service.FileserverService;
+import com.project.fileserver.service.ManifestDownloadService;
+import com.project.fileserver.utils.AsyncTransferUtils;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileTransferUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.MultipartStream;
 
 import lombok.extern.log4j.Log4j2;
 
@@ -31,9 +52,35 @@ import lombok.extern.log4j.Log4j2;
 public class FileserverController {
 
 	private FileserverService fileserverService;
+	private CommonServiceUtils commonService;
+	private FileTransferUtils fileTransfer;
+	private AsyncTransferUtils asyncTransfer;
+	private FolderLockManager folderLocks;
+	private FileCacheService fileCache;
+	private FileserverMetrics metrics;
+	private ManifestDownloadService manifestDownload;
+	private boolean streaming;
+	private int uploadBuffersize;
+	private long maxpartsize;
 
-	public FileserverController(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active) {
+	public FileserverController(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active,
+			CommonServiceUtils commonService, FileTransferUtils fileTransfer, AsyncTransferUtils asyncTransfer,
+			FolderLockManager folderLocks, FileCacheService fileCache, FileserverMetrics metrics,
+			ManifestDownloadService manifestDownload,
+			@Value("${download.streaming:true}") boolean streaming,
+			@Value("${upload.buffersize:262144}") int uploadBuffersize,
+			@Value("${upload.maxpartsize:-1}") long maxpartsize) {
 		this.fileserverService = beanFactory.getBean(active, FileserverService.class);
+		this.commonService = commonService;
+		this.fileTransfer = fileTransfer;
+		this.asyncTransfer = asyncTransfer;
+		this.folderLocks = folderLocks;
+		this.fileCache = fileCache;
+		this.metrics = metrics;
+		this.manifestDownload = manifestDownload;
+		this.streaming = streaming;
+		this.uploadBuffersize = uploadBuffersize;
+		this.maxpartsize = maxpartsize;
 	}
 
 	@GetMapping("/generateId")
@@ -48,6 +95,11 @@ public class FileserverController {
 		}
 	}
 
+	@GetMapping("/cache/stats")
+	public ResponseEntity<CacheStatistics> getCacheStatistics() {
+		return new ResponseEntity<>(fileCache.getStatistics(), HttpStatus.OK);
+	}
+
 	@PostMapping(value = "/upload/files", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE }, produces = {
 			MediaType.APPLICATION_JSON_VALUE })
 	public ResponseEntity<Boolean> uploadFile(@RequestParam(name = "bucket", required = true) String bucket,
@@ -63,18 +115,140 @@ public class FileserverController {
 		}
 	}
 
+	@PostMapping(value = "/upload/stream", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE }, produces = {
+			MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<Boolean> uploadStream(HttpServletRequest request) {
+		// request parameters are read from the query string only, asking the
+		// container for them would make it spool the whole multipart body
+		MultiValueMap<String, String> params = UriComponentsBuilder.newInstance().query(request.getQueryString())
+				.build().getQueryParams();
+		String bucket = decode(params.getFirst("bucket"));
+		String id = decode(params.getFirst("id"));
+		boolean replace = Boolean.parseBoolean(decode(params.getFirst("replace")));
+		String boundary = MultipartStream.getBoundary(request.getContentType());
+		if (bucket == null || id == null || boundary == null) {
+			return new ResponseEntity<>(false, HttpStatus.BAD_REQUEST);
+		}
+		try {
+			MultipartStream multipart = new MultipartStream(request.getInputStream(), boundary, uploadBuffersize,
+					maxpartsize);
+			RequiredObject requiredObject = new RequiredObject(bucket, id);
+			MultipartStream.Part part;
+			while ((part = multipart.nextPart()) != null) {
+				String filename = part.getFilename();
+				if (filename != null) {
+					fileserverService.uploadFile(requiredObject, filename, part.getInputStream(), replace);
+				}
+			}
+			return new ResponseEntity<>(true, HttpStatus.OK);
+		} catch (MultipartStream.SizeLimitExceededException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(false, HttpStatus.PAYLOAD_TOO_LARGE);
+		} catch (FileAlreadyExistsException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(false, HttpStatus.CONFLICT);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(false, HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
 	@PostMapping("/download/files")
-	public ResponseEntity<Resource> downloadFiles(@RequestParam(name = "bucket", required = true) String bucket,
-			@RequestParam(name = "id", required = true) String id, @RequestBody String filenames) {
+	public void downloadFiles(@RequestParam(name = "bucket", required = true) String bucket,
+			@RequestParam(name = "id", required = true) String id, @RequestBody String filenames,
+			HttpServletRequest request, HttpServletResponse response) {
 		try {
-			File file = fileserverService.downloadFiles(new RequiredObject(bucket, id), filenames);
-			HttpHeaders responseHeaders = new HttpHeaders();
-			responseHeaders.set("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
-			return new ResponseEntity<>(new InputStreamResource(new FileInputStream(file)), responseHeaders,
-					HttpStatus.OK);
+			RequiredObject requiredObject = new RequiredObject(bucket, id);
+			if (streaming) {
+				// held until the files are sent, so their folder is not archived or
+				// deleted while they stream
+				FolderLock lease = lease(requiredObject);
+				try {
+					List<Resource> files = fileserverService.getFiles(requiredObject, filenames);
+					if (files.isEmpty()) {
+						response.setStatus(HttpStatus.NOT_FOUND.value());
+						return;
+					}
+					for (Resource entry : files) {
+						if (!entry.exists()) {
+							throw new FileNotFoundException(entry.getDescription());
+						}
+					}
+					if (files.size() > 1) {
+						response.setContentType("application/zip");
+						response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\"");
+						metrics.recordDownload(commonService.zipFiles(files, response.getOutputStream()));
+						return;
+					}
+					fileTransfer.transfer(files.get(0), null, requiredObject, request, response);
+				} finally {
+					asyncTransfer.closeWhenDone(lease, request);
+				}
+			} else {
+				File file = fileserverService.downloadFiles(requiredObject, filenames);
+				fileTransfer.transfer(new FileSystemResource(file), request, response);
+			}
 		} catch (Exception ex) {
 			log.error(ex.getMessage(), ex);
-			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+			}
+		}
+	}
+
+	@PostMapping(value = "/download/manifest", consumes = { MediaType.APPLICATION_JSON_VALUE })
+	public void downloadManifest(@RequestBody String manifest, HttpServletResponse response) {
+		try {
+			List<ManifestEntry> entries = manifestDownload.parse(manifest);
+			response.setContentType("application/zip");
+			response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"files.zip\"");
+			metrics.recordDownload(manifestDownload.write(entries, response.getOutputStream()));
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+			response.setStatus(HttpStatus.BAD_REQUEST.value());
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+			} else {
+				// the zip has been left unfinished; failing the request drops the
+				// connection, so the client does not take the body for complete
+				throw new IllegalStateException("Manifest download aborted", ex);
+			}
+		}
+	}
+
+	@GetMapping("/download/file")
+	public void downloadFile(@RequestParam(name = "bucket", required = true) String bucket,
+			@RequestParam(name = "id", required = true) String id,
+			@RequestParam(name = "filename", required = true) String filename, HttpServletRequest request,
+			HttpServletResponse response) {
+		try {
+			JsonArray filenames = new JsonArray();
+			filenames.add(filename);
+			RequiredObject requiredObject = new RequiredObject(bucket, id);
+			FolderLock lease = lease(requiredObject);
+			try {
+				// looked up before the content, a file replaced in between is sent
+				// with the older etag and revalidated on the next request
+				String checksum = fileserverService.getChecksum(requiredObject, filename);
+				List<Resource> files = fileserverService.getFiles(requiredObject, filenames.toString());
+				if (files.isEmpty() || !files.get(0).exists()) {
+					response.setStatus(HttpStatus.NOT_FOUND.value());
+					return;
+				}
+				fileTransfer.transfer(files.get(0), checksum, requiredObject, request, response);
+			} finally {
+				asyncTransfer.closeWhenDone(lease, request);
+			}
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+			}
 		}
 	}
 
@@ -90,4 +264,14 @@ public class FileserverController {
 		}
 	}
 
+	// held on the folder under the name it is stored and locked with
+	private FolderLock lease(RequiredObject requiredObject) {
+		return folderLocks.lease(new RequiredObject(commonService.refactorBucketName(requiredObject.getBucket()),
+				requiredObject.getFolderid()));
+	}
+
+	private String decode(String value) {
+		return value == null ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+	}
+
 }
@@ -0,0 +1,72 @@
+package com.project.fileserver.controller;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.project.fileserver.executors.LifecycleScheduler;
+import com.project.fileserver.model.LifecycleStatus;
+
+@RestController
+@RequestMapping("/api/admin/lifecycle")
+public class LifecycleController {
+
+	private LifecycleScheduler lifecycleScheduler;
+
+	public LifecycleController(LifecycleScheduler lifecycleScheduler) {
+		this.lifecycleScheduler = lifecycleScheduler;
+	}
+
+	@GetMapping(produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<List<LifecycleStatus>> getStatus() {
+		return new ResponseEntity<>(lifecycleScheduler.getStatus(), HttpStatus.OK);
+	}
+
+	@GetMapping(value = "/{job}", produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<LifecycleStatus> getStatus(@PathVariable("job") String job) {
+		try {
+			return new ResponseEntity<>(lifecycleScheduler.getStatus(job), HttpStatus.OK);
+		} catch (NoSuchElementException ex) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@PostMapping("/{job}/run")
+	public ResponseEntity<Boolean> trigger(@PathVariable("job") String job) {
+		try {
+			boolean result = lifecycleScheduler.trigger(job);
+			return new ResponseEntity<>(result, result ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT);
+		} catch (NoSuchElementException ex) {
+			return new ResponseEntity<>(false, HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@PostMapping("/{job}/pause")
+	public ResponseEntity<Boolean> pause(@PathVariable("job") String job) {
+		try {
+			lifecycleScheduler.pause(job);
+			return new ResponseEntity<>(true, HttpStatus.OK);
+		} catch (NoSuchElementException ex) {
+			return new ResponseEntity<>(false, HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@PostMapping("/{job}/resume")
+	public ResponseEntity<Boolean> resume(@PathVariable("job") String job) {
+		try {
+			lifecycleScheduler.resume(job);
+			return new ResponseEntity<>(true, HttpStatus.OK);
+		} catch (NoSuchElementException ex) {
+			return new ResponseEntity<>(false, HttpStatus.NOT_FOUND);
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.project.fileserver.controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.model.UploadSession;
+import com.project.fileserver.model.UploadStatus;
+import com.project.fileserver.service.UploadSessionService;
+import com.project.fileserver.utils.AsyncTransferUtils;
+
+import lombok.extern.log4j.Log4j2;
+
+@RestController
+@RequestMapping("/api/upload/sessions")
+@Log4j2
+public class UploadSessionController {
+
+	private UploadSessionService uploadSessionService;
+	private AsyncTransferUtils asyncTransfer;
+
+	public UploadSessionController(UploadSessionService uploadSessionService, AsyncTransferUtils asyncTransfer) {
+		this.uploadSessionService = uploadSessionService;
+		this.asyncTransfer = asyncTransfer;
+	}
+
+	@PostMapping
+	public ResponseEntity<String> initiate(@RequestParam(name = "bucket", required = true) String bucket,
+			@RequestParam(name = "id", required = true) String id,
+			@RequestParam(name = "filename", required = true) String filename,
+			@RequestParam(name = "size", required = true) long size,
+			@RequestParam(name = "replace", required = false, defaultValue = "false") boolean replace) {
+		try {
+			UploadSession session = uploadSessionService.initiate(new RequiredObject(bucket, id), filename, size,
+					replace);
+			return new ResponseEntity<>(session.getSession(), HttpStatus.OK);
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@PutMapping(value = "/{session}", consumes = { MediaType.APPLICATION_OCTET_STREAM_VALUE }, produces = {
+			MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<UploadStatus> writeChunk(@PathVariable("session") String session,
+			@RequestParam(name = "offset", required = true) long offset, HttpServletRequest request,
+			HttpServletResponse response) {
+		try {
+			if (asyncTransfer.isEnabled()) {
+				long limit = uploadSessionService.checkChunk(session, offset, request.getContentLengthLong());
+				asyncTransfer.read(limit, new AsyncTransferUtils.BodyConsumer() {
+					@Override
+					public void accept(ByteBuffer buffer, long position) throws IOException {
+						uploadSessionService.writeChunk(session, offset + position, buffer);
+					}
+
+					@Override
+					public Object complete() throws IOException {
+						return uploadSessionService.finishChunk(session);
+					}
+				}, request, response);
+				return null;
+			}
+			UploadStatus status = uploadSessionService.writeChunk(session, offset, request.getContentLengthLong(),
+					request.getInputStream());
+			return new ResponseEntity<>(status, HttpStatus.OK);
+		} catch (NoSuchFileException ex) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@GetMapping(value = "/{session}", produces = { MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<UploadStatus> getStatus(@PathVariable("session") String session) {
+		try {
+			return new ResponseEntity<>(uploadSessionService.getStatus(session), HttpStatus.OK);
+		} catch (NoSuchFileException ex) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@PostMapping("/{session}/complete")
+	public ResponseEntity<Boolean> complete(@PathVariable("session") String session) {
+		try {
+			boolean result = uploadSessionService.complete(session);
+			return new ResponseEntity<>(result, result ? HttpStatus.OK : HttpStatus.CONFLICT);
+		} catch (NoSuchFileException ex) {
+			return new ResponseEntity<>(false, HttpStatus.NOT_FOUND);
+		} catch (FileAlreadyExistsException ex) {
+			log.error(ex.getMessage());
+			return new ResponseEntity<>(false, HttpStatus.CONFLICT);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(false, HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	@DeleteMapping("/{session}")
+	public ResponseEntity<Boolean> abort(@PathVariable("session") String session) {
+		try {
+			uploadSessionService.abort(session);
+			return new ResponseEntity<>(true, HttpStatus.OK);
+		} catch (NoSuchFileException ex) {
+			return new ResponseEntity<>(false, HttpStatus.NOT_FOUND);
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return new ResponseEntity<>(false, HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+}
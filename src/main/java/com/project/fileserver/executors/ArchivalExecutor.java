@@ -3,17 +3,46 @@ package com.project.fileserver.executors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
+import javax.annotation.PreDestroy;
+
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.project.fileserver.model.FileChecksum;
+import com.project.fileserver.model.FolderMetadata;
+import com.project.fileserver.model.FolderMetadata.State;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.AccessTrackerService;
+import com.project.fileserver.service.BlobStoreService;
+import com.project.fileserver.service.ChecksumService;
+import com.project.fileserver.service.ClusterService;
+import com.project.fileserver.service.FileCacheService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
 import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.IoThrottle;
+import com.project.fileserver.utils.StoragePathResolver;
 
 import lombok.extern.log4j.Log4j2;
 
@@ -21,61 +50,310 @@ import lombok.extern.log4j.Log4j2;
 @Log4j2
 public class ArchivalExecutor {
 
-	public ArchivalExecutor(CommonServiceUtils commonService, @Value("${executors.enabled:false}") boolean enabled,
-			@Value("${localpath:/fileserver/files}") String localpath,
-			@Value("${executors.archival.path:/fileserver/archives}") String archivalpath,
-			@Value("${executors.archival.days:30}") int days) {
-		if (enabled) {
-			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-			executor.scheduleAtFixedRate(new ArchivalProcess(commonService, localpath, archivalpath, days), 1, 1,
-					TimeUnit.DAYS);
+	private static final int BATCH_SIZE = 256;
+	private static final int RETRIES = 3;
+	private static final long RETRY_DELAY = 1000;
+
+	private ArchivalProcess process;
+
+	public ArchivalExecutor(StoragePathResolver paths, CommonServiceUtils commonService, FolderLockManager folderLocks,
+			MetadataIndexService metadataIndex, AccessTrackerService accessTracker, FileCacheService fileCache,
+			BlobStoreService blobStore, ChecksumService checksums, PackStoreService packStore, ClusterService cluster,
+			FileserverMetrics metrics, @Value("${executors.archival.days:30}") int days,
+			@Value("${executors.archival.threads:0}") int threads,
+			@Value("${executors.archival.bandwidth:0}") long bandwidth,
+			@Value("${executors.archival.level:6}") int level,
+			@Value("${executors.archival.stored:" + CommonServiceUtils.STORED_TYPES + "}") String[] stored,
+			@Value("${executors.archival.verify:true}") boolean verify) {
+		int parallelism = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		Set<String> storedTypes = new HashSet<>();
+		for (String type : stored) {
+			storedTypes.add(type.trim().toLowerCase());
 		}
+		this.process = new ArchivalProcess(paths, commonService, folderLocks, metadataIndex, accessTracker,
+				fileCache, blobStore, checksums, packStore, cluster, metrics, days, new ForkJoinPool(parallelism),
+				new IoThrottle(bandwidth), level, storedTypes, verify);
+	}
+
+	// runs a complete pass on the calling thread, even when the schedule is
+	// disabled
+	public void runPass() {
+		process.run(PassControl.UNBOUNDED);
+	}
+
+	// returns whether the pass got through all candidates
+	public boolean runPass(PassControl control) {
+		return process.run(control);
+	}
+
+	@PreDestroy
+	public void close() throws InterruptedException {
+		process.close();
 	}
 
-	private class ArchivalProcess implements Runnable {
+	private class ArchivalProcess {
 
+		private StoragePathResolver paths;
 		private CommonServiceUtils commonService;
-		private String localpath;
-		private String archivalpath;
+		private FolderLockManager folderLocks;
+		private MetadataIndexService metadataIndex;
+		private AccessTrackerService accessTracker;
+		private FileCacheService fileCache;
+		private BlobStoreService blobStore;
+		private ChecksumService checksums;
+		private PackStoreService packStore;
+		private ClusterService cluster;
+		private FileserverMetrics metrics;
 		private int days;
+		private ForkJoinPool pool;
+		private IoThrottle throttle;
+		private int level;
+		private Set<String> stored;
+		private boolean verify;
+		private AtomicLong archived = new AtomicLong();
+		// folders skipped because they were in use during the pass
+		private Queue<RequiredObject> busy = new ConcurrentLinkedQueue<>();
+		private volatile boolean closed;
 
-		public ArchivalProcess(CommonServiceUtils commonService, String localpath, String archivalpath, int days) {
+		public ArchivalProcess(StoragePathResolver paths, CommonServiceUtils commonService,
+				FolderLockManager folderLocks, MetadataIndexService metadataIndex, AccessTrackerService accessTracker,
+				FileCacheService fileCache, BlobStoreService blobStore, ChecksumService checksums,
+				PackStoreService packStore, ClusterService cluster, FileserverMetrics metrics, int days,
+				ForkJoinPool pool, IoThrottle throttle, int level, Set<String> stored, boolean verify) {
+			this.paths = paths;
 			this.commonService = commonService;
-			this.localpath = localpath;
-			this.archivalpath = archivalpath;
+			this.folderLocks = folderLocks;
+			this.metadataIndex = metadataIndex;
+			this.accessTracker = accessTracker;
+			this.fileCache = fileCache;
+			this.blobStore = blobStore;
+			this.checksums = checksums;
+			this.packStore = packStore;
+			this.cluster = cluster;
+			this.metrics = metrics;
 			this.days = days;
+			this.pool = pool;
+			this.throttle = throttle;
+			this.level = level;
+			this.stored = stored;
+			this.verify = verify;
 		}
 
-		@Override
-		public void run() {
-			try (Stream<Path> buckets = Files.list(Paths.get(this.localpath)).filter(path -> Files.isDirectory(path))) {
-				buckets.forEach(bucket -> {
-					try (Stream<Path> folderids = Files.list(bucket)
-							.filter(path -> Files.isDirectory(path)
-									&& (Instant.now().toEpochMilli() - path.toFile().lastModified())
-											/ (1000 * 60 * 60 * 24) > days)) {
-						folderids.forEach(folderid -> {
-							try {
-								if (!commonService.isEmpty(folderid)) {
-									Path target = Paths.get(archivalpath, bucket.getFileName().toString(),
-											String.format("%s.zip", folderid.getFileName().toString()));
-									Files.createDirectories(target.getParent());
-									commonService.zipDirectory(folderid, target);
-								}
-								commonService.deleteDirectory(folderid);
-							} catch (IOException e) {
-								log.error(e.getMessage(), e);
+		public synchronized boolean run(PassControl control) {
+			if (!metadataIndex.isReady()) {
+				log.info("Archival pass skipped while the metadata index is rebuilt");
+				return false;
+			}
+			long start = System.nanoTime();
+			archived.set(0);
+			busy.clear();
+			accessTracker.flush();
+			AtomicBoolean completed = new AtomicBoolean();
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					// fork folders in batches so a large backlog does not queue
+					// every candidate at once; a stopped pass resumes after the
+					// last finished batch
+					try (Stream<FolderMetadata> candidates = metadataIndex.find(State.LIVE, getThreshold(),
+							control.getCheckpoint())) {
+						Iterator<FolderMetadata> iterator = candidates.iterator();
+						List<FolderTask> batch = new ArrayList<>(BATCH_SIZE);
+						FolderMetadata last = null;
+						while (iterator.hasNext()) {
+							if (batch.isEmpty() && (control.isStopping() || closed)) {
+								return;
+							}
+							last = iterator.next();
+							batch.add(new FolderTask(new RequiredObject(last.getBucket(), last.getFolderid())));
+							if (batch.size() == BATCH_SIZE || !iterator.hasNext()) {
+								invokeAll(batch);
+								control.checkpoint(metadataIndex.getPosition(last));
+								batch = new ArrayList<>(BATCH_SIZE);
 							}
-						});
-					} catch (IOException e) {
-						log.error(e.getMessage(), e);
+						}
+					}
+					control.checkpoint(null);
+					completed.set(true);
+				}
+			});
+			if (completed.get()) {
+				retry(control);
+			}
+			long elapsed = System.nanoTime() - start;
+			metrics.recordPass("archival", archived.get(), elapsed);
+			log.info("Archival pass archived {} folders in {} s{}", archived.get(),
+					TimeUnit.NANOSECONDS.toSeconds(elapsed), completed.get() ? "" : ", stopped before the end");
+			return completed.get();
+		}
+
+		// folders that were in use are tried again a few times at the end of the
+		// pass instead of waiting for the next one
+		private void retry(PassControl control) {
+			for (int round = 1; round <= RETRIES && !busy.isEmpty(); round++) {
+				try {
+					Thread.sleep(RETRY_DELAY * round);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (control.isStopping() || closed) {
+					break;
+				}
+				List<FolderTask> tasks = new ArrayList<>();
+				RequiredObject requiredObject;
+				while ((requiredObject = busy.poll()) != null) {
+					tasks.add(new FolderTask(requiredObject));
+				}
+				pool.invoke(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						invokeAll(tasks);
 					}
 				});
+			}
+			if (!busy.isEmpty()) {
+				log.info("Archival pass left {} folders in use for the next pass", busy.size());
+				busy.clear();
+			}
+		}
+
+		// the folder being archived is finished, the pass stops before the
+		// next batch
+		private void close() throws InterruptedException {
+			closed = true;
+			pool.shutdown();
+			if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+				pool.shutdownNow();
+			}
+		}
+
+		private long getThreshold() {
+			return Instant.now().minus(days + 1, ChronoUnit.DAYS).toEpochMilli();
+		}
+
+		private void archive(RequiredObject requiredObject) {
+			// folders of buckets owned by another node are left to the
+			// rebalance job
+			if (!cluster.isLocal(requiredObject.getBucket())) {
+				return;
+			}
+			// folders that are in use are tried again at the end of the pass
+			try (FolderLock lock = folderLocks.tryLock(requiredObject, true)) {
+				if (lock == null) {
+					busy.add(requiredObject);
+					return;
+				}
+				FolderMetadata metadata = metadataIndex.get(requiredObject);
+				// reads that have not been flushed yet still count
+				if (metadata == null || metadata.getState() != State.LIVE
+						|| accessTracker.getLastAccess(requiredObject) > getThreshold()) {
+					return;
+				}
+				Path folderid = paths.getFolder(requiredObject);
+				if (!Files.isDirectory(folderid)) {
+					metadataIndex.refresh(requiredObject);
+					return;
+				}
+				if (commonService.isEmpty(folderid)) {
+					commonService.deleteDirectory(folderid);
+					metadataIndex.remove(requiredObject);
+				} else {
+					Path target = paths.getArchive(requiredObject);
+					Path temp = target.resolveSibling(String.format(".%s.tmp", target.getFileName()));
+					Files.createDirectories(target.getParent());
+					// deduplicated content shared with other folders is kept as a
+					// link next to the archive instead of being compressed again
+					Set<String> shared = getSharedFiles(folderid);
+					Map<String, FileChecksum> recorded = checksums.prune(folderid);
+					commonService.zipDirectory(folderid, temp, level, stored, throttle,
+							file -> !shared.contains(file.getName()));
+					// the folder is only removed once its archive reads back the
+					// content that was uploaded
+					if (verify && !recorded.isEmpty()) {
+						List<String> mismatches = checksums.verify(temp, requiredObject.getFolderid(),
+								recorded);
+						if (!mismatches.isEmpty()) {
+							Files.delete(temp);
+							log.error("Archive of {} does not match the checksums of {}, keeping the folder",
+									folderid, mismatches);
+							return;
+						}
+					}
+					Path links = paths.getLinks(requiredObject);
+					if (Files.exists(links)) {
+						commonService.deleteDirectory(links);
+					}
+					if (!shared.isEmpty()) {
+						Files.createDirectories(links);
+						for (String name : shared) {
+							Files.createLink(links.resolve(name), folderid.resolve(name));
+						}
+					}
+					// small folders without shared files go into the bucket's pack
+					// instead of a zip of their own
+					if (shared.isEmpty() && packStore.accepts(Files.size(temp))) {
+						packStore.append(requiredObject, temp, metadata.getSize(), metadata.getFiles(),
+								Instant.now().toEpochMilli());
+						Files.delete(temp);
+						Files.deleteIfExists(target);
+					} else {
+						Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+						packStore.remove(requiredObject);
+					}
+					checksums.invalidate(target);
+					try {
+						commonService.deleteDirectory(folderid);
+					} finally {
+						// the archive is complete even if some files could not be removed
+						metadataIndex.archived(requiredObject, Instant.now().toEpochMilli());
+					}
+				}
+				fileCache.invalidate(requiredObject);
+				checksums.invalidate(folderid);
+				archived.incrementAndGet();
 			} catch (IOException e) {
 				log.error(e.getMessage(), e);
 			}
 		}
 
+		private Set<String> getSharedFiles(Path folderid) throws IOException {
+			Set<String> shared = new HashSet<>();
+			if (!blobStore.isEnabled()) {
+				return shared;
+			}
+			try (Stream<Path> files = Files.list(folderid)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					String name = file.getFileName().toString();
+					if (!name.startsWith(".") && Files.isRegularFile(file) && blobStore.isShared(file)) {
+						shared.add(name);
+					}
+				}
+			}
+			return shared;
+		}
+
+		private class FolderTask extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			private final RequiredObject requiredObject;
+
+			private FolderTask(RequiredObject requiredObject) {
+				this.requiredObject = requiredObject;
+			}
+
+			@Override
+			protected void compute() {
+				archive(requiredObject);
+			}
+
+		}
+
 	}
 
 }
@@ -5,15 +5,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.project.fileserver.service.BlobStoreService;
 import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
 
 import lombok.extern.log4j.Log4j2;
 
@@ -21,35 +20,64 @@ import lombok.extern.log4j.Log4j2;
 @Log4j2
 public class CleanUpExecutor {
 
-	public CleanUpExecutor(CommonServiceUtils commonService, @Value("${temppath:/fileserver/temp}") String temppath) {
-		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-		executor.scheduleAtFixedRate(new CleanUpProcess(commonService, temppath), 1, 1, TimeUnit.DAYS);
+	private CleanUpProcess process;
+
+	public CleanUpExecutor(CommonServiceUtils commonService, BlobStoreService blobStore, FileserverMetrics metrics,
+			@Value("${temppath:/fileserver/temp}") String temppath) {
+		this.process = new CleanUpProcess(commonService, blobStore, metrics, temppath);
+	}
+
+	// removes stale temporary files and, with deduplication, unreferenced blobs
+	public void runPass() {
+		process.run(PassControl.UNBOUNDED);
 	}
 
-	private class CleanUpProcess implements Runnable {
+	public boolean runPass(PassControl control) {
+		return process.run(control);
+	}
+
+	private class CleanUpProcess {
 
 		private String temppath;
 		private CommonServiceUtils commonService;
+		private BlobStoreService blobStore;
+		private FileserverMetrics metrics;
 
-		public CleanUpProcess(CommonServiceUtils commonService, String temppath) {
+		public CleanUpProcess(CommonServiceUtils commonService, BlobStoreService blobStore, FileserverMetrics metrics,
+				String temppath) {
 			this.temppath = temppath;
 			this.commonService = commonService;
+			this.blobStore = blobStore;
+			this.metrics = metrics;
 		}
 
-		@Override
-		public void run() {
+		public synchronized boolean run(PassControl control) {
+			long start = System.nanoTime();
+			long deleted = 0;
 			try (Stream<Path> folders = Files.list(Paths.get(temppath)).filter(path -> Files.isDirectory(path)
 					&& (Instant.now().toEpochMilli() - path.toFile().lastModified()) / (1000 * 60 * 60 * 24) > 1)) {
-				folders.forEach(folder -> {
+				for (Path folder : (Iterable<Path>) folders::iterator) {
+					if (control.isStopping()) {
+						return false;
+					}
 					try {
 						commonService.deleteDirectory(folder);
+						deleted++;
 					} catch (IOException e) {
 						log.error(e.getMessage(), e);
 					}
-				});
+				}
 			} catch (IOException e) {
 				log.error(e.getMessage(), e);
 			}
+			metrics.recordPass("cleanup", deleted, System.nanoTime() - start);
+			if (blobStore.isEnabled() && !control.isStopping()) {
+				start = System.nanoTime();
+				long collected = blobStore.collect();
+				metrics.recordPass("blobs", collected, System.nanoTime() - start);
+				log.info("Collected {} unreferenced blobs", collected);
+			}
+			return true;
 		}
 
 	}
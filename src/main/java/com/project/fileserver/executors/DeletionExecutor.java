@@ -3,65 +3,150 @@ package com.project.fileserver.executors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
 import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.project.fileserver.model.FolderMetadata;
+import com.project.fileserver.model.FolderMetadata.State;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.AccessTrackerService;
+import com.project.fileserver.service.ClusterService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.StoragePathResolver;
+
 import lombok.extern.log4j.Log4j2;
 
 @Component
 @Log4j2
 public class DeletionExecutor {
 
-	public DeletionExecutor(@Value("${executors.enabled:false}") boolean enabled,
-			@Value("${executors.archival.path:/fileserver/archives}") String archivalpath,
-			@Value("${executors.deletion.days:15}") int days) {
-		if (enabled) {
-			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-			executor.scheduleAtFixedRate(new DeletionProcess(archivalpath, days), 1, 1, TimeUnit.DAYS);
-		}
+	private static final int CHECKPOINT_INTERVAL = 256;
+
+	private DeletionProcess process;
+
+	public DeletionExecutor(StoragePathResolver paths, CommonServiceUtils commonService, FolderLockManager folderLocks,
+			MetadataIndexService metadataIndex, AccessTrackerService accessTracker, PackStoreService packStore,
+			ClusterService cluster, FileserverMetrics metrics, @Value("${executors.deletion.days:15}") int days) {
+		this.process = new DeletionProcess(paths, commonService, folderLocks, metadataIndex, accessTracker,
+				packStore, cluster, metrics, days);
 	}
 
-	private class DeletionProcess implements Runnable {
+	// runs a complete pass on the calling thread, even when the schedule is
+	// disabled
+	public void runPass() {
+		process.run(PassControl.UNBOUNDED);
+	}
 
-		private String archivalpath;
+	// returns whether the pass got through all candidates
+	public boolean runPass(PassControl control) {
+		return process.run(control);
+	}
+
+	private class DeletionProcess {
+
+		private StoragePathResolver paths;
+		private CommonServiceUtils commonService;
+		private FolderLockManager folderLocks;
+		private MetadataIndexService metadataIndex;
+		private AccessTrackerService accessTracker;
+		private PackStoreService packStore;
+		private ClusterService cluster;
+		private FileserverMetrics metrics;
 		private int days;
 
-		public DeletionProcess(String archivalpath, int days) {
-			this.archivalpath = archivalpath;
+		public DeletionProcess(StoragePathResolver paths, CommonServiceUtils commonService,
+				FolderLockManager folderLocks, MetadataIndexService metadataIndex, AccessTrackerService accessTracker,
+				PackStoreService packStore, ClusterService cluster, FileserverMetrics metrics, int days) {
+			this.paths = paths;
+			this.commonService = commonService;
+			this.folderLocks = folderLocks;
+			this.metadataIndex = metadataIndex;
+			this.accessTracker = accessTracker;
+			this.packStore = packStore;
+			this.cluster = cluster;
+			this.metrics = metrics;
 			this.days = days;
 		}
 
-		@Override
-		public void run() {
-			try (Stream<Path> buckets = Files.list(Paths.get(archivalpath)).filter(path -> Files.isDirectory(path))) {
-				buckets.forEach(bucket -> {
-					try (Stream<Path> folderids = Files.list(bucket)
-							.filter(path -> !Files.isDirectory(path)
-									&& (Instant.now().toEpochMilli() - path.toFile().lastModified())
-											/ (1000 * 60 * 60 * 24) > days)) {
-						folderids.forEach(folderid -> {
-							try {
-								Files.deleteIfExists(folderid);
-							} catch (IOException e) {
-								log.error(e.getMessage(), e);
-							}
-						});
-					} catch (IOException e) {
-						log.error(e.getMessage(), e);
+		public synchronized boolean run(PassControl control) {
+			if (!metadataIndex.isReady()) {
+				log.info("Deletion pass skipped while the metadata index is rebuilt");
+				return false;
+			}
+			long start = System.nanoTime();
+			long deleted = 0;
+			boolean completed = true;
+			accessTracker.flush();
+			try (Stream<FolderMetadata> candidates = metadataIndex.find(State.ARCHIVED, getThreshold(),
+					control.getCheckpoint())) {
+				Iterator<FolderMetadata> iterator = candidates.iterator();
+				for (int count = 1; iterator.hasNext(); count++) {
+					if (control.isStopping()) {
+						completed = false;
+						break;
 					}
-				});
+					FolderMetadata metadata = iterator.next();
+					if (delete(new RequiredObject(metadata.getBucket(), metadata.getFolderid()))) {
+						deleted++;
+					}
+					if (count % CHECKPOINT_INTERVAL == 0) {
+						control.checkpoint(metadataIndex.getPosition(metadata));
+					}
+				}
+			}
+			if (completed) {
+				control.checkpoint(null);
+			}
+			metrics.recordPass("deletion", deleted, System.nanoTime() - start);
+			return completed;
+		}
+
+		private boolean delete(RequiredObject requiredObject) {
+			// folders of buckets owned by another node are left to the
+			// rebalance job
+			if (!cluster.isLocal(requiredObject.getBucket())) {
+				return false;
+			}
+			try (FolderLock lock = folderLocks.tryLock(requiredObject, true)) {
+				if (lock == null) {
+					return false;
+				}
+				// the archive may have been read or rehydrated since the query
+				FolderMetadata current = metadataIndex.get(requiredObject);
+				if (current == null || current.getState() != State.ARCHIVED
+						|| accessTracker.getLastAccess(requiredObject) > getThreshold()) {
+					return false;
+				}
+				Path archive = paths.getArchive(requiredObject);
+				// links of deduplicated files drop their blob references
+				Path links = paths.getLinks(requiredObject);
+				if (Files.exists(links)) {
+					commonService.deleteDirectory(links);
+				}
+				Files.deleteIfExists(archive);
+				packStore.remove(requiredObject);
+				metadataIndex.remove(requiredObject);
+				return true;
 			} catch (IOException e) {
 				log.error(e.getMessage(), e);
+				return false;
 			}
 		}
 
+		private long getThreshold() {
+			return Instant.now().minus(days + 1, ChronoUnit.DAYS).toEpochMilli();
+		}
+
 	}
 
 }
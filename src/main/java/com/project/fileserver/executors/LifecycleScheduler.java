@@ -0,0 +1,189 @@
+package com.project.fileserver.executors;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.support.CronExpression;
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.LifecycleStatus;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.UploadSessionService;
+
+import lombok.extern.log4j.Log4j2;
+
+// runs the lifecycle passes on cron schedules from one bounded pool; a pass
+// that is still busy when its maintenance window closes, or when its job is
+// paused, stops at its next checkpoint and the next run continues from there
+@Component
+@Log4j2
+public class LifecycleScheduler {
+
+	private final Map<String, Job> jobs = new LinkedHashMap<>();
+	private final ScheduledExecutorService executor;
+	private final MetadataIndexService metadataIndex;
+	private volatile boolean closed;
+
+	public LifecycleScheduler(ArchivalExecutor archival, DeletionExecutor deletion, CleanUpExecutor cleanUp,
+			PackCompactionExecutor compaction, RebalanceExecutor rebalance, UploadSessionService uploadSessionService,
+			MetadataIndexService metadataIndex, Environment environment,
+			@Value("${executors.enabled:false}") boolean enabled, @Value("${lifecycle.threads:2}") int threads) {
+		this.metadataIndex = metadataIndex;
+		register(environment, "archival", "0 0 1 * * *", enabled, archival::runPass);
+		register(environment, "deletion", "0 0 3 * * *", enabled, deletion::runPass);
+		register(environment, "cleanup", "0 0 4 * * *", true, cleanUp::runPass);
+		register(environment, "compaction", "0 30 4 * * *", true, compaction::runPass);
+		register(environment, "rebalance", "0 */15 * * * *", rebalance.isEnabled(), rebalance::runPass);
+		register(environment, "sessions", "0 15 * * * *", true, control -> {
+			uploadSessionService.reapExpired();
+			return true;
+		});
+		this.executor = Executors.newScheduledThreadPool(Math.max(1, threads));
+		jobs.values().forEach(this::schedule);
+	}
+
+	public List<LifecycleStatus> getStatus() {
+		List<LifecycleStatus> statuses = new ArrayList<>(jobs.size());
+		jobs.values().forEach(job -> statuses.add(job.status()));
+		return statuses;
+	}
+
+	public LifecycleStatus getStatus(String name) {
+		return getJob(name).status();
+	}
+
+	// starts a pass now, outside the schedule, and resumes a paused job; false
+	// if a pass is running already
+	public boolean trigger(String name) {
+		Job job = getJob(name);
+		if (job.running.get()) {
+			return false;
+		}
+		job.paused = false;
+		executor.execute(() -> run(job));
+		return true;
+	}
+
+	// a running pass stops at its next checkpoint, scheduled runs are skipped
+	// until the job is resumed
+	public void pause(String name) {
+		getJob(name).paused = true;
+	}
+
+	public void resume(String name) {
+		getJob(name).paused = false;
+	}
+
+	@PreDestroy
+	public void close() {
+		closed = true;
+		executor.shutdown();
+	}
+
+	private void register(Environment environment, String name, String cron, boolean enabled,
+			Predicate<PassControl> pass) {
+		String prefix = String.format("lifecycle.jobs.%s.", name);
+		jobs.put(name, new Job(name, CronExpression.parse(environment.getProperty(prefix + "cron", cron)),
+				Duration.ofMinutes(environment.getProperty(prefix + "window", Long.class, 0L)),
+				environment.getProperty(prefix + "enabled", Boolean.class, enabled), pass));
+	}
+
+	private Job getJob(String name) {
+		Job job = jobs.get(name);
+		if (job == null) {
+			throw new NoSuchElementException(name);
+		}
+		return job;
+	}
+
+	private void schedule(Job job) {
+		if (!job.enabled || closed) {
+			return;
+		}
+		ZonedDateTime now = ZonedDateTime.now();
+		ZonedDateTime next = job.cron.next(now);
+		if (next == null) {
+			return;
+		}
+		job.nextRun = next.toInstant();
+		executor.schedule(() -> {
+			try {
+				if (!job.paused) {
+					run(job);
+				}
+			} finally {
+				schedule(job);
+			}
+		}, Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	private void run(Job job) {
+		if (!job.running.compareAndSet(false, true)) {
+			return;
+		}
+		Instant start = Instant.now();
+		job.lastStart = start;
+		Instant deadline = job.window.isZero() ? null : start.plus(job.window);
+		try {
+			job.lastCompleted = job.pass.test(new PassControl(job.name, metadataIndex, deadline,
+					() -> job.paused || closed));
+		} catch (RuntimeException e) {
+			job.lastCompleted = false;
+			log.error(e.getMessage(), e);
+		} finally {
+			job.lastFinish = Instant.now();
+			job.running.set(false);
+		}
+	}
+
+	private class Job {
+
+		private final String name;
+		private final CronExpression cron;
+		private final Duration window;
+		private final boolean enabled;
+		private final Predicate<PassControl> pass;
+		private final AtomicBoolean running = new AtomicBoolean();
+		private volatile boolean paused;
+		private volatile boolean lastCompleted;
+		private volatile Instant nextRun;
+		private volatile Instant lastStart;
+		private volatile Instant lastFinish;
+
+		private Job(String name, CronExpression cron, Duration window, boolean enabled,
+				Predicate<PassControl> pass) {
+			this.name = name;
+			this.cron = cron;
+			this.window = window;
+			this.enabled = enabled;
+			this.pass = pass;
+		}
+
+		private LifecycleStatus status() {
+			return new LifecycleStatus(name, enabled, paused, running.get(), cron.toString(), window.toMinutes(),
+					enabled ? toString(nextRun) : null, toString(lastStart), toString(lastFinish), lastCompleted,
+					metadataIndex.getCheckpoint(name));
+		}
+
+		private String toString(Instant instant) {
+			return instant == null ? null : instant.toString();
+		}
+
+	}
+
+}
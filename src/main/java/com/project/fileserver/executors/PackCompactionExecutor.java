@@ -0,0 +1,96 @@
+package com.project.fileserver.executors;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.ClusterService;
+import com.project.fileserver.service.PackStoreService;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+
+import lombok.extern.log4j.Log4j2;
+
+// reclaims the space of packed folders that were deleted or rehydrated: the
+// records still in use are copied out of mostly dead segments, which are
+// then removed
+@Component
+@Log4j2
+public class PackCompactionExecutor {
+
+	private CompactionProcess process;
+
+	public PackCompactionExecutor(PackStoreService packStore, FolderLockManager folderLocks, ClusterService cluster,
+			FileserverMetrics metrics) {
+		this.process = new CompactionProcess(packStore, folderLocks, cluster, metrics);
+	}
+
+	public void runPass() {
+		process.run(PassControl.UNBOUNDED);
+	}
+
+	public boolean runPass(PassControl control) {
+		return process.run(control);
+	}
+
+	private class CompactionProcess {
+
+		private PackStoreService packStore;
+		private FolderLockManager folderLocks;
+		private ClusterService cluster;
+		private FileserverMetrics metrics;
+
+		public CompactionProcess(PackStoreService packStore, FolderLockManager folderLocks, ClusterService cluster,
+				FileserverMetrics metrics) {
+			this.packStore = packStore;
+			this.folderLocks = folderLocks;
+			this.cluster = cluster;
+			this.metrics = metrics;
+		}
+
+		public synchronized boolean run(PassControl control) {
+			long start = System.nanoTime();
+			long dropped = 0;
+			boolean completed = true;
+			for (String segment : packStore.getCompactable()) {
+				if (control.isStopping()) {
+					completed = false;
+					break;
+				}
+				// segments are per bucket, the ones of buckets owned by another
+				// node go away with the rebalance job
+				if (!cluster.isLocal(segment.substring(0, segment.indexOf('/')))) {
+					continue;
+				}
+				try {
+					boolean moved = true;
+					for (RequiredObject requiredObject : packStore.getFolders(segment)) {
+						// folders in use keep the segment until the next pass
+						try (FolderLock lock = folderLocks.tryLock(requiredObject, true)) {
+							if (lock == null) {
+								moved = false;
+								continue;
+							}
+							packStore.relocate(requiredObject, segment);
+						}
+					}
+					if (moved && packStore.drop(segment)) {
+						dropped++;
+					}
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			metrics.recordPass("compaction", dropped, elapsed);
+			log.info("Compaction pass dropped {} pack segments in {} s{}", dropped,
+					TimeUnit.NANOSECONDS.toSeconds(elapsed), completed ? "" : ", stopped before the end");
+			return completed;
+		}
+
+	}
+
+}
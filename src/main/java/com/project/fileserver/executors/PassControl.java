@@ -0,0 +1,43 @@
+package com.project.fileserver.executors;
+
+import java.time.Instant;
+import java.util.function.BooleanSupplier;
+
+import com.project.fileserver.service.MetadataIndexService;
+
+// handed to a lifecycle pass by the scheduler: tells the pass when to stop
+// and keeps the position it reached so the next pass continues from there
+public class PassControl {
+
+	// a pass run outside the scheduler, it neither stops early nor resumes
+	public static final PassControl UNBOUNDED = new PassControl(null, null, null, () -> false);
+
+	private final String name;
+	private final MetadataIndexService metadataIndex;
+	private final Instant deadline;
+	private final BooleanSupplier stopped;
+
+	public PassControl(String name, MetadataIndexService metadataIndex, Instant deadline, BooleanSupplier stopped) {
+		this.name = name;
+		this.metadataIndex = metadataIndex;
+		this.deadline = deadline;
+		this.stopped = stopped;
+	}
+
+	// the maintenance window closed, or the job was paused or shut down
+	public boolean isStopping() {
+		return stopped.getAsBoolean() || (deadline != null && Instant.now().isAfter(deadline));
+	}
+
+	public String getCheckpoint() {
+		return metadataIndex == null ? null : metadataIndex.getCheckpoint(name);
+	}
+
+	// a null position marks the pass as complete, the next one starts over
+	public void checkpoint(String position) {
+		if (metadataIndex != null) {
+			metadataIndex.setCheckpoint(name, position);
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.project.fileserver.executors;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.FolderMetadata;
+import com.project.fileserver.model.FolderMetadata.State;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.ClusterService;
+import com.project.fileserver.service.FileserverService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.StoragePathResolver;
+
+import lombok.extern.log4j.Log4j2;
+
+// hands folders of buckets this node does not own (anymore) over to their
+// owner: each folder, live, zipped or packed, is sent as one zip of its files
+// and only deleted here once the owner has stored it
+@Component
+@Log4j2
+public class RebalanceExecutor {
+
+	private static final int CHECKPOINT_INTERVAL = 256;
+
+	private ClusterService cluster;
+	private RebalanceProcess process;
+
+	public RebalanceExecutor(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active,
+			ClusterService cluster, StoragePathResolver paths, CommonServiceUtils commonService,
+			FolderLockManager folderLocks, MetadataIndexService metadataIndex, PackStoreService packStore,
+			FileserverMetrics metrics, @Value("${temppath:/fileserver/temp}") String temppath) {
+		this.cluster = cluster;
+		this.process = new RebalanceProcess(beanFactory.getBean(active, FileserverService.class), cluster, paths,
+				commonService, folderLocks, metadataIndex, packStore, metrics, temppath);
+	}
+
+	public boolean isEnabled() {
+		return cluster.isEnabled();
+	}
+
+	public void runPass() {
+		process.run(PassControl.UNBOUNDED);
+	}
+
+	public boolean runPass(PassControl control) {
+		return process.run(control);
+	}
+
+	private class RebalanceProcess {
+
+		private FileserverService fileserverService;
+		private ClusterService cluster;
+		private StoragePathResolver paths;
+		private CommonServiceUtils commonService;
+		private FolderLockManager folderLocks;
+		private MetadataIndexService metadataIndex;
+		private PackStoreService packStore;
+		private FileserverMetrics metrics;
+		private String temppath;
+		// the ring all folders were handed over for, and the one the stored
+		// checkpoint belongs to
+		private long balanced = -1;
+		private long checkpointed = -1;
+
+		public RebalanceProcess(FileserverService fileserverService, ClusterService cluster,
+				StoragePathResolver paths, CommonServiceUtils commonService, FolderLockManager folderLocks,
+				MetadataIndexService metadataIndex, PackStoreService packStore, FileserverMetrics metrics,
+				String temppath) {
+			this.fileserverService = fileserverService;
+			this.cluster = cluster;
+			this.paths = paths;
+			this.commonService = commonService;
+			this.folderLocks = folderLocks;
+			this.metadataIndex = metadataIndex;
+			this.packStore = packStore;
+			this.metrics = metrics;
+			this.temppath = temppath;
+		}
+
+		public synchronized boolean run(PassControl control) {
+			if (!cluster.isEnabled()) {
+				return true;
+			}
+			if (!metadataIndex.isReady()) {
+				log.info("Rebalance pass skipped while the metadata index is rebuilt");
+				return false;
+			}
+			// folders only become foreign when the members change, a ring that
+			// has been handed over completely is not scanned again
+			long version = cluster.getRingVersion();
+			if (version == balanced) {
+				return true;
+			}
+			// a checkpoint of an earlier ring would skip folders that are
+			// foreign now, those passes start over
+			String checkpoint = version == checkpointed ? control.getCheckpoint() : null;
+			checkpointed = version;
+			long start = System.nanoTime();
+			long moved = 0;
+			boolean stopped = false;
+			boolean missed = false;
+			for (State state : State.values()) {
+				String after = null;
+				if (checkpoint != null) {
+					State reached = State.valueOf(checkpoint.substring(0, checkpoint.indexOf('/')));
+					if (state.compareTo(reached) < 0) {
+						continue;
+					}
+					if (state == reached) {
+						after = checkpoint.substring(checkpoint.indexOf('/') + 1);
+					}
+				}
+				try (Stream<FolderMetadata> folders = metadataIndex.find(state, Long.MAX_VALUE - 1, after)) {
+					Iterator<FolderMetadata> iterator = folders.iterator();
+					for (int count = 1; iterator.hasNext(); count++) {
+						if (control.isStopping()) {
+							stopped = true;
+							break;
+						}
+						FolderMetadata metadata = iterator.next();
+						if (!cluster.isLocal(metadata.getBucket())) {
+							if (move(new RequiredObject(metadata.getBucket(), metadata.getFolderid()))) {
+								moved++;
+							} else {
+								missed = true;
+							}
+						}
+						if (count % CHECKPOINT_INTERVAL == 0) {
+							control.checkpoint(state.name() + "/" + metadataIndex.getPosition(metadata));
+						}
+					}
+				}
+				if (stopped) {
+					break;
+				}
+			}
+			if (!stopped) {
+				control.checkpoint(null);
+				if (!missed) {
+					balanced = version;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			metrics.recordPass("rebalance", moved, elapsed);
+			log.info("Rebalance pass handed over {} folders in {} s{}", moved,
+					TimeUnit.NANOSECONDS.toSeconds(elapsed),
+					stopped || missed ? ", some are left for the next pass" : "");
+			return !stopped && !missed;
+		}
+
+		private boolean move(RequiredObject requiredObject) {
+			// folders in use are moved by the next pass
+			try (FolderLock lock = folderLocks.tryLock(requiredObject, true)) {
+				if (lock == null) {
+					return false;
+				}
+				String owner = cluster.getOwner(requiredObject.getBucket());
+				if (owner == null) {
+					return false;
+				}
+				if (cluster.getSelf().equals(owner)) {
+					return true;
+				}
+				Path temp = Paths.get(temppath, commonService.generateUniqueId("rebalance"), "folder.zip");
+				Files.createDirectories(temp.getParent());
+				try {
+					if (!pack(requiredObject, temp)) {
+						metadataIndex.refresh(requiredObject);
+						return true;
+					}
+					HttpResponse<String> response = cluster.getClient().send(
+							cluster.newRequest(owner, "PUT", cluster.getFolderTarget(requiredObject),
+									BodyPublishers.ofFile(temp)).build(), BodyHandlers.ofString());
+					if (response.statusCode() != 200) {
+						log.error("{} did not take folder {}/{}: {}", owner, requiredObject.getBucket(),
+								requiredObject.getFolderid(), response.statusCode());
+						return false;
+					}
+					return fileserverService.deleteFolder(requiredObject);
+				} finally {
+					commonService.deleteDirectory(temp.getParent());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				return false;
+			}
+		}
+
+		// writes the visible files of the folder, wherever it is kept, into one
+		// flat zip; false if the folder is gone
+		private boolean pack(RequiredObject requiredObject, Path target) throws IOException {
+			Path folder = paths.getFolder(requiredObject);
+			Path archive = paths.getArchive(requiredObject);
+			try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(target))) {
+				zipOut.setLevel(Deflater.BEST_SPEED);
+				if (Files.isDirectory(folder)) {
+					addFiles(folder, zipOut);
+				} else if (Files.exists(archive)) {
+					try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+						Enumeration<? extends ZipEntry> entries = zipFile.entries();
+						while (entries.hasMoreElements()) {
+							ZipEntry entry = entries.nextElement();
+							try (InputStream in = zipFile.getInputStream(entry)) {
+								addEntry(entry, in, zipOut);
+							}
+						}
+					}
+					addFiles(paths.getLinks(requiredObject), zipOut);
+				} else if (packStore.contains(requiredObject)) {
+					byte[] content = packStore.read(requiredObject);
+					if (content == null) {
+						return false;
+					}
+					try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(content))) {
+						ZipEntry entry;
+						while ((entry = zipIn.getNextEntry()) != null) {
+							addEntry(entry, zipIn, zipOut);
+						}
+					}
+				} else {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void addFiles(Path directory, ZipOutputStream zipOut) throws IOException {
+			if (!Files.isDirectory(directory)) {
+				return;
+			}
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					String name = file.getFileName().toString();
+					if (Files.isRegularFile(file) && !name.startsWith(".")) {
+						zipOut.putNextEntry(new ZipEntry(name));
+						Files.copy(file, zipOut);
+						zipOut.closeEntry();
+					}
+				}
+			}
+		}
+
+		// archive entries are stored under the folder id
+		private void addEntry(ZipEntry entry, InputStream in, ZipOutputStream zipOut) throws IOException {
+			String name = Paths.get(entry.getName()).getFileName().toString();
+			if (entry.isDirectory() || name.startsWith(".")) {
+				return;
+			}
+			zipOut.putNextEntry(new ZipEntry(name));
+			in.transferTo(zipOut);
+			zipOut.closeEntry();
+		}
+
+	}
+
+}
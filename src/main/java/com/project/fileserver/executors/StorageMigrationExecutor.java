@@ -0,0 +1,134 @@
+package com.project.fileserver.executors;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.StoragePathResolver;
+
+import lombok.extern.log4j.Log4j2;
+
+// moves folders and archives of flat buckets into the sharded layout while
+// the server keeps running; lookups fall back to the flat location until a
+// folder has been moved
+@Component
+@Log4j2
+public class StorageMigrationExecutor {
+
+	private MigrationProcess process;
+
+	public StorageMigrationExecutor(StoragePathResolver paths, FolderLockManager folderLocks,
+			FileserverMetrics metrics, @Value("${storage.shards.migrate:false}") boolean migrate) {
+		this.process = new MigrationProcess(paths, folderLocks, metrics);
+		if (migrate && paths.isSharded()) {
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			executor.execute(process);
+			executor.shutdown();
+		}
+	}
+
+	// runs a migration on the calling thread, folders already in place are skipped
+	public void runPass() {
+		process.run();
+	}
+
+	private class MigrationProcess implements Runnable {
+
+		private StoragePathResolver paths;
+		private FolderLockManager folderLocks;
+		private FileserverMetrics metrics;
+		private AtomicLong moved = new AtomicLong();
+
+		public MigrationProcess(StoragePathResolver paths, FolderLockManager folderLocks, FileserverMetrics metrics) {
+			this.paths = paths;
+			this.folderLocks = folderLocks;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public synchronized void run() {
+			if (!paths.isSharded()) {
+				return;
+			}
+			long start = System.nanoTime();
+			moved.set(0);
+			try {
+				migrate(paths.getLocalRoot(), true);
+				migrate(paths.getArchivalRoot(), false);
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+			long elapsed = System.nanoTime() - start;
+			metrics.recordPass("migration", moved.get(), elapsed);
+			log.info("Storage migration moved {} folders in {} s", moved.get(),
+					TimeUnit.NANOSECONDS.toSeconds(elapsed));
+		}
+
+		private void migrate(Path root, boolean folders) throws IOException {
+			if (!Files.isDirectory(root)) {
+				return;
+			}
+			try (Stream<Path> buckets = Files.list(root).filter(path -> Files.isDirectory(path)
+					&& !path.getFileName().toString().startsWith("."))) {
+				for (Path bucket : (Iterable<Path>) buckets::iterator) {
+					// only entries directly below the bucket are still flat
+					try (Stream<Path> entries = Files.list(bucket)) {
+						for (Path entry : (Iterable<Path>) entries::iterator) {
+							String name = entry.getFileName().toString();
+							if (name.startsWith(".") || paths.isShard(name)) {
+								continue;
+							}
+							if (folders && Files.isDirectory(entry)) {
+								move(bucket, name, name);
+							} else if (!folders && name.endsWith(".zip") && Files.isRegularFile(entry)) {
+								move(bucket, name.substring(0, name.length() - 4), name);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		private void move(Path bucket, String folderid, String name) {
+			RequiredObject requiredObject = new RequiredObject(bucket.getFileName().toString(), folderid);
+			try (FolderLock lock = folderLocks.lock(requiredObject, true)) {
+				Path source = bucket.resolve(name);
+				if (!Files.exists(source)) {
+					return;
+				}
+				Path target = paths.getShardedPath(bucket, name);
+				if (Files.exists(target)) {
+					log.warn("{} exists in both layouts, leaving the flat copy in place", source);
+					return;
+				}
+				Files.createDirectories(target.getParent());
+				// links have to follow their archive before the archive is visible
+				// at the new location
+				Path links = bucket.resolve(String.format("%s.links", folderid));
+				if (!Files.isDirectory(source) && Files.isDirectory(links)) {
+					Files.move(links, paths.getShardedPath(bucket, links.getFileName().toString()),
+							StandardCopyOption.ATOMIC_MOVE);
+				}
+				Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+				moved.incrementAndGet();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+
+	}
+
+}
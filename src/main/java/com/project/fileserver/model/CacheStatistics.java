@@ -0,0 +1,18 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CacheStatistics {
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long entries;
+	private long size;
+
+}
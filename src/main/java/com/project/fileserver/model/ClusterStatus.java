@@ -0,0 +1,19 @@
+package com.project.fileserver.model;
+
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ClusterStatus {
+
+	private boolean enabled;
+	private String self;
+	private String routing;
+	private Map<String, String> nodes;
+
+}
@@ -0,0 +1,23 @@
+package com.project.fileserver.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DeletionStatus {
+
+	private String job;
+	private String bucket;
+	private int folders;
+	private int deleted;
+	private int missing;
+	private int failed;
+	private boolean done;
+	private List<String> failures;
+
+}
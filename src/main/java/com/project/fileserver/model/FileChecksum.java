@@ -0,0 +1,16 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class FileChecksum {
+
+	private String sha256;
+	private long size;
+	private long lastModified;
+
+}
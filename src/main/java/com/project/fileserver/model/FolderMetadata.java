@@ -0,0 +1,23 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class FolderMetadata {
+
+	private String bucket;
+	private String folderid;
+	private long size;
+	private int files;
+	private long lastAccess;
+	private State state;
+
+	public enum State {
+		LIVE, ARCHIVED
+	}
+
+}
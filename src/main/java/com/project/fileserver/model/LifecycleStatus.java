@@ -0,0 +1,24 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class LifecycleStatus {
+
+	private String job;
+	private boolean enabled;
+	private boolean paused;
+	private boolean running;
+	private String cron;
+	private long window;
+	private String nextRun;
+	private String lastStart;
+	private String lastFinish;
+	private boolean lastCompleted;
+	private String checkpoint;
+
+}
@@ -0,0 +1,18 @@
+package com.project.fileserver.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ManifestEntry {
+
+	private String bucket;
+	private String id;
+	private List<String> filenames;
+
+}
@@ -0,0 +1,17 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ManifestError {
+
+	private String bucket;
+	private String id;
+	private String filename;
+	private String error;
+
+}
@@ -0,0 +1,21 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class PackEntry {
+
+	private String segment;
+	// where the archive starts in the segment and how long it is
+	private long offset;
+	private long length;
+	// the folder it holds
+	private long size;
+	private int files;
+	private long lastAccess;
+
+}
@@ -0,0 +1,19 @@
+package com.project.fileserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadSession {
+
+	private String session;
+	private String bucket;
+	private String folderid;
+	private String filename;
+	private long size;
+	private boolean replace;
+
+}
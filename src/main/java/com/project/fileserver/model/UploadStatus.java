@@ -0,0 +1,20 @@
+package com.project.fileserver.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadStatus {
+
+	private String session;
+	private String filename;
+	private long size;
+	private long received;
+	private List<long[]> ranges;
+
+}
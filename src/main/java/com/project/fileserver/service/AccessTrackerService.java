@@ -0,0 +1,110 @@
+package com.project.fileserver.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.project.fileserver.model.FolderMetadata;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.StoragePathResolver;
+
+import lombok.extern.log4j.Log4j2;
+
+@Service
+@Log4j2
+public class AccessTrackerService {
+
+	// folder -> latest access not yet written to the index
+	private final Map<RequiredObject, Long> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private MetadataIndexService metadataIndex;
+	private PackStoreService packStore;
+	private StoragePathResolver paths;
+	private int maxpending;
+
+	public AccessTrackerService(MetadataIndexService metadataIndex, PackStoreService packStore,
+			StoragePathResolver paths, @Value("${access.interval:10}") int interval,
+			@Value("${access.maxpending:100000}") int maxpending) {
+		this.metadataIndex = metadataIndex;
+		this.packStore = packStore;
+		this.paths = paths;
+		this.maxpending = maxpending;
+		executor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+	}
+
+	public void record(RequiredObject requiredObject) {
+		RequiredObject key = new RequiredObject(requiredObject.getBucket(), requiredObject.getFolderid());
+		// repeated reads of the same folder collapse into a single update
+		pending.merge(key, Instant.now().toEpochMilli(), Math::max);
+		if (pending.size() > maxpending && scheduled.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				scheduled.set(false);
+				flush();
+			});
+		}
+	}
+
+	// includes accesses that have not been flushed yet
+	public long getLastAccess(RequiredObject requiredObject) {
+		Long time = pending.get(new RequiredObject(requiredObject.getBucket(), requiredObject.getFolderid()));
+		FolderMetadata metadata = metadataIndex.get(requiredObject);
+		long indexed = metadata == null ? -1 : metadata.getLastAccess();
+		return time == null ? indexed : Math.max(time, indexed);
+	}
+
+	public synchronized void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Map<RequiredObject, Long> batch = new HashMap<>(pending);
+		try {
+			metadataIndex.touch(batch);
+		} catch (RuntimeException e) {
+			log.error(e.getMessage(), e);
+			return;
+		}
+		// entries stay visible until the index has them, newer accesses that
+		// arrived meanwhile are kept for the next flush
+		batch.forEach(pending::remove);
+		// the timestamps on disk are what an index rebuild starts from
+		batch.forEach((requiredObject, time) -> {
+			try {
+				try {
+					Files.setLastModifiedTime(paths.getFolder(requiredObject), FileTime.fromMillis(time));
+				} catch (NoSuchFileException e) {
+					Path archive = paths.getArchive(requiredObject);
+					if (Files.exists(archive)) {
+						Files.setLastModifiedTime(archive, FileTime.fromMillis(time));
+					} else {
+						packStore.touch(requiredObject, time);
+					}
+				}
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		});
+	}
+
+	@PreDestroy
+	public void close() {
+		executor.shutdown();
+		flush();
+	}
+
+}
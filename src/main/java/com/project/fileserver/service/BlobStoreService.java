@@ -0,0 +1,155 @@
+package com.project.fileserver.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import lombok.extern.log4j.Log4j2;
+
+@Service
+@Log4j2
+public class BlobStoreService {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private boolean enabled;
+	private String blobpath;
+	private int buffersize;
+
+	public BlobStoreService(@Value("${upload.dedup.enabled:false}") boolean enabled,
+			@Value("${upload.dedup.path:/fileserver/blobs}") String blobpath,
+			@Value("${upload.buffersize:262144}") int buffersize) {
+		// the link count is the reference count, which needs a unix file system
+		boolean supported = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+		if (enabled && !supported) {
+			log.warn("Deduplication needs hard link counts, storing every upload separately");
+		}
+		this.enabled = enabled && supported;
+		this.blobpath = blobpath;
+		this.buffersize = buffersize;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public byte[] digest(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return digest(in);
+		}
+	}
+
+	public byte[] digest(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] bytes = new byte[buffersize];
+		int length;
+		while ((length = in.read(bytes)) >= 0) {
+			digest.update(bytes, 0, length);
+		}
+		return digest.digest();
+	}
+
+	// moves the staged file to the target as a hard link of the blob with the
+	// same content, the staged copy is dropped when that blob already exists
+	public void publish(Path staged, byte[] hash, Path target, boolean replace) throws IOException {
+		Path blob = getBlobPath(toHex(hash));
+		Path link = target.resolveSibling(String.format(".%s.%s.link", target.getFileName(),
+				Long.toHexString(ThreadLocalRandom.current().nextLong())));
+		try {
+			boolean existing = true;
+			try {
+				Files.createLink(link, blob);
+			} catch (NoSuchFileException e) {
+				existing = false;
+				Files.move(staged, link, StandardCopyOption.ATOMIC_MOVE);
+				Files.createDirectories(blob.getParent());
+				try {
+					Files.createLink(blob, link);
+				} catch (FileAlreadyExistsException ex) {
+					// the same content was published concurrently, keep this copy
+				} catch (IOException ex) {
+					log.error(ex.getMessage(), ex);
+				}
+			}
+			if (replace) {
+				Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+			}
+			if (existing) {
+				Files.delete(staged);
+			}
+		} finally {
+			Files.deleteIfExists(link);
+		}
+	}
+
+	public String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int index = 0; index < bytes.length; index++) {
+			chars[index * 2] = HEX[(bytes[index] >> 4) & 0xf];
+			chars[index * 2 + 1] = HEX[bytes[index] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	// linked from the blob store and at least one other folder
+	public boolean isShared(Path file) throws IOException {
+		return enabled && getLinks(file) > 2;
+	}
+
+	// blobs that no folder links to anymore
+	public long collect() {
+		Path root = Paths.get(blobpath);
+		if (!Files.isDirectory(root)) {
+			return 0;
+		}
+		AtomicLong collected = new AtomicLong();
+		try (Stream<Path> blobs = Files.walk(root).filter(path -> Files.isRegularFile(path))) {
+			blobs.forEach(blob -> {
+				try {
+					if (getLinks(blob) == 1) {
+						Files.deleteIfExists(blob);
+						collected.incrementAndGet();
+					}
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+				}
+			});
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+		return collected.get();
+	}
+
+	private int getLinks(Path file) throws IOException {
+		return (Integer) Files.getAttribute(file, "unix:nlink");
+	}
+
+	private Path getBlobPath(String hash) {
+		return Paths.get(blobpath, hash.substring(0, 2), hash.substring(2, 4), hash);
+	}
+
+}
@@ -0,0 +1,426 @@
+package com.project.fileserver.service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.project.fileserver.model.FileChecksum;
+
+import lombok.extern.log4j.Log4j2;
+
+// sha-256 of every file a folder received through the server, kept in a
+// hidden sidecar inside the folder so it travels with the folder into its
+// archive. Writes only append a line to a journal next to the sidecar, which
+// is folded into the sidecar when the folder is archived or the journal has
+// outgrown it. An entry only counts while its file still has the size and
+// modification time it was hashed with
+@Service
+@Log4j2
+public class ChecksumService {
+
+	public static final String SIDECAR = ".checksums";
+	public static final String JOURNAL = ".checksums.log";
+	private static final Type TYPE = new TypeToken<Map<String, FileChecksum>>() {
+	}.getType();
+	// journal lines allowed beyond the number of entries before compaction
+	private static final int JOURNAL_SLACK = 64;
+
+	private final Gson gson = new Gson();
+	// one monitor per folder, held only while somebody uses it
+	private final Cache<Path, Object> locks = Caffeine.newBuilder().weakValues().executor(Runnable::run).build();
+	private final Cache<Path, Sidecar> folders;
+	private final Cache<Path, Map<String, FileChecksum>> archives;
+	private BlobStoreService blobStore;
+	private boolean enabled;
+
+	public ChecksumService(BlobStoreService blobStore, @Value("${checksums.enabled:true}") boolean enabled,
+			@Value("${checksums.cache:10000}") long cachesize) {
+		this.blobStore = blobStore;
+		this.enabled = enabled;
+		this.folders = Caffeine.newBuilder().maximumSize(Math.max(0, cachesize)).executor(Runnable::run).build();
+		this.archives = Caffeine.newBuilder().maximumSize(Math.max(0, cachesize)).executor(Runnable::run).build();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public byte[] digest(Path file) throws IOException {
+		return blobStore.digest(file);
+	}
+
+	// puts a file in place and records its hash; both happen under the same
+	// lock, so concurrent writers of one file cannot leave the hash of the
+	// other one behind
+	public void record(Path file, byte[] hash, Publisher publisher) throws IOException {
+		if (!enabled || hash == null) {
+			publisher.publish();
+			return;
+		}
+		Path folder = file.getParent();
+		synchronized (getLock(folder)) {
+			publisher.publish();
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			append(folder, file.getFileName().toString(), new FileChecksum(blobStore.toHex(hash), attributes.size(),
+					attributes.lastModifiedTime().toMillis()));
+		}
+	}
+
+	public void remove(Path folder, Collection<String> filenames) throws IOException {
+		if (!enabled) {
+			return;
+		}
+		synchronized (getLock(folder)) {
+			Sidecar sidecar = load(folder);
+			for (String filename : filenames) {
+				if (sidecar.checksums.containsKey(filename)) {
+					append(folder, filename, null);
+				}
+			}
+		}
+	}
+
+	// the hash of a live file, null when it was never recorded or the file
+	// changed since
+	public String getChecksum(Path file) throws IOException {
+		if (!enabled) {
+			return null;
+		}
+		FileChecksum checksum = load(file.getParent()).checksums.get(file.getFileName().toString());
+		return checksum != null && isCurrent(file, checksum) ? checksum.getSha256() : null;
+	}
+
+	// the hash of a file in an archive, or of a shared file kept next to it
+	public String getChecksum(Path archive, String folderid, String filename) throws IOException {
+		if (!enabled) {
+			return null;
+		}
+		FileChecksum checksum = archives.get(archive, key -> readArchived(archive, folderid)).get(filename);
+		return checksum == null ? null : checksum.getSha256();
+	}
+
+	// the hash of a file in a packed folder; cached under the path its archive
+	// would have, so the record is only read once until the folder is
+	// archived again
+	public String getChecksum(Path archive, String folderid, String filename, Record record) {
+		if (!enabled) {
+			return null;
+		}
+		FileChecksum checksum = archives.get(archive, key -> readPacked(record, folderid)).get(filename);
+		return checksum == null ? null : checksum.getSha256();
+	}
+
+	// drops entries of files that changed or went away, so everything the
+	// sidecar still lists can be verified, and folds the journal into the
+	// sidecar before the folder is archived
+	public Map<String, FileChecksum> prune(Path folder) throws IOException {
+		if (!enabled) {
+			return Collections.emptyMap();
+		}
+		synchronized (getLock(folder)) {
+			Sidecar sidecar = load(folder);
+			Map<String, FileChecksum> checksums = new HashMap<>(sidecar.checksums);
+			boolean changed = checksums.entrySet()
+					.removeIf(entry -> !isCurrent(folder.resolve(entry.getKey()), entry.getValue()));
+			if (changed || sidecar.journaled > 0) {
+				store(folder, checksums);
+			}
+			return checksums;
+		}
+	}
+
+	// names whose content in the archive does not match the recorded hash,
+	// files kept outside the archive are skipped
+	public List<String> verify(Path archive, String folderid, Map<String, FileChecksum> checksums)
+			throws IOException {
+		List<String> mismatches = new ArrayList<>();
+		try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+			for (Map.Entry<String, FileChecksum> entry : checksums.entrySet()) {
+				ZipEntry zipEntry = zipFile.getEntry(folderid + "/" + entry.getKey());
+				if (zipEntry == null) {
+					continue;
+				}
+				try (InputStream in = zipFile.getInputStream(zipEntry)) {
+					if (!blobStore.toHex(blobStore.digest(in)).equals(entry.getValue().getSha256())) {
+						mismatches.add(entry.getKey());
+					}
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	// names in an extracted folder whose content does not match the sidecar
+	// that came with it
+	public List<String> verify(Path folder) throws IOException {
+		List<String> mismatches = new ArrayList<>();
+		for (Map.Entry<String, FileChecksum> entry : read(folder).checksums.entrySet()) {
+			Path file = folder.resolve(entry.getKey());
+			if (Files.isRegularFile(file) && !blobStore.toHex(digest(file)).equals(entry.getValue().getSha256())) {
+				mismatches.add(entry.getKey());
+			}
+		}
+		return mismatches;
+	}
+
+	// extraction gives every file a new modification time, the entries are
+	// moved along so they keep counting
+	public void restamp(Path folder) throws IOException {
+		if (!enabled) {
+			return;
+		}
+		synchronized (getLock(folder)) {
+			Map<String, FileChecksum> checksums = new HashMap<>(read(folder).checksums);
+			Iterator<Map.Entry<String, FileChecksum>> iterator = checksums.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, FileChecksum> entry = iterator.next();
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(folder.resolve(entry.getKey()),
+							BasicFileAttributes.class);
+					if (attributes.size() == entry.getValue().getSize()) {
+						entry.getValue().setLastModified(attributes.lastModifiedTime().toMillis());
+						continue;
+					}
+				} catch (NoSuchFileException e) {
+					// dropped below
+				}
+				iterator.remove();
+			}
+			store(folder, checksums);
+		}
+	}
+
+	// the folder or archive went away or was replaced as a whole
+	public void invalidate(Path path) {
+		folders.invalidate(path);
+		archives.invalidate(path);
+	}
+
+	private Sidecar load(Path folder) {
+		return folders.get(folder, this::read);
+	}
+
+	// the sidecar with the journal replayed on top of it
+	private Sidecar read(Path folder) {
+		Sidecar sidecar = new Sidecar();
+		try (Reader reader = Files.newBufferedReader(folder.resolve(SIDECAR), StandardCharsets.UTF_8)) {
+			sidecar.checksums.putAll(parse(reader));
+		} catch (NoSuchFileException e) {
+			// nothing compacted yet
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+		try (BufferedReader reader = Files.newBufferedReader(folder.resolve(JOURNAL), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sidecar.journaled++;
+				try {
+					Change change = gson.fromJson(line, Change.class);
+					if (change == null || change.name == null) {
+						continue;
+					}
+					if (change.checksum == null) {
+						sidecar.checksums.remove(change.name);
+					} else {
+						sidecar.checksums.put(change.name, change.checksum);
+					}
+				} catch (JsonParseException e) {
+					// a line cut short by a crash
+					log.error(e.getMessage());
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// no writes since the last compaction
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+		return sidecar;
+	}
+
+	// a null checksum removes the entry; called with the folder's lock held
+	private void append(Path folder, String filename, FileChecksum checksum) throws IOException {
+		Sidecar sidecar = load(folder);
+		Files.write(folder.resolve(JOURNAL), (gson.toJson(new Change(filename, checksum)) + "\n")
+				.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		if (checksum == null) {
+			sidecar.checksums.remove(filename);
+		} else {
+			sidecar.checksums.put(filename, checksum);
+		}
+		// keeps replaying the journal proportional to the folder, and leaves
+		// nothing behind once the last entry is gone
+		if (++sidecar.journaled > sidecar.checksums.size() + JOURNAL_SLACK || sidecar.checksums.isEmpty()) {
+			store(folder, new HashMap<>(sidecar.checksums));
+		}
+	}
+
+	private Map<String, FileChecksum> readArchived(Path archive, String folderid) {
+		try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+			ZipEntry entry = zipFile.getEntry(folderid + "/" + SIDECAR);
+			if (entry == null) {
+				return Collections.emptyMap();
+			}
+			Map<String, FileChecksum> checksums;
+			try (Reader reader = new InputStreamReader(zipFile.getInputStream(entry), StandardCharsets.UTF_8)) {
+				checksums = new HashMap<>(parse(reader));
+			}
+			// archives are never modified in place, an entry whose size differs
+			// from the archived file was written over before archival
+			checksums.entrySet().removeIf(checksum -> {
+				ZipEntry file = zipFile.getEntry(folderid + "/" + checksum.getKey());
+				return file != null && file.getSize() != checksum.getValue().getSize();
+			});
+			return Collections.unmodifiableMap(checksums);
+		} catch (NoSuchFileException e) {
+			return Collections.emptyMap();
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			return Collections.emptyMap();
+		}
+	}
+
+	private Map<String, FileChecksum> readPacked(Record record, String folderid) {
+		String prefix = folderid + "/";
+		Map<String, Long> sizes = new HashMap<>();
+		Map<String, FileChecksum> checksums = new HashMap<>();
+		try {
+			byte[] content = record.read();
+			if (content == null) {
+				return Collections.emptyMap();
+			}
+			try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(content))) {
+				for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
+					if (entry.getName().equals(prefix + SIDECAR)) {
+						checksums.putAll(parse(new StringReader(new String(zipIn.readAllBytes(),
+								StandardCharsets.UTF_8))));
+					} else if (entry.getName().startsWith(prefix)) {
+						sizes.put(entry.getName().substring(prefix.length()),
+								zipIn.transferTo(OutputStream.nullOutputStream()));
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			return Collections.emptyMap();
+		}
+		// same as for archives, entries of files written over before archival
+		checksums.entrySet().removeIf(checksum -> {
+			Long size = sizes.get(checksum.getKey());
+			return size != null && size != checksum.getValue().getSize();
+		});
+		return Collections.unmodifiableMap(checksums);
+	}
+
+	// a damaged sidecar only costs the validators, never the download
+	private Map<String, FileChecksum> parse(Reader reader) {
+		try {
+			Map<String, FileChecksum> checksums = gson.fromJson(reader, TYPE);
+			return checksums == null ? Collections.emptyMap() : Collections.unmodifiableMap(checksums);
+		} catch (JsonParseException e) {
+			log.error(e.getMessage());
+			return Collections.emptyMap();
+		}
+	}
+
+	// rewrites the sidecar and starts an empty journal; entries are absolute,
+	// so a journal left behind by a crash in between is replayed harmlessly
+	private void store(Path folder, Map<String, FileChecksum> checksums) throws IOException {
+		Path sidecar = folder.resolve(SIDECAR);
+		if (checksums.isEmpty()) {
+			Files.deleteIfExists(sidecar);
+		} else {
+			Path temp = folder.resolve(String.format("%s.%s.part", SIDECAR,
+					Long.toHexString(ThreadLocalRandom.current().nextLong())));
+			try {
+				Files.write(temp, gson.toJson(checksums, TYPE).getBytes(StandardCharsets.UTF_8));
+				Files.move(temp, sidecar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+		Files.deleteIfExists(folder.resolve(JOURNAL));
+		Sidecar stored = new Sidecar();
+		stored.checksums.putAll(checksums);
+		folders.put(folder, stored);
+	}
+
+	private boolean isCurrent(Path file, FileChecksum checksum) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			return attributes.size() == checksum.getSize()
+					&& attributes.lastModifiedTime().toMillis() == checksum.getLastModified();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private Object getLock(Path folder) {
+		return locks.get(folder, key -> new Object());
+	}
+
+	public interface Publisher {
+
+		void publish() throws IOException;
+
+	}
+
+	public interface Record {
+
+		byte[] read() throws IOException;
+
+	}
+
+	private static class Sidecar {
+
+		private final Map<String, FileChecksum> checksums = new ConcurrentHashMap<>();
+		// journal lines since the last compaction
+		private int journaled;
+
+	}
+
+	private static class Change {
+
+		private String name;
+		private FileChecksum checksum;
+
+		private Change(String name, FileChecksum checksum) {
+			this.name = name;
+			this.checksum = checksum;
+		}
+
+	}
+
+}
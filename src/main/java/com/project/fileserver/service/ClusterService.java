@@ -0,0 +1,300 @@
+package com.project.fileserver.service;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.project.fileserver.model.ClusterStatus;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.HashRing;
+import com.project.fileserver.utils.StoragePathResolver;
+
+import lombok.extern.log4j.Log4j2;
+
+// spreads buckets over the nodes of a cluster on a consistent hash ring; a
+// node serves the buckets it owns, sends requests for the others to their
+// owner and hands over folders of buckets it no longer owns
+@Service
+@Log4j2
+public class ClusterService {
+
+	// set on requests one node sends to another, which are always served
+	// where they arrive so two nodes with different views never bounce them;
+	// the signature, an hmac of the request with the shared secret, keeps
+	// clients from skipping the routing with the same header
+	public static final String NODE_HEADER = "X-Fileserver-Node";
+	public static final String SIGNATURE_HEADER = "X-Fileserver-Signature";
+
+	private static final String MAC = "HmacSHA256";
+	private static final int TAG_LENGTH = 6;
+	private static final long MAX_SKEW = 300000;
+
+	private FileserverService fileserverService;
+	private CommonServiceUtils commonService;
+	private StoragePathResolver paths;
+	private MetadataIndexService metadataIndex;
+	private HttpClient client;
+	private boolean enabled;
+	private String self;
+	private SecretKeySpec secret;
+	private boolean forwarding;
+	private int vnodes;
+	private volatile Map<String, String> nodes;
+	private volatile Map<String, String> tags;
+	private volatile HashRing ring;
+	private volatile long ringVersion;
+
+	public ClusterService(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active,
+			CommonServiceUtils commonService, StoragePathResolver paths, MetadataIndexService metadataIndex,
+			@Value("${cluster.enabled:false}") boolean enabled, @Value("${cluster.self:}") String self,
+			@Value("${cluster.nodes:}") String[] nodes, @Value("${cluster.secret:}") String secret,
+			@Value("${cluster.vnodes:128}") int vnodes, @Value("${cluster.routing:redirect}") String routing,
+			@Value("${cluster.timeout:10}") long timeout) {
+		this.fileserverService = beanFactory.getBean(active, FileserverService.class);
+		this.commonService = commonService;
+		this.paths = paths;
+		this.metadataIndex = metadataIndex;
+		this.enabled = enabled;
+		this.self = self;
+		this.forwarding = "forward".equals(routing);
+		this.vnodes = Math.max(1, vnodes);
+		this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(timeout)).followRedirects(HttpClient.Redirect.NEVER).build();
+		Map<String, String> members = new LinkedHashMap<>();
+		for (String node : nodes) {
+			String[] parts = node.trim().split("=", 2);
+			if (parts.length == 2) {
+				members.put(parts[0].trim(), parts[1].trim());
+			} else if (!node.isBlank()) {
+				throw new IllegalArgumentException("Invalid cluster node " + node + ", expected name=url");
+			}
+		}
+		if (enabled && (self.isEmpty() || members.isEmpty() || secret.isEmpty())) {
+			throw new IllegalStateException(
+					"cluster.self, cluster.nodes and cluster.secret are required in cluster mode");
+		}
+		this.secret = secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC);
+		setNodes(members);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public boolean isForwarding() {
+		return forwarding;
+	}
+
+	public String getSelf() {
+		return self;
+	}
+
+	public ClusterStatus getStatus() {
+		return new ClusterStatus(enabled, self, forwarding ? "forward" : "redirect", nodes);
+	}
+
+	// changes whenever the members are replaced, so a rebalance pass can tell
+	// whether the owners may have changed since the last one
+	public long getRingVersion() {
+		return ringVersion;
+	}
+
+	// replaces the members at runtime, e.g. when a node joins or is drained;
+	// a node that is not a member itself owns nothing
+	public synchronized void setNodes(Map<String, String> members) {
+		for (String url : members.values()) {
+			URI uri = URI.create(url);
+			if (uri.getScheme() == null || uri.getHost() == null) {
+				throw new IllegalArgumentException("Invalid cluster node url " + url);
+			}
+		}
+		Map<String, String> tags = new HashMap<>();
+		for (String node : members.keySet()) {
+			String other = tags.put(getTag(node), node);
+			if (other != null) {
+				throw new IllegalArgumentException("Cluster nodes " + other + " and " + node + " share an id tag");
+			}
+		}
+		this.ring = new HashRing(members.keySet(), vnodes);
+		this.tags = tags;
+		this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(members));
+		this.ringVersion++;
+		if (enabled) {
+			log.info("Cluster members of {}: {}", self, this.nodes);
+		}
+	}
+
+	public String getOwner(String bucket) {
+		if (!enabled) {
+			return self;
+		}
+		return ring.getOwner(commonService.refactorBucketName(bucket));
+	}
+
+	public boolean isLocal(String bucket) {
+		return !enabled || self.equals(getOwner(bucket));
+	}
+
+	// upload sessions and deletion jobs are kept by the node that started
+	// them, their ids end with a tag of that node so requests for them can be
+	// routed back to it
+	public String tagId(String id) {
+		return enabled ? id + getTag(self) : id;
+	}
+
+	// the member that started the session or job, null if it is unknown
+	public String getIdOwner(String id) {
+		if (!enabled || id.length() <= TAG_LENGTH) {
+			return null;
+		}
+		return tags.get(id.substring(id.length() - TAG_LENGTH));
+	}
+
+	public HttpClient getClient() {
+		return client;
+	}
+
+	public String getUrl(String node, String target) {
+		String url = nodes.get(node);
+		if (url == null) {
+			throw new IllegalArgumentException("Unknown cluster node " + node);
+		}
+		return url.replaceAll("/+$", "") + target;
+	}
+
+	// a request to another node, signed so that it is served there
+	public HttpRequest.Builder newRequest(String node, String method, String target, BodyPublisher body) {
+		String time = String.valueOf(System.currentTimeMillis());
+		return HttpRequest.newBuilder(URI.create(getUrl(node, target))).method(method, body)
+				.header(NODE_HEADER, self).header(SIGNATURE_HEADER, time + ":" + sign(self, method, target, time));
+	}
+
+	// whether a request was sent by a member, the target being the path
+	// below the context path and the query
+	public boolean isSignedByPeer(String node, String signature, String method, String target) {
+		if (!enabled || node == null || signature == null || !nodes.containsKey(node)) {
+			return false;
+		}
+		int separator = signature.indexOf(':');
+		if (separator < 0) {
+			return false;
+		}
+		String time = signature.substring(0, separator);
+		try {
+			if (Math.abs(System.currentTimeMillis() - Long.parseLong(time)) > MAX_SKEW) {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return MessageDigest.isEqual(sign(node, method, target, time).getBytes(StandardCharsets.US_ASCII),
+				signature.substring(separator + 1).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	// the same for a request that arrived here
+	public boolean isSignedByPeer(HttpServletRequest request) {
+		return isSignedByPeer(request.getHeader(NODE_HEADER), request.getHeader(SIGNATURE_HEADER),
+				request.getMethod(), getTarget(request));
+	}
+
+	// the path below the context path and the query, as it is signed
+	public String getTarget(HttpServletRequest request) {
+		String query = request.getQueryString();
+		return request.getRequestURI().substring(request.getContextPath().length())
+				+ (query == null ? "" : "?" + query);
+	}
+
+	public String getFolderTarget(RequiredObject requiredObject) {
+		return String.format("/api/cluster/folders?bucket=%s&id=%s",
+				URLEncoder.encode(requiredObject.getBucket(), StandardCharsets.UTF_8),
+				URLEncoder.encode(requiredObject.getFolderid(), StandardCharsets.UTF_8));
+	}
+
+	public String getFileTarget(RequiredObject requiredObject, String filename) {
+		return String.format("/api/download/file?bucket=%s&id=%s&filename=%s",
+				URLEncoder.encode(requiredObject.getBucket(), StandardCharsets.UTF_8),
+				URLEncoder.encode(requiredObject.getFolderid(), StandardCharsets.UTF_8),
+				URLEncoder.encode(filename, StandardCharsets.UTF_8));
+	}
+
+	// takes over a folder sent by its previous owner as a zip of its files;
+	// files that exist here already are kept, they were uploaded to this node
+	// since it owns the bucket, or stored by an earlier try of the handover
+	public int receive(RequiredObject requiredObject, InputStream content) throws Exception {
+		String folderid = requiredObject.getFolderid();
+		if (folderid.isEmpty() || folderid.contains("/") || folderid.contains("\\") || folderid.startsWith(".")) {
+			throw new IllegalArgumentException("Invalid folder id " + folderid);
+		}
+		RequiredObject target = new RequiredObject(commonService.refactorBucketName(requiredObject.getBucket()),
+				folderid);
+		if (metadataIndex.get(target) == null) {
+			Files.createDirectories(paths.getFolder(target));
+			metadataIndex.refresh(target);
+		}
+		int count = 0;
+		// every entry is streamed into its file and hashed on the way
+		try (ZipInputStream zipIn = new ZipInputStream(content)) {
+			ZipEntry entry;
+			while ((entry = zipIn.getNextEntry()) != null) {
+				Path name = Paths.get(entry.getName()).getFileName();
+				if (entry.isDirectory() || name == null || name.toString().startsWith(".")) {
+					continue;
+				}
+				try {
+					fileserverService.uploadFile(target, name.toString(), zipIn, false);
+					count++;
+				} catch (FileAlreadyExistsException e) {
+					log.info("Kept {} of {}/{} over the handed over copy", name, target.getBucket(), folderid);
+				}
+			}
+		}
+		return count;
+	}
+
+	private String sign(String node, String method, String target, String time) {
+		if (secret == null) {
+			throw new IllegalStateException("cluster.secret is not set");
+		}
+		try {
+			Mac mac = Mac.getInstance(MAC);
+			mac.init(secret);
+			byte[] signature = mac.doFinal(String.join("\n", node, method, target, time)
+					.getBytes(StandardCharsets.UTF_8));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String getTag(String node) {
+		return String.format("%06x", HashRing.hash(node) & 0xffffff);
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.project.fileserver.service;
+
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.project.fileserver.model.DeletionStatus;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+
+import lombok.extern.log4j.Log4j2;
+
+// deletes whole folders in the background; every job gets at most the
+// configured number of workers from a shared pool, which pull folders off the
+// job's list one at a time so huge batches never queue a task per folder
+@Service
+@Log4j2
+public class DeletionJobService {
+
+	private static final int MAX_FAILURES = 100;
+
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private FileserverService fileserverService;
+	private CommonServiceUtils commonService;
+	private ClusterService cluster;
+	private FileserverMetrics metrics;
+	private ExecutorService executor;
+	private int threads;
+	private Duration retention;
+	private volatile boolean closed;
+
+	public DeletionJobService(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active,
+			CommonServiceUtils commonService, ClusterService cluster, FileserverMetrics metrics,
+			@Value("${delete.threads:4}") int threads, @Value("${delete.jobs.retention:60}") int retention) {
+		this.fileserverService = beanFactory.getBean(active, FileserverService.class);
+		this.commonService = commonService;
+		this.cluster = cluster;
+		this.metrics = metrics;
+		this.threads = Math.max(1, threads);
+		this.retention = Duration.ofMinutes(retention);
+		this.executor = Executors.newFixedThreadPool(this.threads);
+	}
+
+	public DeletionStatus submit(String bucket, String folderids) {
+		List<String> folders = new ArrayList<>();
+		try {
+			JsonArray array = commonService.getFilenameList(folderids);
+			if (array != null) {
+				for (JsonElement element : array) {
+					folders.add(element.getAsString());
+				}
+			}
+		} catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+			throw new IllegalArgumentException("Invalid folder list", e);
+		}
+		if (folders.isEmpty()) {
+			throw new IllegalArgumentException("No folders to delete");
+		}
+		for (String folderid : folders) {
+			if (folderid.isEmpty() || folderid.contains("/") || folderid.contains("\\") || folderid.startsWith(".")) {
+				throw new IllegalArgumentException("Invalid folder id " + folderid);
+			}
+		}
+		expire();
+		Job job = new Job(cluster.tagId(commonService.generateUniqueId("delete")),
+				commonService.refactorBucketName(bucket), folders);
+		jobs.put(job.id, job);
+		for (int worker = Math.min(threads, folders.size()); worker > 0; worker--) {
+			executor.execute(job);
+		}
+		return job.status();
+	}
+
+	public DeletionStatus getStatus(String id) throws NoSuchFileException {
+		expire();
+		Job job = jobs.get(id);
+		if (job == null) {
+			throw new NoSuchFileException(id);
+		}
+		return job.status();
+	}
+
+	// workers finish the folder they are on and stop, a folder is never left
+	// half deleted by an interrupt
+	@PreDestroy
+	public void close() throws InterruptedException {
+		closed = true;
+		executor.shutdown();
+		if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+			executor.shutdownNow();
+		}
+	}
+
+	// finished jobs can be polled for a while, then they are forgotten
+	private void expire() {
+		Instant threshold = Instant.now().minus(retention);
+		jobs.values().removeIf(job -> job.finished != null && job.finished.isBefore(threshold));
+	}
+
+	private class Job implements Runnable {
+
+		private final String id;
+		private final String bucket;
+		private final List<String> folders;
+		private final long start = System.nanoTime();
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicInteger processed = new AtomicInteger();
+		private final AtomicInteger deleted = new AtomicInteger();
+		private final AtomicInteger missing = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private final List<String> failures = new ArrayList<>();
+		private volatile Instant finished;
+
+		private Job(String id, String bucket, List<String> folders) {
+			this.id = id;
+			this.bucket = bucket;
+			this.folders = folders;
+		}
+
+		@Override
+		public void run() {
+			int index;
+			while (!closed && (index = next.getAndIncrement()) < folders.size()) {
+				String folderid = folders.get(index);
+				try {
+					if (fileserverService.deleteFolder(new RequiredObject(bucket, folderid))) {
+						deleted.incrementAndGet();
+					} else {
+						missing.incrementAndGet();
+					}
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+					failed.incrementAndGet();
+					synchronized (failures) {
+						if (failures.size() < MAX_FAILURES) {
+							failures.add(String.format("%s: %s", folderid, e.getMessage()));
+						}
+					}
+				}
+				if (processed.incrementAndGet() == folders.size()) {
+					finished = Instant.now();
+					metrics.recordPass("purge", deleted.get(), System.nanoTime() - start);
+					log.info("Deletion job {} removed {} of {} folders, {} failed", id, deleted.get(),
+							folders.size(), failed.get());
+				}
+			}
+		}
+
+		private DeletionStatus status() {
+			synchronized (failures) {
+				return new DeletionStatus(id, bucket, folders.size(), deleted.get(), missing.get(), failed.get(),
+						finished != null, new ArrayList<>(failures));
+			}
+		}
+
+	}
+
+}
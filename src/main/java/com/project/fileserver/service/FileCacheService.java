@@ -0,0 +1,289 @@
+package com.project.fileserver.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import com.project.fileserver.model.CacheStatistics;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.CachedFileResource;
+import com.project.fileserver.utils.FolderLockManager;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Service
+public class FileCacheService implements MeterBinder {
+
+	// rough per entry overhead of the key, the value and the cache node
+	private static final int ENTRY_OVERHEAD = 256;
+
+	// entries are the cached files of a folder, so a folder is invalidated
+	// with a single removal; hits and misses are counted per file
+	private final Cache<FolderKey, Folder<CachedFile>> cache;
+	// encoded copies of files, kept apart from the content so large text files
+	// can have a compressed variant without their raw bytes being cached
+	private final Cache<FolderKey, Folder<Variant>> variants;
+	private final StatsCounter cacheStats = new ConcurrentStatsCounter();
+	private final StatsCounter variantStats = new ConcurrentStatsCounter();
+	// bumped by every invalidation so loads that raced with a write are dropped
+	private final AtomicLong epoch = new AtomicLong();
+	private FolderLockManager folderLocks;
+	private boolean enabled;
+	private long maxfilesize;
+
+	public FileCacheService(FolderLockManager folderLocks, @Value("${cache.enabled:true}") boolean enabled,
+			@Value("${cache.maxsize:67108864}") long maxsize, @Value("${cache.maxfilesize:262144}") long maxfilesize,
+			@Value("${cache.variants.maxsize:33554432}") long variantsize) {
+		this.folderLocks = folderLocks;
+		this.enabled = enabled && maxsize > 0;
+		this.maxfilesize = Math.min(maxfilesize, Integer.MAX_VALUE - ENTRY_OVERHEAD);
+		// caffeine evicts by frequency as well as recency (W-TinyLFU), so a
+		// burst of one-off downloads does not flush the hot set
+		// maintenance runs on the calling thread instead of the common pool
+		this.cache = Caffeine.newBuilder().maximumWeight(Math.max(0, maxsize))
+				.weigher((FolderKey key, Folder<CachedFile> value) -> value.getWeight())
+				.executor(Runnable::run).recordStats(() -> cacheStats).build();
+		this.variants = Caffeine.newBuilder().maximumWeight(enabled ? Math.max(0, variantsize) : 0)
+				.weigher((FolderKey key, Folder<Variant> value) -> value.getWeight())
+				.executor(Runnable::run).recordStats(() -> variantStats).build();
+	}
+
+	// cached content only, never touches the disk
+	public Resource getIfPresent(RequiredObject requiredObject, String filename) {
+		if (!enabled) {
+			return null;
+		}
+		CachedFile cached = get(cache, cacheStats, getKey(requiredObject), filename);
+		return cached == null ? null : new CachedFileResource(cached.content, filename, cached.lastModified);
+	}
+
+	// reads a file after a miss, small files are kept for the next request
+	public Resource load(RequiredObject requiredObject, String filename, Path path) throws IOException {
+		if (!enabled) {
+			return new FileSystemResource(path);
+		}
+		long current = epoch.get();
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return new FileSystemResource(path);
+		}
+		if (!attributes.isRegularFile() || attributes.size() > maxfilesize) {
+			return new FileSystemResource(path);
+		}
+		FolderKey key = getKey(requiredObject);
+		CachedFile file = new CachedFile(Files.readAllBytes(path), attributes.lastModifiedTime().toMillis());
+		put(cache, key, filename, file);
+		if (epoch.get() != current) {
+			remove(cache, key, filename);
+		}
+		return new CachedFileResource(file.content, filename, file.lastModified);
+	}
+
+	// the encoded form of a file, encoded again whenever the file changed;
+	// a file keeps a single variant, clients of one deployment tend to agree
+	// on the encoding. Concurrent requests for a file that is not encoded yet
+	// wait for the first one instead of all encoding it
+	public byte[] getVariant(RequiredObject requiredObject, Resource resource, String encoding, Encoder encoder)
+			throws IOException {
+		FolderKey key = getKey(requiredObject);
+		String filename = resource.getFilename();
+		long lastModified = resource.lastModified();
+		long length = resource.contentLength();
+		Variant variant = get(variants, variantStats, key, filename);
+		if (variant != null && variant.matches(encoding, lastModified, length)) {
+			return variant.content;
+		}
+		try {
+			variant = folderLocks.singleFlight(requiredObject, filename,
+					() -> encode(key, resource, encoding, encoder, lastModified, length));
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		// the flight that was joined may have encoded an older version
+		if (!variant.matches(encoding, lastModified, length)) {
+			variant = encode(key, resource, encoding, encoder, lastModified, length);
+		}
+		return variant.content;
+	}
+
+	public void invalidate(RequiredObject requiredObject, String filename) {
+		epoch.incrementAndGet();
+		FolderKey key = getKey(requiredObject);
+		remove(cache, key, filename);
+		remove(variants, key, filename);
+	}
+
+	public void invalidate(RequiredObject requiredObject) {
+		epoch.incrementAndGet();
+		FolderKey key = getKey(requiredObject);
+		cache.invalidate(key);
+		variants.invalidate(key);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, cache, "files");
+		CaffeineCacheMetrics.monitor(registry, variants, "variants");
+	}
+
+	public CacheStatistics getStatistics() {
+		CacheStats stats = cache.stats();
+		long size = cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+		long files = cache.asMap().values().stream().mapToLong(folder -> folder.files.size()).sum();
+		return new CacheStatistics(stats.hitCount(), stats.missCount(), stats.evictionCount(), files, size);
+	}
+
+	private Variant encode(FolderKey key, Resource resource, String encoding, Encoder encoder, long lastModified,
+			long length) throws IOException {
+		long current = epoch.get();
+		byte[] content;
+		try (InputStream in = resource.getInputStream()) {
+			content = encoder.encode(in);
+		}
+		Variant variant = new Variant(content, encoding, lastModified, length);
+		put(variants, key, resource.getFilename(), variant);
+		if (epoch.get() != current) {
+			remove(variants, key, resource.getFilename());
+		}
+		return variant;
+	}
+
+	// the map view of the cache records no statistics of its own
+	private <T extends Weighted> T get(Cache<FolderKey, Folder<T>> cache, StatsCounter stats, FolderKey key,
+			String filename) {
+		Folder<T> folder = cache.asMap().get(key);
+		T value = folder == null ? null : folder.files.get(filename);
+		if (value == null) {
+			stats.recordMisses(1);
+		} else {
+			stats.recordHits(1);
+		}
+		return value;
+	}
+
+	// folders are replaced rather than changed so the cache weighs them again
+	private <T extends Weighted> void put(Cache<FolderKey, Folder<T>> cache, FolderKey key, String filename,
+			T value) {
+		cache.asMap().compute(key, (k, folder) -> (folder == null ? new Folder<T>(Collections.emptyMap()) : folder)
+				.with(filename, value));
+	}
+
+	private <T extends Weighted> void remove(Cache<FolderKey, Folder<T>> cache, FolderKey key, String filename) {
+		cache.asMap().computeIfPresent(key, (k, folder) -> folder.without(filename));
+	}
+
+	private FolderKey getKey(RequiredObject requiredObject) {
+		return new FolderKey(requiredObject.getBucket(), requiredObject.getFolderid());
+	}
+
+	@Data
+	@AllArgsConstructor
+	private static class FolderKey {
+
+		private String bucket;
+		private String folderid;
+
+	}
+
+	private static class Folder<T extends Weighted> {
+
+		private final Map<String, T> files;
+		private final long weight;
+
+		private Folder(Map<String, T> files) {
+			this.files = files;
+			this.weight = files.values().stream().mapToLong(Weighted::getWeight).sum();
+		}
+
+		private int getWeight() {
+			return (int) Math.min(Integer.MAX_VALUE, weight);
+		}
+
+		private Folder<T> with(String filename, T value) {
+			Map<String, T> files = new HashMap<>(this.files);
+			files.put(filename, value);
+			return new Folder<>(files);
+		}
+
+		// null once the last file is gone, which removes the folder
+		private Folder<T> without(String filename) {
+			if (!files.containsKey(filename)) {
+				return this;
+			}
+			Map<String, T> files = new HashMap<>(this.files);
+			files.remove(filename);
+			return files.isEmpty() ? null : new Folder<>(files);
+		}
+
+	}
+
+	private interface Weighted {
+
+		long getWeight();
+
+	}
+
+	@AllArgsConstructor
+	private static class CachedFile implements Weighted {
+
+		private final byte[] content;
+		private final long lastModified;
+
+		@Override
+		public long getWeight() {
+			return content.length + ENTRY_OVERHEAD;
+		}
+
+	}
+
+	@AllArgsConstructor
+	private static class Variant implements Weighted {
+
+		private final byte[] content;
+		private final String encoding;
+		private final long lastModified;
+		private final long length;
+
+		@Override
+		public long getWeight() {
+			return content.length + ENTRY_OVERHEAD;
+		}
+
+		private boolean matches(String encoding, long lastModified, long length) {
+			return this.encoding.equals(encoding) && this.lastModified == lastModified && this.length == length;
+		}
+
+	}
+
+	public interface Encoder {
+
+		byte[] encode(InputStream in) throws IOException;
+
+	}
+
+}
@@ -1,7 +1,11 @@
 package com.project.fileserver.service;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
 
+import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.project.fileserver.model.RequiredObject;
@@ -12,8 +16,21 @@ public interface FileserverService {
 
 	public boolean uploadFiles(RequiredObject requiredObject, MultipartFile[] files, boolean replace) throws Exception;
 
+	public long uploadFile(RequiredObject requiredObject, String filename, InputStream content, boolean replace)
+			throws Exception;
+
+	public boolean importFile(RequiredObject requiredObject, String filename, Path source, boolean replace)
+			throws Exception;
+
 	public File downloadFiles(RequiredObject requiredObject, String filenames) throws Exception;
 
+	public List<Resource> getFiles(RequiredObject requiredObject, String filenames) throws Exception;
+
+	// sha-256 of the file as recorded when it was written, null when unknown
+	public String getChecksum(RequiredObject requiredObject, String filename) throws Exception;
+
 	public boolean deleteFiles(RequiredObject requiredObject, String filenames) throws Exception;
 
+	public boolean deleteFolder(RequiredObject requiredObject) throws Exception;
+
 }
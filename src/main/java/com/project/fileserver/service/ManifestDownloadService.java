@@ -0,0 +1,310 @@
+package com.project.fileserver.service;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.project.fileserver.model.ManifestEntry;
+import com.project.fileserver.model.ManifestError;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.RemoteFileResource;
+
+import lombok.extern.log4j.Log4j2;
+
+// serves files from many folders as one zip: folders are resolved in
+// parallel, live or archived, and their files are written as soon as their
+// folder is ready. Files of buckets owned by another node are fetched from
+// it. Entries are named <bucket>/<id>/<filename> and the files that could not
+// be served are listed in a final errors.json entry
+@Service
+@Log4j2
+public class ManifestDownloadService {
+
+	public static final String ERRORS = "errors.json";
+
+	private final Gson gson = new Gson();
+	private FileserverService fileserverService;
+	private CommonServiceUtils commonService;
+	private ClusterService cluster;
+	private FolderLockManager folderLocks;
+	private FileserverMetrics metrics;
+	private ExecutorService executor;
+	private int threads;
+	private int maxfolders;
+	private int buffersize;
+	private int level;
+
+	public ManifestDownloadService(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active,
+			CommonServiceUtils commonService, ClusterService cluster, FolderLockManager folderLocks,
+			FileserverMetrics metrics,
+			@Value("${download.manifest.threads:8}") int threads,
+			@Value("${download.manifest.maxfolders:1000}") int maxfolders,
+			@Value("${download.buffersize:65536}") int buffersize, @Value("${download.zip.level:1}") int level) {
+		this.fileserverService = beanFactory.getBean(active, FileserverService.class);
+		this.commonService = commonService;
+		this.cluster = cluster;
+		this.folderLocks = folderLocks;
+		this.metrics = metrics;
+		this.threads = Math.max(1, threads);
+		this.maxfolders = maxfolders;
+		this.buffersize = buffersize;
+		this.level = level;
+		this.executor = Executors.newFixedThreadPool(this.threads);
+	}
+
+	// [{"bucket": "...", "id": "...", "filenames": ["..."]}, ...]
+	public List<ManifestEntry> parse(String manifest) {
+		ManifestEntry[] entries;
+		try {
+			entries = gson.fromJson(manifest, ManifestEntry[].class);
+		} catch (JsonParseException e) {
+			throw new IllegalArgumentException("Invalid manifest", e);
+		}
+		if (entries == null || entries.length == 0) {
+			throw new IllegalArgumentException("Empty manifest");
+		}
+		if (entries.length > maxfolders) {
+			throw new IllegalArgumentException("More than " + maxfolders + " folders in the manifest");
+		}
+		for (ManifestEntry entry : entries) {
+			if (entry == null || isInvalid(entry.getBucket()) || isInvalid(entry.getId())
+					|| entry.getFilenames() == null || entry.getFilenames().isEmpty()) {
+				throw new IllegalArgumentException("Invalid manifest entry " + entry);
+			}
+			for (String filename : entry.getFilenames()) {
+				if (isInvalid(filename)) {
+					throw new IllegalArgumentException("Invalid filename " + filename);
+				}
+			}
+		}
+		return Arrays.asList(entries);
+	}
+
+	// returns the number of bytes written
+	public long write(List<ManifestEntry> entries, OutputStream out) throws IOException {
+		long start = System.nanoTime();
+		long total = 0;
+		List<ManifestError> errors = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		CountingOutputStream target = new CountingOutputStream(out);
+		CompletionService<Folder> completion = new ExecutorCompletionService<>(executor);
+		List<Future<Folder>> pending = new ArrayList<>();
+		// leases of the folders resolved but not written yet, released when
+		// the download ends however it ends
+		Set<FolderLock> leases = ConcurrentHashMap.newKeySet();
+		AtomicBoolean finished = new AtomicBoolean();
+		// not closed when the download fails, a finished zip would make the
+		// entries written so far look complete
+		ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(target, buffersize));
+		try {
+			zipOut.setLevel(level);
+			byte[] bytes = new byte[buffersize];
+			// a few folders are resolved ahead of the writer, not the whole
+			// manifest at once
+			int next = 0;
+			for (; next < entries.size() && next < threads * 2; next++) {
+				pending.add(completion.submit(resolve(entries.get(next), leases, finished)));
+			}
+			for (int done = 0; done < entries.size(); done++) {
+				Folder folder = take(completion);
+				if (next < entries.size()) {
+					pending.add(completion.submit(resolve(entries.get(next++), leases, finished)));
+				}
+				List<String> filenames = folder.entry.getFilenames();
+				for (int index = 0; index < filenames.size(); index++) {
+					String filename = filenames.get(index);
+					if (folder.error != null) {
+						errors.add(new ManifestError(folder.bucket, folder.entry.getId(), filename, folder.error));
+						continue;
+					}
+					String name = String.format("%s/%s/%s", folder.bucket, folder.entry.getId(), filename);
+					Resource resource = folder.resources.get(index);
+					if (!names.add(name)) {
+						errors.add(new ManifestError(folder.bucket, folder.entry.getId(), filename, "Duplicate entry"));
+					} else if (resource == null || !resource.exists()) {
+						errors.add(new ManifestError(folder.bucket, folder.entry.getId(), filename, "Not found"));
+					} else {
+						// opened and read from before the entry is started, a file
+						// that cannot be read is left out of the zip; once the entry
+						// has been started a failure ends the whole download, as its
+						// checksum would otherwise be valid for what was written
+						InputStream in = null;
+						int length;
+						try {
+							in = resource.getInputStream();
+							length = in.read(bytes);
+						} catch (IOException e) {
+							closeQuietly(in);
+							errors.add(new ManifestError(folder.bucket, folder.entry.getId(), filename,
+									e.getMessage()));
+							continue;
+						}
+						try (InputStream source = in) {
+							ZipEntry zipEntry = new ZipEntry(name);
+							zipEntry.setTime(resource.lastModified());
+							zipOut.putNextEntry(zipEntry);
+							while (length >= 0) {
+								zipOut.write(bytes, 0, length);
+								total += length;
+								length = source.read(bytes);
+							}
+							zipOut.closeEntry();
+						}
+					}
+				}
+				if (folder.lease != null) {
+					folder.lease.close();
+					leases.remove(folder.lease);
+				}
+			}
+			zipOut.putNextEntry(new ZipEntry(ERRORS));
+			zipOut.write(gson.toJson(errors).getBytes(StandardCharsets.UTF_8));
+			zipOut.closeEntry();
+			zipOut.close();
+		} finally {
+			// nothing is left running when the client goes away
+			pending.forEach(future -> future.cancel(true));
+			finished.set(true);
+			leases.forEach(FolderLock::close);
+		}
+		metrics.recordZip(total, System.nanoTime() - start);
+		return target.count;
+	}
+
+	@PreDestroy
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private Callable<Folder> resolve(ManifestEntry entry, Set<FolderLock> leases, AtomicBoolean finished) {
+		return () -> {
+			RequiredObject requiredObject = new RequiredObject(entry.getBucket(), entry.getId());
+			String owner = cluster.getOwner(entry.getBucket());
+			if (owner != null && !owner.equals(cluster.getSelf())) {
+				requiredObject.setBucket(commonService.refactorBucketName(entry.getBucket()));
+				List<Resource> resources = new ArrayList<>();
+				for (String filename : entry.getFilenames()) {
+					resources.add(new RemoteFileResource(cluster, owner, requiredObject, filename));
+				}
+				return new Folder(entry, requiredObject.getBucket(), resources, null, null);
+			}
+			// keeps the folder from being archived or deleted until its files
+			// have been written
+			FolderLock lease = folderLocks.lease(new RequiredObject(
+					commonService.refactorBucketName(entry.getBucket()), entry.getId()));
+			leases.add(lease);
+			if (finished.get()) {
+				lease.close();
+			}
+			try {
+				List<Resource> resources = fileserverService.getFiles(requiredObject,
+						gson.toJson(entry.getFilenames()));
+				// the bucket name has been normalized on the way in
+				return new Folder(entry, requiredObject.getBucket(), resources, null, lease);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				return new Folder(entry, requiredObject.getBucket(), null,
+						e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage(), lease);
+			}
+		};
+	}
+
+	private Folder take(CompletionService<Folder> completion) throws IOException {
+		try {
+			return completion.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while resolving the manifest", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void closeQuietly(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private boolean isInvalid(String name) {
+		return name == null || name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".");
+	}
+
+	private static class Folder {
+
+		private final ManifestEntry entry;
+		private final String bucket;
+		private final List<Resource> resources;
+		private final String error;
+		private final FolderLock lease;
+
+		private Folder(ManifestEntry entry, String bucket, List<Resource> resources, String error,
+				FolderLock lease) {
+			this.entry = entry;
+			this.bucket = bucket;
+			this.resources = resources;
+			this.error = error;
+			this.lease = lease;
+		}
+
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+	}
+
+}
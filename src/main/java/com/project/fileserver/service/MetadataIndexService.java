@@ -0,0 +1,360 @@
+package com.project.fileserver.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.PreDestroy;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.Gson;
+import com.project.fileserver.model.FolderMetadata;
+import com.project.fileserver.model.FolderMetadata.State;
+import com.project.fileserver.model.PackEntry;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.StoragePathResolver;
+
+import lombok.extern.log4j.Log4j2;
+
+@Service
+@Log4j2
+public class MetadataIndexService {
+
+	private static final String CLEAN = "clean";
+	private static final String CHECKPOINT = "checkpoint/";
+
+	private final Gson gson = new Gson();
+	private final MVStore store;
+	// bucket/folderid -> metadata
+	private final MVMap<String, String> records;
+	// state/last access/bucket/folderid, ordered so age ranges are a key range
+	private final MVMap<String, String> ages;
+	private final MVMap<String, String> meta;
+	private StoragePathResolver paths;
+	private PackStoreService packStore;
+	private volatile boolean ready;
+
+	public MetadataIndexService(StoragePathResolver paths, PackStoreService packStore,
+			@Value("${metadata.path:/fileserver/metadata/index.mv.db}") String indexpath,
+			@Value("${metadata.rebuild:false}") boolean rebuild) throws IOException {
+		this.paths = paths;
+		this.packStore = packStore;
+		Path path = Paths.get(indexpath);
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		this.store = new MVStore.Builder().fileName(path.toString()).open();
+		this.records = store.openMap("records");
+		this.ages = store.openMap("ages");
+		this.meta = store.openMap("meta");
+		// the marker is only present after a clean shutdown, anything else may
+		// have lost the last few uncommitted updates
+		boolean clean = meta.remove(CLEAN) != null;
+		store.commit();
+		if (clean && !rebuild) {
+			ready = true;
+		} else {
+			clear();
+			Thread thread = new Thread(this::populate, "metadata-rebuild");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public FolderMetadata get(RequiredObject requiredObject) {
+		String value = records.get(getKey(requiredObject.getBucket(), requiredObject.getFolderid()));
+		return value == null ? null : gson.fromJson(value, FolderMetadata.class);
+	}
+
+	// applies a change that is already on disk, folders that are not indexed
+	// yet are read from disk instead
+	public synchronized void add(RequiredObject requiredObject, long size, int files) {
+		FolderMetadata metadata = get(requiredObject);
+		if (metadata == null) {
+			refresh(requiredObject);
+			return;
+		}
+		metadata.setSize(Math.max(0, metadata.getSize() + size));
+		metadata.setFiles(Math.max(0, metadata.getFiles() + files));
+		put(metadata);
+	}
+
+	public synchronized void touch(RequiredObject requiredObject, long time) {
+		FolderMetadata metadata = load(requiredObject);
+		if (metadata != null && time > metadata.getLastAccess()) {
+			metadata.setLastAccess(time);
+			put(metadata);
+		}
+	}
+
+	public synchronized void touch(Map<RequiredObject, Long> accesses) {
+		accesses.forEach(this::touch);
+	}
+
+	// archives age from the moment they are written, like the zip timestamp
+	public synchronized void archived(RequiredObject requiredObject, long time) {
+		FolderMetadata metadata = load(requiredObject);
+		if (metadata == null) {
+			return;
+		}
+		metadata.setState(State.ARCHIVED);
+		metadata.setLastAccess(time);
+		put(metadata);
+	}
+
+	public synchronized void remove(RequiredObject requiredObject) {
+		String key = getKey(requiredObject.getBucket(), requiredObject.getFolderid());
+		String value = records.remove(key);
+		if (value != null) {
+			ages.remove(getAgeKey(gson.fromJson(value, FolderMetadata.class)));
+		}
+	}
+
+	// re-reads a single folder from disk
+	public synchronized void refresh(RequiredObject requiredObject) {
+		FolderMetadata metadata = scan(requiredObject.getBucket(), requiredObject.getFolderid());
+		if (metadata == null) {
+			remove(requiredObject);
+		} else {
+			put(metadata);
+		}
+	}
+
+	// folders in the given state last accessed at or before the given time,
+	// oldest first; the iteration works on a snapshot so callers may update
+	// the index while consuming it
+	public Stream<FolderMetadata> find(State state, long before) {
+		return find(state, before, null);
+	}
+
+	// continues after the position of a folder returned by an earlier find
+	public Stream<FolderMetadata> find(State state, long before, String after) {
+		String prefix = state.name() + "/";
+		String end = getAgeKey(state, before + 1, "");
+		String from = after == null ? prefix : prefix + after;
+		Iterator<String> keys = ages.keyIterator(from);
+		Iterator<FolderMetadata> iterator = new Iterator<FolderMetadata>() {
+
+			private FolderMetadata next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && keys.hasNext()) {
+					String key = keys.next();
+					if (!key.startsWith(prefix) || key.compareTo(end) >= 0) {
+						return false;
+					}
+					if (after != null && key.equals(from)) {
+						continue;
+					}
+					String record = records.get(key.substring(end.length()));
+					next = record == null ? null : gson.fromJson(record, FolderMetadata.class);
+				}
+				return next != null;
+			}
+
+			@Override
+			public FolderMetadata next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				FolderMetadata result = next;
+				next = null;
+				return result;
+			}
+
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+	}
+
+	// where a folder sorts among the folders in its state, for checkpoints
+	public String getPosition(FolderMetadata metadata) {
+		return getAgeKey(metadata).substring(metadata.getState().name().length() + 1);
+	}
+
+	public String getCheckpoint(String name) {
+		return meta.get(CHECKPOINT + name);
+	}
+
+	public void setCheckpoint(String name, String position) {
+		if (position == null) {
+			meta.remove(CHECKPOINT + name);
+		} else {
+			meta.put(CHECKPOINT + name, position);
+		}
+	}
+
+	public void rebuild() {
+		clear();
+		populate();
+	}
+
+	@PreDestroy
+	public void close() {
+		if (ready) {
+			meta.put(CLEAN, Boolean.TRUE.toString());
+		}
+		store.close();
+	}
+
+	private void populate() {
+		long start = System.currentTimeMillis();
+		try {
+			// live folders win over archives left behind by an interrupted
+			// archival or rehydration, the same way reads resolve them
+			crawl(paths.getLocalRoot(), true, this::putIfAbsent);
+			crawl(paths.getArchivalRoot(), false, this::putIfAbsent);
+			packStore.forEach(this::putIfAbsent);
+			store.commit();
+			ready = true;
+			log.info("Metadata index rebuilt with {} folders in {} ms", records.size(),
+					System.currentTimeMillis() - start);
+		} catch (IOException | RuntimeException e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	private synchronized void clear() {
+		ready = false;
+		records.clear();
+		ages.clear();
+	}
+
+	private void crawl(Path root, boolean folders, Consumer<RequiredObject> consumer) throws IOException {
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+		try (Stream<Path> buckets = Files.list(root).filter(path -> Files.isDirectory(path) && !isHidden(path))) {
+			for (Path bucket : (Iterable<Path>) buckets::iterator) {
+				String name = bucket.getFileName().toString();
+				paths.forEachEntry(bucket, entry -> {
+					String entryName = entry.getFileName().toString();
+					if (folders && Files.isDirectory(entry)) {
+						consumer.accept(new RequiredObject(name, entryName));
+					} else if (!folders && entryName.endsWith(".zip") && Files.isRegularFile(entry)) {
+						consumer.accept(new RequiredObject(name, entryName.substring(0, entryName.length() - 4)));
+					}
+				});
+			}
+		}
+	}
+
+	private FolderMetadata load(RequiredObject requiredObject) {
+		FolderMetadata metadata = get(requiredObject);
+		if (metadata == null) {
+			refresh(requiredObject);
+			metadata = get(requiredObject);
+		}
+		return metadata;
+	}
+
+	private synchronized void putIfAbsent(RequiredObject requiredObject) {
+		if (!records.containsKey(getKey(requiredObject.getBucket(), requiredObject.getFolderid()))) {
+			refresh(requiredObject);
+		}
+	}
+
+	private void put(FolderMetadata metadata) {
+		String key = getKey(metadata.getBucket(), metadata.getFolderid());
+		String previous = records.put(key, gson.toJson(metadata));
+		if (previous != null) {
+			ages.remove(getAgeKey(gson.fromJson(previous, FolderMetadata.class)));
+		}
+		ages.put(getAgeKey(metadata), "");
+	}
+
+	private FolderMetadata scan(String bucket, String folderid) {
+		try {
+			Path folder = paths.getFolder(bucket, folderid);
+			if (Files.isDirectory(folder)) {
+				long size = 0;
+				int files = 0;
+				try (Stream<Path> paths = Files.list(folder)) {
+					for (Path path : (Iterable<Path>) paths::iterator) {
+						if (!isHidden(path) && Files.isRegularFile(path)) {
+							size += Files.size(path);
+							files++;
+						}
+					}
+				}
+				return new FolderMetadata(bucket, folderid, size, files, Files.getLastModifiedTime(folder).toMillis(),
+						State.LIVE);
+			}
+			Path archive = paths.getArchive(bucket, folderid);
+			if (Files.isRegularFile(archive)) {
+				long size = 0;
+				int files = 0;
+				try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+					Enumeration<? extends ZipEntry> entries = zipFile.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry entry = entries.nextElement();
+						if (!entry.isDirectory() && !isHidden(entry)) {
+							size += entry.getSize();
+							files++;
+						}
+					}
+				}
+				Path links = paths.getLinks(bucket, folderid);
+				if (Files.isDirectory(links)) {
+					try (Stream<Path> paths = Files.list(links)) {
+						for (Path path : (Iterable<Path>) paths::iterator) {
+							size += Files.size(path);
+							files++;
+						}
+					}
+				}
+				return new FolderMetadata(bucket, folderid, size, files, Files.getLastModifiedTime(archive).toMillis(),
+						State.ARCHIVED);
+			}
+			PackEntry entry = packStore.get(bucket, folderid);
+			if (entry != null) {
+				return new FolderMetadata(bucket, folderid, entry.getSize(), entry.getFiles(), entry.getLastAccess(),
+						State.ARCHIVED);
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+		return null;
+	}
+
+	private boolean isHidden(Path path) {
+		return path.getFileName().toString().startsWith(".");
+	}
+
+	private boolean isHidden(ZipEntry entry) {
+		String name = entry.getName();
+		return name.startsWith(".") || name.contains("/.");
+	}
+
+	private String getKey(String bucket, String folderid) {
+		return String.format("%s/%s", bucket, folderid);
+	}
+
+	private String getAgeKey(FolderMetadata metadata) {
+		return getAgeKey(metadata.getState(), metadata.getLastAccess(),
+				getKey(metadata.getBucket(), metadata.getFolderid()));
+	}
+
+	private String getAgeKey(State state, long time, String key) {
+		return String.format("%s/%019d/%s", state.name(), Math.max(0, time), key);
+	}
+
+}
@@ -0,0 +1,446 @@
+package com.project.fileserver.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.Gson;
+import com.project.fileserver.model.PackEntry;
+import com.project.fileserver.model.RequiredObject;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+// archives of small folders are appended to large segment files, one run of
+// segments per bucket, instead of each becoming a zip file of its own. An
+// index maps every folder to its record; each record also starts with its
+// folder id, so a segment can be walked without the index, which is how
+// compaction finds the records it still has to move
+@Service
+@Log4j2
+public class PackStoreService {
+
+	// "FSPK"
+	private static final int MAGIC = 0x4653504b;
+	private static final String SEQUENCE = "sequence";
+
+	private final Gson gson = new Gson();
+	private final MVStore store;
+	// bucket/folderid -> entry
+	private final MVMap<String, String> folders;
+	// bucket/segment -> bytes written and bytes still referenced
+	private final MVMap<String, String> segments;
+	private final MVMap<String, String> meta;
+	// bucket -> segment appended to; a restart begins new segments so nothing
+	// is ever appended behind a record torn by a crash
+	private final Map<String, String> active = new ConcurrentHashMap<>();
+	// writes of a bucket are serialized on its appender, writes of different
+	// buckets run side by side
+	private final Map<String, Appender> appenders = new ConcurrentHashMap<>();
+	private Path root;
+	private boolean enabled;
+	private long maxsize;
+	private long segmentsize;
+	private double ratio;
+
+	public PackStoreService(
+			@Value("${executors.archival.pack.path:${executors.archival.path:/fileserver/archives}/.packs}")
+			String packpath,
+			@Value("${executors.archival.pack.enabled:true}") boolean enabled,
+			@Value("${executors.archival.pack.maxsize:262144}") long maxsize,
+			@Value("${executors.archival.pack.segmentsize:268435456}") long segmentsize,
+			@Value("${executors.archival.pack.ratio:0.5}") double ratio) throws IOException {
+		this.root = Paths.get(packpath);
+		Files.createDirectories(root);
+		this.store = new MVStore.Builder().fileName(root.resolve("index.mv.db").toString()).open();
+		this.folders = store.openMap("folders");
+		this.segments = store.openMap("segments");
+		this.meta = store.openMap("meta");
+		this.enabled = enabled;
+		this.maxsize = maxsize;
+		this.segmentsize = segmentsize;
+		this.ratio = ratio;
+	}
+
+	// whether a folder archive of the given length goes into a pack; folders
+	// that were packed before stay readable when packing is turned off
+	public boolean accepts(long length) {
+		return enabled && length <= maxsize;
+	}
+
+	public boolean contains(RequiredObject requiredObject) {
+		return folders.containsKey(getKey(requiredObject.getBucket(), requiredObject.getFolderid()));
+	}
+
+	public PackEntry get(String bucket, String folderid) {
+		String value = folders.get(getKey(bucket, folderid));
+		return value == null ? null : gson.fromJson(value, PackEntry.class);
+	}
+
+	public void forEach(Consumer<RequiredObject> consumer) {
+		for (String key : folders.keySet()) {
+			int slash = key.indexOf('/');
+			consumer.accept(new RequiredObject(key.substring(0, slash), key.substring(slash + 1)));
+		}
+	}
+
+	// the record is on disk and in the index when this returns, so the
+	// caller may remove the folder
+	public PackEntry append(RequiredObject requiredObject, Path archive, long size, int files, long time)
+			throws IOException {
+		PackEntry entry = write(requiredObject.getBucket(), requiredObject.getFolderid(),
+				Files.readAllBytes(archive), size, files, time);
+		store.commit();
+		return entry;
+	}
+
+	// the zip of a packed folder, null when it is not packed
+	public byte[] read(RequiredObject requiredObject) throws IOException {
+		String bucket = requiredObject.getBucket();
+		String folderid = requiredObject.getFolderid();
+		PackEntry entry = get(bucket, folderid);
+		try {
+			return entry == null ? null : read(bucket, folderid, entry);
+		} catch (NoSuchFileException e) {
+			// compaction moved the record and dropped its segment meanwhile
+			PackEntry current = get(bucket, folderid);
+			if (current == null || current.getSegment().equals(entry.getSegment())) {
+				throw e;
+			}
+			return read(bucket, folderid, current);
+		}
+	}
+
+	public boolean remove(RequiredObject requiredObject) {
+		String bucket = requiredObject.getBucket();
+		String folderid = requiredObject.getFolderid();
+		synchronized (getAppender(bucket)) {
+			String previous = folders.remove(getKey(bucket, folderid));
+			if (previous == null) {
+				return false;
+			}
+			release(bucket, folderid, gson.fromJson(previous, PackEntry.class));
+			return true;
+		}
+	}
+
+	// packed folders have no file whose timestamp could keep the last access
+	public void touch(RequiredObject requiredObject, long time) {
+		synchronized (getAppender(requiredObject.getBucket())) {
+			PackEntry entry = get(requiredObject.getBucket(), requiredObject.getFolderid());
+			if (entry != null && time > entry.getLastAccess()) {
+				entry.setLastAccess(time);
+				folders.put(getKey(requiredObject.getBucket(), requiredObject.getFolderid()), gson.toJson(entry));
+			}
+		}
+	}
+
+	// bucket/segment keys of segments that are no longer appended to and
+	// whose live records fill less than the configured share of them
+	public List<String> getCompactable() {
+		List<String> result = new ArrayList<>();
+		for (Map.Entry<String, String> entry : segments.entrySet()) {
+			String key = entry.getKey();
+			int slash = key.indexOf('/');
+			if (key.substring(slash + 1).equals(active.get(key.substring(0, slash)))) {
+				continue;
+			}
+			Segment segment = gson.fromJson(entry.getValue(), Segment.class);
+			if (segment.live < segment.total * ratio) {
+				result.add(key);
+			}
+		}
+		return result;
+	}
+
+	// folders whose current record is in the segment, in segment order
+	public List<RequiredObject> getFolders(String key) throws IOException {
+		int slash = key.indexOf('/');
+		String bucket = key.substring(0, slash);
+		String segment = key.substring(slash + 1);
+		List<RequiredObject> result = new ArrayList<>();
+		Path path = getSegmentPath(bucket, segment);
+		if (!Files.exists(path)) {
+			return result;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536))) {
+			long position = 0;
+			while (true) {
+				int magic = in.readInt();
+				if (magic != MAGIC) {
+					log.warn("Segment {} has no record at {}", path, position);
+					break;
+				}
+				byte[] id = new byte[in.readUnsignedShort()];
+				in.readFully(id);
+				long length = in.readLong();
+				position += getHeaderLength(id.length);
+				String folderid = new String(id, StandardCharsets.UTF_8);
+				PackEntry entry = get(bucket, folderid);
+				if (entry != null && entry.getSegment().equals(segment) && entry.getOffset() == position) {
+					result.add(new RequiredObject(bucket, folderid));
+				}
+				skip(in, length);
+				position += length;
+			}
+		} catch (EOFException e) {
+			// the end of the segment, or the tail of a record that was being
+			// written during a crash
+		}
+		return result;
+	}
+
+	// copies the record of a folder out of the segment to the end of its
+	// bucket's current segment; false when it is not in that segment anymore
+	public boolean relocate(RequiredObject requiredObject, String key) throws IOException {
+		String bucket = requiredObject.getBucket();
+		String folderid = requiredObject.getFolderid();
+		PackEntry entry = get(bucket, folderid);
+		if (entry == null || !getKey(bucket, entry.getSegment()).equals(key)) {
+			return false;
+		}
+		write(bucket, folderid, read(bucket, folderid, entry), entry.getSize(), entry.getFiles(),
+				entry.getLastAccess());
+		store.commit();
+		return true;
+	}
+
+	// deletes a segment once no folder refers to it anymore; records that are
+	// written but not indexed yet keep the segments of their bucket
+	public boolean drop(String key) throws IOException {
+		int slash = key.indexOf('/');
+		Appender appender = getAppender(key.substring(0, slash));
+		synchronized (appender) {
+			if (appender.unindexed > 0 || !getFolders(key).isEmpty()) {
+				return false;
+			}
+			Files.deleteIfExists(getSegmentPath(key.substring(0, slash), key.substring(slash + 1)));
+			segments.remove(key);
+			return true;
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		store.close();
+	}
+
+	// the record is appended under the lock of its bucket, synced outside of
+	// it and only then indexed, so an index entry never points at data that
+	// may be lost
+	private PackEntry write(String bucket, String folderid, byte[] content, long size, int files, long lastAccess)
+			throws IOException {
+		byte[] id = folderid.getBytes(StandardCharsets.UTF_8);
+		int headerLength = getHeaderLength(id.length);
+		Appender appender = getAppender(bucket);
+		String segment;
+		long offset;
+		long sequence;
+		synchronized (appender) {
+			segment = getActiveSegment(bucket);
+			Path path = getSegmentPath(bucket, segment);
+			Files.createDirectories(path.getParent());
+			ByteBuffer header = ByteBuffer.allocate(headerLength);
+			header.putInt(MAGIC).putShort((short) id.length).put(id).putLong(content.length).flip();
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				long start = channel.size();
+				write(channel, header, start);
+				write(channel, ByteBuffer.wrap(content), start + headerLength);
+				offset = start + headerLength;
+			}
+			if (offset + content.length >= segmentsize) {
+				active.remove(bucket);
+			}
+			appender.dirty.add(path);
+			sequence = ++appender.written;
+			appender.unindexed++;
+		}
+		try {
+			sync(appender, sequence);
+			synchronized (appender) {
+				PackEntry entry = new PackEntry(segment, offset, content.length, size, files, lastAccess);
+				String previous = folders.put(getKey(bucket, folderid), gson.toJson(entry));
+				if (previous != null) {
+					release(bucket, folderid, gson.fromJson(previous, PackEntry.class));
+				}
+				String key = getKey(bucket, segment);
+				Segment stats = getSegment(key);
+				stats.total += headerLength + content.length;
+				stats.live += headerLength + content.length;
+				segments.put(key, gson.toJson(stats));
+				return entry;
+			}
+		} finally {
+			synchronized (appender) {
+				appender.unindexed--;
+			}
+		}
+	}
+
+	// group commit: one force covers every record of the bucket written
+	// before it started, so appends that arrive together, as the folders of
+	// an archival batch do, share a single sync
+	private void sync(Appender appender, long sequence) throws IOException {
+		synchronized (appender.sync) {
+			if (appender.synced >= sequence) {
+				return;
+			}
+			List<Path> paths;
+			long written;
+			synchronized (appender) {
+				paths = new ArrayList<>(appender.dirty);
+				appender.dirty.clear();
+				written = appender.written;
+			}
+			try {
+				for (Path path : paths) {
+					try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+						channel.force(false);
+					}
+				}
+			} catch (IOException e) {
+				synchronized (appender) {
+					appender.dirty.addAll(paths);
+				}
+				throw e;
+			}
+			appender.synced = written;
+		}
+	}
+
+	private byte[] read(String bucket, String folderid, PackEntry entry) throws IOException {
+		byte[] id = folderid.getBytes(StandardCharsets.UTF_8);
+		int headerLength = getHeaderLength(id.length);
+		ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(headerLength + entry.getLength()));
+		try (FileChannel channel = FileChannel.open(getSegmentPath(bucket, entry.getSegment()),
+				StandardOpenOption.READ)) {
+			long position = entry.getOffset() - headerLength;
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position + buffer.position());
+				if (read < 0) {
+					throw new IOException(String.format("Pack record of %s/%s is truncated", bucket, folderid));
+				}
+			}
+		}
+		buffer.flip();
+		// the header in front of the record has to name the same folder
+		int magic = buffer.getInt();
+		int idLength = Short.toUnsignedInt(buffer.getShort());
+		byte[] stored = new byte[id.length];
+		buffer.get(stored);
+		if (magic != MAGIC || idLength != id.length || !Arrays.equals(stored, id)
+				|| buffer.getLong() != entry.getLength()) {
+			throw new IOException(String.format("Pack record of %s/%s is damaged", bucket, folderid));
+		}
+		byte[] content = new byte[buffer.remaining()];
+		buffer.get(content);
+		return content;
+	}
+
+	private void release(String bucket, String folderid, PackEntry entry) {
+		String key = getKey(bucket, entry.getSegment());
+		Segment stats = getSegment(key);
+		stats.live = Math.max(0, stats.live - getHeaderLength(
+				folderid.getBytes(StandardCharsets.UTF_8).length) - entry.getLength());
+		segments.put(key, gson.toJson(stats));
+	}
+
+	private String getActiveSegment(String bucket) {
+		return active.computeIfAbsent(bucket, key -> {
+			// the sequence is shared by all buckets
+			synchronized (meta) {
+				long sequence = Long.parseLong(meta.getOrDefault(SEQUENCE, "0")) + 1;
+				meta.put(SEQUENCE, Long.toString(sequence));
+				return String.format("%016x.pack", sequence);
+			}
+		});
+	}
+
+	private Appender getAppender(String bucket) {
+		return appenders.computeIfAbsent(bucket, key -> new Appender());
+	}
+
+	private Segment getSegment(String key) {
+		String value = segments.get(key);
+		return value == null ? new Segment() : gson.fromJson(value, Segment.class);
+	}
+
+	private Path getSegmentPath(String bucket, String segment) {
+		return root.resolve(bucket).resolve(segment);
+	}
+
+	private void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private void skip(DataInputStream in, long length) throws IOException {
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				in.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	// magic, id length, id and content length
+	private int getHeaderLength(int idLength) {
+		return 4 + 2 + idLength + 8;
+	}
+
+	private String getKey(String bucket, String name) {
+		return String.format("%s/%s", bucket, name);
+	}
+
+	private static class Appender {
+
+		private final Object sync = new Object();
+		// segment files written to since the last sync
+		private final Set<Path> dirty = new LinkedHashSet<>();
+		private long written;
+		private long synced;
+		private int unindexed;
+
+	}
+
+	@Data
+	@AllArgsConstructor
+	@NoArgsConstructor
+	private static class Segment {
+
+		private long total;
+		private long live;
+
+	}
+
+}
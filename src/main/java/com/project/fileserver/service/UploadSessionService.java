@@ -0,0 +1,358 @@
+package com.project.fileserver.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.gson.Gson;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.model.UploadSession;
+import com.project.fileserver.model.UploadStatus;
+import com.project.fileserver.utils.CommonServiceUtils;
+
+import lombok.extern.log4j.Log4j2;
+
+@Service
+@Log4j2
+public class UploadSessionService {
+
+	private static final String METADATA = "session.json";
+	private static final String RANGES = "ranges";
+	private static final String DATA = "data";
+
+	private final Map<String, OpenSession> sessions = new ConcurrentHashMap<>();
+	private final Gson gson = new Gson();
+	private FileserverService fileserverService;
+	private CommonServiceUtils commonService;
+	private ClusterService cluster;
+	private String sessionpath;
+	private long maxsize;
+	private int expiry;
+
+	public UploadSessionService(BeanFactory beanFactory, @Value("${spring.profiles.active}") String active,
+			CommonServiceUtils commonService, ClusterService cluster,
+			@Value("${upload.sessions.path:/fileserver/sessions}") String sessionpath,
+			@Value("${upload.maxpartsize:-1}") long maxsize, @Value("${upload.sessions.expiry:24}") int expiry) {
+		this.fileserverService = beanFactory.getBean(active, FileserverService.class);
+		this.commonService = commonService;
+		this.cluster = cluster;
+		this.sessionpath = sessionpath;
+		this.maxsize = maxsize;
+		this.expiry = expiry;
+	}
+
+	public UploadSession initiate(RequiredObject requiredObject, String filename, long size, boolean replace)
+			throws IOException {
+		if (size < 0 || (maxsize >= 0 && size > maxsize)) {
+			throw new IllegalArgumentException("Invalid upload size " + size);
+		}
+		if (filename.isEmpty() || filename.contains("/") || filename.contains("\\") || filename.startsWith(".")) {
+			throw new IllegalArgumentException("Invalid filename " + filename);
+		}
+		UploadSession session = new UploadSession(cluster.tagId(commonService.generateUniqueId("upload")),
+				commonService.refactorBucketName(requiredObject.getBucket()), requiredObject.getFolderid(), filename,
+				size, replace);
+		Path directory = Paths.get(sessionpath, session.getSession());
+		Files.createDirectories(directory);
+		try (Writer writer = Files.newBufferedWriter(directory.resolve(METADATA), StandardCharsets.UTF_8)) {
+			gson.toJson(session, writer);
+		}
+		Files.createFile(directory.resolve(RANGES));
+		sessions.put(session.getSession(), new OpenSession(session, directory));
+		return session;
+	}
+
+	public UploadStatus writeChunk(String id, long offset, long length, InputStream content) throws IOException {
+		OpenSession open = open(id);
+		long size = validateChunk(open, offset, length);
+		open.lock.readLock().lock();
+		try {
+			if (open.closed) {
+				throw new NoSuchFileException(id);
+			}
+			long written = commonService.writeFile(content, open.channel(), offset, size - offset);
+			if (written > 0) {
+				open.channel().force(false);
+				open.record(offset, offset + written);
+			}
+			return open.status();
+		} finally {
+			open.lock.readLock().unlock();
+		}
+	}
+
+	// the non-blocking variant: the chunk is checked up front, then written a
+	// buffer at a time as it arrives and made durable by finishChunk; returns
+	// how many bytes the chunk may hold
+	public long checkChunk(String id, long offset, long length) throws IOException {
+		return validateChunk(open(id), offset, length) - offset;
+	}
+
+	public void writeChunk(String id, long position, ByteBuffer content) throws IOException {
+		OpenSession open = open(id);
+		open.lock.readLock().lock();
+		try {
+			if (open.closed) {
+				throw new NoSuchFileException(id);
+			}
+			long start = position;
+			while (content.hasRemaining()) {
+				position += open.channel().write(content, position);
+			}
+			open.record(start, position);
+		} finally {
+			open.lock.readLock().unlock();
+		}
+	}
+
+	public UploadStatus finishChunk(String id) throws IOException {
+		OpenSession open = open(id);
+		open.lock.readLock().lock();
+		try {
+			if (open.closed) {
+				throw new NoSuchFileException(id);
+			}
+			open.channel().force(false);
+			return open.status();
+		} finally {
+			open.lock.readLock().unlock();
+		}
+	}
+
+	public UploadStatus getStatus(String id) throws IOException {
+		return open(id).status();
+	}
+
+	public boolean complete(String id) throws Exception {
+		OpenSession open = open(id);
+		open.lock.writeLock().lock();
+		try {
+			if (open.closed) {
+				throw new NoSuchFileException(id);
+			}
+			if (!open.isComplete()) {
+				return false;
+			}
+			UploadSession session = open.session;
+			// no chunk can be written while the data is imported; a failed
+			// import leaves the data staged and the session open for a retry
+			open.close();
+			boolean imported = false;
+			try {
+				Path data = open.directory.resolve(DATA);
+				if (!Files.exists(data)) {
+					Files.createFile(data);
+				}
+				fileserverService.importFile(new RequiredObject(session.getBucket(), session.getFolderid()),
+						session.getFilename(), data, session.isReplace());
+				imported = true;
+			} finally {
+				if (!imported) {
+					open.reopen();
+				}
+			}
+			discard(open);
+			return true;
+		} finally {
+			open.lock.writeLock().unlock();
+		}
+	}
+
+	public void abort(String id) throws IOException {
+		OpenSession open = open(id);
+		open.lock.writeLock().lock();
+		try {
+			open.close();
+			discard(open);
+		} finally {
+			open.lock.writeLock().unlock();
+		}
+	}
+
+	public void reapExpired() {
+		Path root = Paths.get(sessionpath);
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+		Instant threshold = Instant.now().minus(Duration.ofHours(expiry));
+		try (Stream<Path> directories = Files.list(root).filter(path -> Files.isDirectory(path))) {
+			directories.forEach(directory -> {
+				try {
+					if (lastActivity(directory).isBefore(threshold)) {
+						log.info("Reaping abandoned upload session {}", directory.getFileName());
+						abort(directory.getFileName().toString());
+					}
+				} catch (NoSuchFileException e) {
+					try {
+						commonService.deleteDirectory(directory);
+					} catch (IOException ex) {
+						log.error(ex.getMessage(), ex);
+					}
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+				}
+			});
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	private Instant lastActivity(Path directory) throws IOException {
+		Instant last = Files.getLastModifiedTime(directory).toInstant();
+		for (String name : new String[] { METADATA, RANGES }) {
+			Path path = directory.resolve(name);
+			if (Files.exists(path)) {
+				Instant modified = Files.getLastModifiedTime(path).toInstant();
+				last = modified.isAfter(last) ? modified : last;
+			}
+		}
+		return last;
+	}
+
+	private long validateChunk(OpenSession open, long offset, long length) {
+		long size = open.session.getSize();
+		if (offset < 0 || offset > size) {
+			throw new IllegalArgumentException("Invalid offset " + offset);
+		}
+		if (length > size - offset) {
+			throw new IllegalArgumentException("Chunk exceeds the declared size of " + size + " bytes");
+		}
+		return size;
+	}
+
+	private OpenSession open(String id) throws IOException {
+		if (id == null || id.isEmpty() || !id.equals(commonService.retainAplhaNumericOnly(id))) {
+			throw new NoSuchFileException(String.valueOf(id));
+		}
+		OpenSession open = sessions.get(id);
+		if (open != null) {
+			return open;
+		}
+		// sessions survive restarts, reload them from the staging area
+		Path directory = Paths.get(sessionpath, id);
+		if (!Files.exists(directory.resolve(METADATA))) {
+			throw new NoSuchFileException(id);
+		}
+		UploadSession session;
+		try (Reader reader = Files.newBufferedReader(directory.resolve(METADATA), StandardCharsets.UTF_8)) {
+			session = gson.fromJson(reader, UploadSession.class);
+		}
+		OpenSession loaded = new OpenSession(session, directory);
+		Path ranges = directory.resolve(RANGES);
+		if (Files.exists(ranges)) {
+			for (String line : Files.readAllLines(ranges, StandardCharsets.US_ASCII)) {
+				String[] bounds = line.trim().split(" ");
+				if (bounds.length == 2) {
+					loaded.merge(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+				}
+			}
+		}
+		OpenSession existing = sessions.putIfAbsent(id, loaded);
+		return existing == null ? loaded : existing;
+	}
+
+	private void discard(OpenSession open) throws IOException {
+		sessions.remove(open.session.getSession(), open);
+		commonService.deleteDirectory(open.directory);
+	}
+
+	private static class OpenSession {
+
+		private final UploadSession session;
+		private final Path directory;
+		private final TreeMap<Long, Long> received = new TreeMap<>();
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+		private FileChannel channel;
+		private boolean closed;
+
+		private OpenSession(UploadSession session, Path directory) {
+			this.session = session;
+			this.directory = directory;
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (channel == null) {
+				channel = FileChannel.open(directory.resolve(DATA), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+			}
+			return channel;
+		}
+
+		private synchronized void record(long start, long end) throws IOException {
+			byte[] line = String.format("%d %d%n", start, end).getBytes(StandardCharsets.US_ASCII);
+			Files.write(directory.resolve(RANGES), line, StandardOpenOption.APPEND);
+			merge(start, end);
+		}
+
+		private synchronized void merge(long start, long end) {
+			Map.Entry<Long, Long> floor = received.floorEntry(start);
+			if (floor != null && floor.getValue() >= start) {
+				start = floor.getKey();
+				end = Math.max(end, floor.getValue());
+			}
+			Map.Entry<Long, Long> next = received.ceilingEntry(start);
+			while (next != null && next.getKey() <= end) {
+				end = Math.max(end, next.getValue());
+				received.remove(next.getKey());
+				next = received.ceilingEntry(start);
+			}
+			received.put(start, end);
+		}
+
+		private synchronized boolean isComplete() {
+			if (session.getSize() == 0) {
+				return true;
+			}
+			Map.Entry<Long, Long> first = received.firstEntry();
+			return first != null && first.getKey() == 0 && first.getValue() == session.getSize();
+		}
+
+		private synchronized UploadStatus status() {
+			List<long[]> ranges = new ArrayList<>(received.size());
+			long total = 0;
+			for (Map.Entry<Long, Long> entry : received.entrySet()) {
+				ranges.add(new long[] { entry.getKey(), entry.getValue() });
+				total += entry.getValue() - entry.getKey();
+			}
+			return new UploadStatus(session.getSession(), session.getFilename(), session.getSize(), total, ranges);
+		}
+
+		private synchronized void reopen() {
+			closed = false;
+		}
+
+		private synchronized void close() throws IOException {
+			closed = true;
+			if (channel != null) {
+				channel.force(true);
+				channel.close();
+				channel = null;
+			}
+		}
+
+	}
+
+}
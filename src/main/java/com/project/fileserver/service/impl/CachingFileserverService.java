@@ -0,0 +1,548 @@
+package com.project.fileserver.service.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.FileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+
+import lombok.extern.log4j.Log4j2;
+
+// keeps the files of a slower, usually remote, backend on local disk. Reads
+// are served from the local copy when there is one; the missing files of a
+// folder are fetched by one caller while concurrent callers wait for it.
+// Uploads reach the backend before they return (write-through), or are kept
+// under pending/ and sent in the background (write-back); pending uploads
+// are sent again after a restart. Copies are kept across restarts as well,
+// the cache assumes it is the only writer of its backend
+@Log4j2
+public class CachingFileserverService implements FileserverService {
+
+	private final Gson gson = new Gson();
+	// local copy -> size and checksum, bounded by the total size
+	private final Cache<Path, CachedEntry> entries;
+	// pending copy -> token of its latest upload
+	private final Map<Path, Object> pending = new ConcurrentHashMap<>();
+	// not shared with the backend, whose own locks may be taken while these
+	// are held
+	private final FolderLockManager folderLocks = new FolderLockManager();
+	private final ScheduledExecutorService writer;
+	private FileserverService backend;
+	private CommonServiceUtils commonService;
+	private Path files;
+	private Path pendingRoot;
+	private boolean writeBack;
+	private long retry;
+	private long grace;
+
+	public CachingFileserverService(FileserverService backend, CommonServiceUtils commonService, Path root,
+			long maxsize, boolean writeBack, long retry, long grace) throws IOException {
+		this.backend = backend;
+		this.commonService = commonService;
+		this.files = root.resolve("files");
+		this.pendingRoot = root.resolve("pending");
+		this.writeBack = writeBack;
+		this.retry = retry;
+		this.grace = grace;
+		this.entries = Caffeine.newBuilder().maximumWeight(maxsize)
+				.weigher((Path path, CachedEntry entry) -> (int) Math.min(Integer.MAX_VALUE, entry.size))
+				.removalListener((Path path, CachedEntry entry, RemovalCause cause) -> {
+					// a replaced entry already points at the new copy, copies of
+					// deleted files go at once
+					if (cause.wasEvicted()) {
+						evict(path);
+					} else if (cause != RemovalCause.REPLACED) {
+						deleteCopy(path);
+					}
+				}).executor(Runnable::run).build();
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.writer = executor;
+		Files.createDirectories(files);
+		Files.createDirectories(pendingRoot);
+		load();
+		requeue();
+	}
+
+	@Override
+	public String generateFolderUniqueId(RequiredObject requiredObject, String prefix) throws Exception {
+		return backend.generateFolderUniqueId(normalize(requiredObject), prefix);
+	}
+
+	@Override
+	public boolean uploadFiles(RequiredObject requiredObject, MultipartFile[] files, boolean replace) throws Exception {
+		for (MultipartFile file : files) {
+			try (InputStream in = file.getInputStream()) {
+				uploadFile(requiredObject, file.getOriginalFilename(), in, replace);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public long uploadFile(RequiredObject requiredObject, String filename, InputStream content, boolean replace)
+			throws Exception {
+		normalize(requiredObject);
+		// only the backend knows whether a file exists already, so uploads
+		// that must not replace one are always written through
+		if (writeBack && replace) {
+			return stage(requiredObject, filename, content);
+		}
+		if (!replace && pending.containsKey(getFolder(pendingRoot, requiredObject).resolve(filename))) {
+			throw new FileAlreadyExistsException(filename);
+		}
+		Path target = getFolder(files, requiredObject).resolve(filename);
+		Files.createDirectories(target.getParent());
+		Path temp = getTempPath(target);
+		try {
+			long size = commonService.writeFile(content, temp);
+			try (InputStream in = Files.newInputStream(temp)) {
+				backend.uploadFile(requiredObject, filename, in, replace);
+			}
+			// fills hold the shared lock while they fetch, so none of them can
+			// put an older copy back after this
+			try (FolderLock lock = folderLocks.lock(requiredObject, true)) {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				entries.put(target, new CachedEntry(size));
+			}
+			return size;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	@Override
+	public boolean importFile(RequiredObject requiredObject, String filename, Path source, boolean replace)
+			throws Exception {
+		// the backend may be remote, the source is sent like an upload
+		try (InputStream in = Files.newInputStream(source)) {
+			uploadFile(requiredObject, filename, in, replace);
+		}
+		Files.delete(source);
+		return true;
+	}
+
+	@Override
+	public File downloadFiles(RequiredObject requiredObject, String filenames) throws Exception {
+		return commonService.generateFiles(getFiles(requiredObject, filenames));
+	}
+
+	@Override
+	public List<Resource> getFiles(RequiredObject requiredObject, String filenames) throws Exception {
+		normalize(requiredObject);
+		List<String> names = getNames(filenames);
+		try (FolderLock lock = folderLocks.lock(requiredObject, false)) {
+			List<String> missing = getMissing(requiredObject, names);
+			while (!missing.isEmpty()) {
+				// callers that arrive during a fetch wait for it and look again,
+				// the fetch of another caller may not have covered their files
+				List<String> request = missing;
+				AtomicBoolean fetched = new AtomicBoolean();
+				List<String> covered = folderLocks.singleFlight(requiredObject, () -> {
+					fetched.set(true);
+					return fetch(requiredObject, request);
+				});
+				if (fetched.get()) {
+					break;
+				}
+				missing = getMissing(requiredObject, names);
+				missing.removeAll(covered);
+			}
+			List<Resource> resources = new ArrayList<>(names.size());
+			List<String> uncached = new ArrayList<>();
+			for (String name : names) {
+				Resource resource = getLocal(requiredObject, name);
+				resources.add(resource);
+				if (resource == null) {
+					uncached.add(name);
+				}
+			}
+			// files the backend does not have, or that were too large to keep,
+			// come from the backend as they are
+			if (!uncached.isEmpty()) {
+				List<Resource> direct = backend.getFiles(requiredObject, gson.toJson(uncached));
+				for (int index = 0, next = 0; index < resources.size(); index++) {
+					if (resources.get(index) == null) {
+						resources.set(index, direct.get(next++));
+					}
+				}
+			}
+			return resources;
+		}
+	}
+
+	@Override
+	public String getChecksum(RequiredObject requiredObject, String filename) throws Exception {
+		normalize(requiredObject);
+		if (pending.containsKey(getFolder(pendingRoot, requiredObject).resolve(filename))) {
+			return null;
+		}
+		CachedEntry entry = entries.getIfPresent(getFolder(files, requiredObject).resolve(filename));
+		if (entry != null && entry.checksum != null) {
+			return entry.checksum;
+		}
+		String checksum = backend.getChecksum(requiredObject, filename);
+		if (entry != null) {
+			entry.checksum = checksum;
+		}
+		return checksum;
+	}
+
+	@Override
+	public boolean deleteFiles(RequiredObject requiredObject, String filenames) throws Exception {
+		normalize(requiredObject);
+		List<String> names = getNames(filenames);
+		// waits for uploads of the folder that are in flight
+		try (FolderLock lock = folderLocks.lock(requiredObject, true)) {
+			Path pendingFolder = getFolder(pendingRoot, requiredObject);
+			Path folder = getFolder(files, requiredObject);
+			for (String name : names) {
+				if (pending.remove(pendingFolder.resolve(name)) != null) {
+					Files.deleteIfExists(pendingFolder.resolve(name));
+				}
+				entries.invalidate(folder.resolve(name));
+			}
+			return backend.deleteFiles(requiredObject, filenames);
+		}
+	}
+
+	@Override
+	public boolean deleteFolder(RequiredObject requiredObject) throws Exception {
+		normalize(requiredObject);
+		try (FolderLock lock = folderLocks.lock(requiredObject, true)) {
+			Path pendingFolder = getFolder(pendingRoot, requiredObject);
+			boolean found = pending.keySet().removeIf(path -> path.getParent().equals(pendingFolder));
+			if (Files.exists(pendingFolder)) {
+				commonService.deleteDirectory(pendingFolder);
+			}
+			Path folder = getFolder(files, requiredObject);
+			entries.asMap().keySet().removeIf(path -> path.getParent().equals(folder));
+			if (Files.exists(folder)) {
+				commonService.deleteDirectory(folder);
+			}
+			return backend.deleteFolder(requiredObject) || found;
+		}
+	}
+
+	// waits for the uploads that are queued now, retries are not waited for
+	public void flush() throws Exception {
+		writer.submit(() -> {
+		}).get();
+	}
+
+	@PreDestroy
+	public void close() throws InterruptedException {
+		// unsent uploads stay under pending/ for the next start
+		writer.shutdown();
+		writer.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+	// fetches files into the cache, returns the names it was asked for
+	private List<String> fetch(RequiredObject requiredObject, List<String> names) throws Exception {
+		List<Resource> resources = backend.getFiles(requiredObject, gson.toJson(names));
+		Path folder = getFolder(files, requiredObject);
+		Files.createDirectories(folder);
+		for (int index = 0; index < names.size(); index++) {
+			Resource resource = resources.get(index);
+			if (!resource.exists()) {
+				continue;
+			}
+			Path target = folder.resolve(names.get(index));
+			Path temp = getTempPath(target);
+			try (InputStream in = resource.getInputStream()) {
+				long size = commonService.writeFile(in, temp);
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				entries.put(target, new CachedEntry(size));
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+		return names;
+	}
+
+	private long stage(RequiredObject requiredObject, String filename, InputStream content) throws IOException {
+		Path copy = getFolder(pendingRoot, requiredObject).resolve(filename);
+		Files.createDirectories(copy.getParent());
+		Path temp = getTempPath(copy);
+		try {
+			long size = commonService.writeFile(content, temp);
+			Object token = new Object();
+			try (FolderLock lock = folderLocks.lock(requiredObject, true)) {
+				Files.move(temp, copy, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				entries.invalidate(getFolder(files, requiredObject).resolve(filename));
+				pending.put(copy, token);
+			}
+			writer.execute(() -> send(requiredObject, filename, copy, token));
+			return size;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	// runs on the writer; the shared lock keeps deletes of the folder waiting
+	// until the upload is done, so a deleted file is never sent afterwards
+	private void send(RequiredObject requiredObject, String filename, Path copy, Object token) {
+		try (FolderLock lock = folderLocks.lock(requiredObject, false)) {
+			// replaced or deleted since it was queued
+			if (pending.get(copy) != token) {
+				return;
+			}
+			long size;
+			try (InputStream in = Files.newInputStream(copy)) {
+				size = backend.uploadFile(requiredObject, filename, in, true);
+			}
+			// the copy is linked into the cache before it stops being pending,
+			// so readers always find one of the two
+			Path target = getFolder(files, requiredObject).resolve(filename);
+			Files.createDirectories(target.getParent());
+			Files.deleteIfExists(target);
+			Files.createLink(target, copy);
+			entries.put(target, new CachedEntry(size));
+			if (pending.remove(copy, token)) {
+				Files.deleteIfExists(copy);
+			}
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			writer.schedule(() -> send(requiredObject, filename, copy, token), retry, TimeUnit.SECONDS);
+		}
+	}
+
+	// indexes the copies left by the previous run; copies of files with a
+	// pending upload are outdated and leftovers of interrupted fetches are
+	// incomplete
+	private void load() throws IOException {
+		try (Stream<Path> copies = Files.walk(files, 3)) {
+			for (Path copy : (Iterable<Path>) copies::iterator) {
+				Path relative = files.relativize(copy);
+				if (relative.getNameCount() != 3 || !Files.isRegularFile(copy)) {
+					continue;
+				}
+				if (copy.getFileName().toString().startsWith(".") || Files.exists(pendingRoot.resolve(relative))) {
+					Files.delete(copy);
+				} else {
+					entries.put(copy, new CachedEntry(Files.size(copy)));
+				}
+			}
+		}
+	}
+
+	private void requeue() throws IOException {
+		try (Stream<Path> copies = Files.walk(pendingRoot, 3)) {
+			for (Path copy : (Iterable<Path>) copies::iterator) {
+				Path relative = pendingRoot.relativize(copy);
+				String filename = copy.getFileName().toString();
+				if (relative.getNameCount() != 3 || filename.startsWith(".") || !Files.isRegularFile(copy)) {
+					continue;
+				}
+				RequiredObject requiredObject = new RequiredObject(relative.getName(0).toString(),
+						relative.getName(1).toString());
+				Object token = new Object();
+				pending.put(copy, token);
+				writer.execute(() -> send(requiredObject, filename, copy, token));
+			}
+		}
+	}
+
+	// pending copies first, a newer upload invalidated the cached one
+	private Resource getLocal(RequiredObject requiredObject, String filename) {
+		RequiredObject folder = new RequiredObject(requiredObject.getBucket(), requiredObject.getFolderid());
+		Path copy = getFolder(files, requiredObject).resolve(filename);
+		if (entries.getIfPresent(copy) != null && Files.exists(copy)) {
+			return new CopyResource(folder, filename, copy);
+		}
+		copy = getFolder(pendingRoot, requiredObject).resolve(filename);
+		return pending.containsKey(copy) ? new CopyResource(folder, filename, copy) : null;
+	}
+
+	private List<String> getMissing(RequiredObject requiredObject, List<String> names) {
+		List<String> missing = new ArrayList<>();
+		for (String name : names) {
+			if (getLocal(requiredObject, name) == null) {
+				missing.add(name);
+			}
+		}
+		return missing;
+	}
+
+	private List<String> getNames(String filenames) {
+		JsonArray array = commonService.getFilenameList(filenames);
+		List<String> names = new ArrayList<>(array.size());
+		array.forEach(element -> names.add(element.getAsString()));
+		return names;
+	}
+
+	// the bucket aspect only advises the backend, keys have to use the same
+	// name it ends up with
+	private RequiredObject normalize(RequiredObject requiredObject) {
+		requiredObject.setBucket(commonService.refactorBucketName(requiredObject.getBucket()));
+		return requiredObject;
+	}
+
+	private Path getFolder(Path root, RequiredObject requiredObject) {
+		return root.resolve(requiredObject.getBucket()).resolve(requiredObject.getFolderid());
+	}
+
+	private Path getTempPath(Path path) {
+		return path.resolveSibling(String.format(".%s.%s.part", path.getFileName(),
+				Long.toHexString(ThreadLocalRandom.current().nextLong())));
+	}
+
+	// readers open copies by path, for sendfile, so they cannot be counted.
+	// An open copy outlives its deletion, the grace period covers readers
+	// that found the copy but have not opened it yet
+	private void evict(Path path) {
+		writer.schedule(() -> {
+			Path relative = files.relativize(path);
+			RequiredObject requiredObject = new RequiredObject(relative.getName(0).toString(),
+					relative.getName(1).toString());
+			try (FolderLock lock = folderLocks.tryLock(requiredObject, true)) {
+				if (lock == null) {
+					evict(path);
+				} else if (entries.getIfPresent(path) == null) {
+					// unless the file has been cached again since
+					deleteCopy(path);
+				}
+			}
+		}, grace, TimeUnit.SECONDS);
+	}
+
+	private void deleteCopy(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	// a local copy; one that is gone by the time it is read, evicted or sent
+	// to the backend, is served by the backend
+	private class CopyResource extends AbstractResource {
+
+		private final RequiredObject requiredObject;
+		private final String filename;
+		private final Path copy;
+		private Resource fallback;
+
+		private CopyResource(RequiredObject requiredObject, String filename, Path copy) {
+			this.requiredObject = requiredObject;
+			this.filename = filename;
+			this.copy = copy;
+		}
+
+		@Override
+		public boolean exists() {
+			if (Files.exists(copy)) {
+				return true;
+			}
+			try {
+				return getFallback().exists();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				return false;
+			}
+		}
+
+		@Override
+		public boolean isFile() {
+			return Files.isRegularFile(copy);
+		}
+
+		@Override
+		public File getFile() {
+			return copy.toFile();
+		}
+
+		@Override
+		public String getFilename() {
+			return filename;
+		}
+
+		@Override
+		public long contentLength() throws IOException {
+			try {
+				return Files.size(copy);
+			} catch (NoSuchFileException e) {
+				return getFallback().contentLength();
+			}
+		}
+
+		@Override
+		public long lastModified() throws IOException {
+			try {
+				return Files.getLastModifiedTime(copy).toMillis();
+			} catch (NoSuchFileException e) {
+				return getFallback().lastModified();
+			}
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			try {
+				return Files.newInputStream(copy);
+			} catch (NoSuchFileException e) {
+				return getFallback().getInputStream();
+			}
+		}
+
+		@Override
+		public String getDescription() {
+			return String.format("cached file [%s]", copy);
+		}
+
+		private synchronized Resource getFallback() throws IOException {
+			if (fallback == null) {
+				try {
+					fallback = backend.getFiles(requiredObject, gson.toJson(List.of(filename))).get(0);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+			return fallback;
+		}
+
+	}
+
+	private static class CachedEntry {
+
+		private final long size;
+		private volatile String checksum;
+
+		private CachedEntry(long size) {
+			this.size = size;
+		}
+
+	}
+
+}
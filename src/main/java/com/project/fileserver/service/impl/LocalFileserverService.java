@@ -1,23 +1,55 @@
 package com.project.fileserver.service.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.FileTime;
-import java.time.Instant;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.annotation.PreDestroy;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.AccessTrackerService;
+import com.project.fileserver.service.BlobStoreService;
+import com.project.fileserver.service.ChecksumService;
+import com.project.fileserver.service.FileCacheService;
 import com.project.fileserver.service.FileserverService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
 import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.LinkedFileResource;
+import com.project.fileserver.utils.StoragePathResolver;
 
 import lombok.extern.log4j.Log4j2;
 
@@ -25,90 +57,467 @@ import lombok.extern.log4j.Log4j2;
 @Log4j2
 public class LocalFileserverService implements FileserverService {
 
-	private String archivalpath;
-	private String localpath;
+	private final ScheduledExecutorService rehydrator = Executors.newSingleThreadScheduledExecutor();
+	private Cache<RequiredObject, AtomicInteger> archiveAccesses;
+	private StoragePathResolver paths;
 	private CommonServiceUtils commonService;
+	private FolderLockManager folderLocks;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private FileCacheService fileCache;
+	private BlobStoreService blobStore;
+	private ChecksumService checksums;
+	private PackStoreService packStore;
+	private FileserverMetrics metrics;
+	private int rehydrateAccesses;
+	private boolean verify;
 
-	public LocalFileserverService(@Value("${localpath:/fileserver/files}") String localpath,
-			@Value("${executors.archival.path:/fileserver/archives}") String archivalpath,
-			CommonServiceUtils commonService) {
-		this.archivalpath = archivalpath;
-		this.localpath = localpath;
+	public LocalFileserverService(@Value("${executors.archival.rehydrate.accesses:3}") int rehydrateAccesses,
+			@Value("${executors.archival.rehydrate.window:60}") int rehydrateWindow,
+			@Value("${executors.archival.rehydrate.maxfolders:100000}") long rehydrateFolders,
+			@Value("${executors.archival.verify:true}") boolean verify,
+			StoragePathResolver paths, CommonServiceUtils commonService, FolderLockManager folderLocks,
+			MetadataIndexService metadataIndex, AccessTrackerService accessTracker, FileCacheService fileCache,
+			BlobStoreService blobStore, ChecksumService checksums, PackStoreService packStore,
+			FileserverMetrics metrics) {
+		this.paths = paths;
+		this.rehydrateAccesses = rehydrateAccesses;
+		// reads of archived folders only count within the window, and only for
+		// a bounded number of folders
+		this.archiveAccesses = Caffeine.newBuilder().maximumSize(Math.max(0, rehydrateFolders))
+				.expireAfterAccess(Math.max(1, rehydrateWindow), TimeUnit.MINUTES).executor(Runnable::run).build();
+		this.verify = verify;
 		this.commonService = commonService;
+		this.folderLocks = folderLocks;
+		this.metadataIndex = metadataIndex;
+		this.accessTracker = accessTracker;
+		this.fileCache = fileCache;
+		this.blobStore = blobStore;
+		this.checksums = checksums;
+		this.packStore = packStore;
+		this.metrics = metrics;
 	}
 
 	@Override
 	public String generateFolderUniqueId(RequiredObject requiredObject, String prefix) throws Exception {
 		String id = commonService.generateUniqueId(prefix);
-		Path path = Paths.get(localpath, requiredObject.getBucket(), id);
-		Files.createDirectories(path);
+		Files.createDirectories(paths.getFolder(requiredObject.getBucket(), id));
+		metadataIndex.refresh(new RequiredObject(requiredObject.getBucket(), id));
 		return id;
 	}
 
 	@Override
 	public boolean uploadFiles(RequiredObject requiredObject, MultipartFile[] files, boolean replace) throws Exception {
-		for (MultipartFile file : files) {
-			Path path = Paths.get(localpath, requiredObject.getBucket(), requiredObject.getFolderid(),
-					file.getOriginalFilename());
-			if (replace) {
-				Files.deleteIfExists(path);
+		try (FolderLock lock = lockLive(requiredObject)) {
+			for (MultipartFile file : files) {
+				if (blobStore.isEnabled() || checksums.isEnabled()) {
+					// hashed in the same pass that writes it; only deduplicated
+					// uploads ever refused to overwrite a file
+					try (InputStream in = file.getInputStream()) {
+						writeFile(requiredObject, file.getOriginalFilename(), in, replace || !blobStore.isEnabled());
+					}
+					continue;
+				}
+				Path path = paths.getFolder(requiredObject).resolve(file.getOriginalFilename());
+				long previous = Files.exists(path) ? Files.size(path) : -1;
+				if (replace) {
+					Files.deleteIfExists(path);
+				}
+				file.transferTo(path);
+				recordWrite(requiredObject, file.getOriginalFilename(), file.getSize(), previous);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public long uploadFile(RequiredObject requiredObject, String filename, InputStream content, boolean replace)
+			throws Exception {
+		try (FolderLock lock = lockLive(requiredObject)) {
+			return writeFile(requiredObject, filename, content, replace);
+		}
+	}
+
+	@Override
+	public boolean importFile(RequiredObject requiredObject, String filename, Path source, boolean replace)
+			throws Exception {
+		try (FolderLock lock = lockLive(requiredObject)) {
+			Path path = paths.getFolder(requiredObject).resolve(filename);
+			if (!Files.isDirectory(path.getParent())) {
+				throw new FileNotFoundException(path.getParent().toString());
+			}
+			if (!replace && Files.exists(path)) {
+				throw new FileAlreadyExistsException(path.toString());
+			}
+			// the source is moved next to the file first, so it is read exactly
+			// once: either here to hash it, or as the stream that copies it
+			Path temp = getTempPath(path);
+			try {
+				Files.move(source, temp, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				// staging area lives on another file store
+				try (InputStream in = Files.newInputStream(source)) {
+					writeFile(requiredObject, filename, in, replace);
+				}
+				Files.delete(source);
+				return true;
+			}
+			boolean published = false;
+			try {
+				long previous = Files.exists(path) ? Files.size(path) : -1;
+				long size = Files.size(temp);
+				byte[] hash = blobStore.isEnabled() || checksums.isEnabled() ? checksums.digest(temp) : null;
+				checksums.record(path, hash, () -> {
+					if (blobStore.isEnabled()) {
+						blobStore.publish(temp, hash, path, true);
+					} else {
+						Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					}
+				});
+				recordWrite(requiredObject, filename, size, previous);
+				published = true;
+			} finally {
+				// the caller keeps its source when the import fails
+				if (!published && Files.exists(temp)) {
+					Files.move(temp, source, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
 			}
-			file.transferTo(path);
 		}
 		return true;
 	}
 
 	@Override
 	public File downloadFiles(RequiredObject requiredObject, String filenames) throws Exception {
-		JsonArray array = commonService.getFilenameList(filenames);
-		List<File> files = getFileList(requiredObject, array);
-		updateLastModifiedDate(files);
+		List<Resource> files = getFiles(requiredObject, filenames);
 		File file = commonService.generateFiles(files);
 		return file;
 	}
 
+	@Override
+	public List<Resource> getFiles(RequiredObject requiredObject, String filenames) throws Exception {
+		JsonArray array = commonService.getFilenameList(filenames);
+		try (FolderLock lock = folderLocks.lock(requiredObject, false)) {
+			// cached entries are dropped when their folder changes or is
+			// archived, so a full hit needs no file system access at all
+			List<Resource> resources = getCachedFiles(requiredObject, array);
+			if (!resources.isEmpty() && !resources.contains(null)) {
+				accessTracker.record(requiredObject);
+				return resources;
+			}
+			// resolved under the lock, a migration may move the folder until then
+			Path checkpath = paths.getFolder(requiredObject);
+			Path archive = paths.getArchive(requiredObject);
+			if (!Files.exists(checkpath) && Files.exists(archive)) {
+				List<String> names = new ArrayList<>(array.size());
+				array.forEach(element -> names.add(element.getAsString()));
+				List<Resource> entries = commonService.getArchiveEntries(archive, checkpath, names);
+				// shared files were kept as links next to the archive
+				Path links = paths.getLinks(requiredObject);
+				if (Files.isDirectory(links)) {
+					for (int index = 0; index < names.size(); index++) {
+						Path link = links.resolve(names.get(index));
+						if (Files.isRegularFile(link)) {
+							entries.set(index, new LinkedFileResource(link, checkpath.resolve(names.get(index))));
+						}
+					}
+				}
+				recordArchiveAccess(requiredObject);
+				return entries;
+			}
+			if (!Files.exists(checkpath) && packStore.contains(requiredObject)) {
+				List<String> names = new ArrayList<>(array.size());
+				array.forEach(element -> names.add(element.getAsString()));
+				// the record is read once for all requested files
+				List<Resource> entries = commonService.getArchiveEntries(packStore.read(requiredObject), checkpath,
+						names);
+				recordArchiveAccess(requiredObject);
+				return entries;
+			}
+			accessTracker.record(requiredObject);
+			for (int index = 0; index < resources.size(); index++) {
+				if (resources.get(index) == null) {
+					String filename = array.get(index).getAsString();
+					resources.set(index, fileCache.load(requiredObject, filename, checkpath.resolve(filename)));
+				}
+			}
+			return resources;
+		}
+	}
+
+	@Override
+	public String getChecksum(RequiredObject requiredObject, String filename) throws Exception {
+		try (FolderLock lock = folderLocks.lock(requiredObject, false)) {
+			Path folder = paths.getFolder(requiredObject);
+			Path archive = paths.getArchive(requiredObject);
+			if (!Files.exists(folder) && Files.exists(archive)) {
+				return checksums.getChecksum(archive, requiredObject.getFolderid(), filename);
+			}
+			if (!Files.exists(folder) && packStore.contains(requiredObject)) {
+				return checksums.getChecksum(archive, requiredObject.getFolderid(), filename,
+						() -> packStore.read(requiredObject));
+			}
+			return checksums.getChecksum(folder.resolve(filename));
+		}
+	}
+
 	@Override
 	public boolean deleteFiles(RequiredObject requiredObject, String filenames) throws Exception {
 		JsonArray array = commonService.getFilenameList(filenames);
-		List<File> files = getFileList(requiredObject, array);
-		return commonService.deleteFiles(files);
+		try (FolderLock lock = lockLive(requiredObject)) {
+			List<File> files = getFileList(requiredObject, array);
+			Map<File, Long> sizes = new HashMap<>();
+			files.stream().filter(File::isFile).forEach(file -> sizes.put(file, file.length()));
+			boolean result = commonService.deleteFiles(files);
+			List<String> names = new ArrayList<>(array.size());
+			array.forEach(element -> names.add(element.getAsString()));
+			names.forEach(name -> fileCache.invalidate(requiredObject, name));
+			checksums.remove(paths.getFolder(requiredObject), names);
+			long size = 0;
+			int count = 0;
+			for (Map.Entry<File, Long> entry : sizes.entrySet()) {
+				if (!entry.getKey().exists()) {
+					size += entry.getValue();
+					count++;
+				}
+			}
+			metadataIndex.add(requiredObject, -size, -count);
+			accessTracker.record(requiredObject);
+			return result;
+		}
 	}
 
-	private List<File> getFileList(RequiredObject requiredObject, JsonArray array) {
-		Path checkpath = Paths.get(localpath, requiredObject.getBucket(), requiredObject.getFolderid());
-		if (!Files.exists(checkpath)) {
+	// removes a folder in whatever state it is in, live or archived
+	@Override
+	public boolean deleteFolder(RequiredObject requiredObject) throws Exception {
+		try (FolderLock lock = folderLocks.lock(requiredObject, true)) {
+			boolean found = false;
 			try {
-				unarchive(requiredObject);
-			} catch (IOException e) {
-				log.error(e.getMessage(), e);
+				Path folder = paths.getFolder(requiredObject);
+				if (Files.exists(folder)) {
+					commonService.deleteDirectory(folder);
+					found = true;
+				}
+				Path links = paths.getLinks(requiredObject);
+				if (Files.exists(links)) {
+					commonService.deleteDirectory(links);
+				}
+				found = Files.deleteIfExists(paths.getArchive(requiredObject)) || found;
+				found = packStore.remove(requiredObject) || found;
+			} finally {
+				fileCache.invalidate(requiredObject);
+				checksums.invalidate(paths.getFolder(requiredObject));
+				checksums.invalidate(paths.getArchive(requiredObject));
+				archiveAccesses.invalidate(requiredObject);
+				metadataIndex.refresh(requiredObject);
 			}
+			return found;
 		}
+	}
+
+	private long writeFile(RequiredObject requiredObject, String filename, InputStream content, boolean replace)
+			throws IOException {
+		Path path = paths.getFolder(requiredObject).resolve(filename);
+		if (!replace && Files.exists(path)) {
+			throw new FileAlreadyExistsException(path.toString());
+		}
+		Path temp = getTempPath(path);
+		try {
+			// the content is hashed while it streams in, for deduplication and
+			// for the checksum sidecar
+			MessageDigest digest = blobStore.isEnabled() || checksums.isEnabled() ? blobStore.newDigest() : null;
+			long size = commonService.writeFile(digest == null ? content : new DigestInputStream(content, digest),
+					temp);
+			long previous = Files.exists(path) ? Files.size(path) : -1;
+			byte[] hash = digest == null ? null : digest.digest();
+			checksums.record(path, hash, () -> {
+				if (blobStore.isEnabled()) {
+					blobStore.publish(temp, hash, path, replace);
+				} else if (replace) {
+					Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} else {
+					Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+				}
+			});
+			recordWrite(requiredObject, filename, size, previous);
+			return size;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private Path getTempPath(Path path) {
+		return path.resolveSibling(String.format(".%s.%s.part", path.getFileName(),
+				Long.toHexString(ThreadLocalRandom.current().nextLong())));
+	}
+
+	private List<Resource> getCachedFiles(RequiredObject requiredObject, JsonArray array) {
+		List<Resource> resources = new ArrayList<>(array.size());
+		for (JsonElement element : array) {
+			resources.add(fileCache.getIfPresent(requiredObject, element.getAsString()));
+		}
+		return resources;
+	}
+
+	private void recordWrite(RequiredObject requiredObject, String filename, long size, long previous) {
+		fileCache.invalidate(requiredObject, filename);
+		metrics.recordUpload(size);
+		// a folder that is still written to is in use, however old it is
+		accessTracker.record(requiredObject);
+		if (previous < 0) {
+			metadataIndex.add(requiredObject, size, 1);
+		} else {
+			metadataIndex.add(requiredObject, size - previous, 0);
+		}
+	}
+
+	// the queued rehydrations and their retries are dropped, one waiting for
+	// its folder is interrupted
+	@PreDestroy
+	public void close() throws InterruptedException {
+		rehydrator.shutdownNow();
+		rehydrator.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+	private List<File> getFileList(RequiredObject requiredObject, JsonArray array) {
 		List<File> files = new LinkedList<>();
-		array.forEach(element -> {
-			Path path = Paths.get(localpath, requiredObject.getBucket(), requiredObject.getFolderid(),
-					element.getAsString());
-			files.add(path.toFile());
-		});
+		Path folder = paths.getFolder(requiredObject);
+		array.forEach(element -> files.add(folder.resolve(element.getAsString()).toFile()));
 		return files;
 	}
 
-	private void unarchive(RequiredObject requiredObject) throws IOException {
-		Path source = Paths.get(archivalpath, requiredObject.getBucket(),
-				String.format("%s.zip", requiredObject.getFolderid()));
-		Path target = Paths.get(localpath, requiredObject.getBucket());
-		commonService.unzip(source, target);
-		Files.deleteIfExists(source);
+	private void recordArchiveAccess(RequiredObject requiredObject) {
+		accessTracker.record(requiredObject);
+		if (rehydrateAccesses <= 0) {
+			return;
+		}
+		RequiredObject key = new RequiredObject(requiredObject.getBucket(), requiredObject.getFolderid());
+		int accesses = archiveAccesses.get(key, k -> new AtomicInteger()).incrementAndGet();
+		if (accesses == rehydrateAccesses) {
+			try {
+				rehydrator.execute(() -> rehydrateWhenIdle(key));
+			} catch (RejectedExecutionException e) {
+				// shutting down, the folder is read from its archive
+				archiveAccesses.invalidate(key);
+			}
+		}
 	}
 
-	private void updateLastModifiedDate(List<File> files) {
-		files.stream().map(file -> file.toPath()).forEach(path -> {
+	// shared lock on a live folder; archival may move the folder away between
+	// the rehydration and the lock, in which case it is rehydrated again
+	private FolderLock lockLive(RequiredObject requiredObject) throws Exception {
+		while (true) {
+			rehydrate(requiredObject, true);
+			FolderLock lock = folderLocks.lock(requiredObject, false);
+			if (Files.exists(paths.getFolder(requiredObject)) || !isArchived(requiredObject)) {
+				return lock;
+			}
+			lock.close();
+		}
+	}
+
+	// the background rehydration does not wait for the downloads of the
+	// folder, which would hold up the other folders queued behind it; a
+	// folder that is being downloaded is tried again a second later, for as
+	// long as it is still being read
+	private void rehydrateWhenIdle(RequiredObject requiredObject) {
+		try {
+			if (!rehydrate(requiredObject, false) && archiveAccesses.getIfPresent(requiredObject) != null) {
+				rehydrator.schedule(() -> rehydrateWhenIdle(requiredObject), 1, TimeUnit.SECONDS);
+			}
+		} catch (RejectedExecutionException e) {
+			// shutting down, the folder is read from its archive
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	// concurrent callers for the same folder share a single extraction; false
+	// when it does not wait and the folder is leased
+	private boolean rehydrate(RequiredObject requiredObject, boolean wait) throws Exception {
+		if (Files.exists(paths.getFolder(requiredObject)) || !isArchived(requiredObject)) {
+			return true;
+		}
+		return folderLocks.singleFlight(requiredObject, () -> {
+			FolderLock lock = wait ? folderLocks.lock(requiredObject, true)
+					: folderLocks.lockUnlessLeased(requiredObject);
+			if (lock == null) {
+				return false;
+			}
+			try {
+				unarchive(requiredObject);
+			} finally {
+				lock.close();
+				archiveAccesses.invalidate(requiredObject);
+			}
+			return true;
+		});
+	}
+
+	private boolean isArchived(RequiredObject requiredObject) {
+		return Files.exists(paths.getArchive(requiredObject)) || packStore.contains(requiredObject);
+	}
+
+	private void unarchive(RequiredObject requiredObject) throws IOException {
+		Path source = paths.getArchive(requiredObject);
+		Path folder = paths.getFolder(requiredObject);
+		boolean packed = !Files.exists(source) && packStore.contains(requiredObject);
+		if (Files.exists(folder) || !Files.exists(source) && !packed) {
+			return;
+		}
+		// extract next to the final location and publish the folder with a
+		// single rename so readers never see a partially extracted folder
+		Path staging = folder.resolveSibling(String.format(".%s.rehydrate", requiredObject.getFolderid()));
+		if (Files.exists(staging)) {
+			commonService.deleteDirectory(staging);
+		}
+		Files.createDirectories(staging);
+		try {
+			if (packed) {
+				commonService.unzip(new ByteArrayInputStream(packStore.read(requiredObject)), staging);
+			} else {
+				commonService.unzip(source, staging);
+			}
+			Path extracted = staging.resolve(requiredObject.getFolderid());
+			if (!Files.exists(extracted)) {
+				Files.createDirectories(extracted);
+			}
+			Path links = paths.getLinks(requiredObject);
+			if (Files.isDirectory(links)) {
+				try (Stream<Path> files = Files.list(links)) {
+					for (Path link : (Iterable<Path>) files::iterator) {
+						Files.createLink(extracted.resolve(link.getFileName()), link);
+					}
+				}
+			}
+			// a damaged archive stays in place instead of replacing the folder
+			if (verify) {
+				List<String> mismatches = checksums.verify(extracted);
+				if (!mismatches.isEmpty()) {
+					throw new IOException(String.format("Archive %s does not match the checksums of %s", source,
+							mismatches));
+				}
+			}
+			Files.move(extracted, folder, StandardCopyOption.ATOMIC_MOVE);
 			try {
-				Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
-				Files.setLastModifiedTime(path.getParent(), FileTime.from(Instant.now()));
+				checksums.restamp(folder);
 			} catch (IOException e) {
+				// only costs the validators until the files are written again
 				log.error(e.getMessage(), e);
 			}
-		});
+		} finally {
+			commonService.deleteDirectory(staging);
+		}
+		if (packed) {
+			packStore.remove(requiredObject);
+		} else {
+			Files.deleteIfExists(source);
+		}
+		checksums.invalidate(source);
+		Path links = paths.getLinks(requiredObject);
+		if (Files.isDirectory(links)) {
+			commonService.deleteDirectory(links);
+		}
+		metadataIndex.refresh(requiredObject);
 	}
 
 }
@@ -0,0 +1,90 @@
+package com.project.fileserver.utils;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.springframework.core.io.AbstractResource;
+
+public class ArchiveEntryResource extends AbstractResource {
+
+	private final Path archive;
+	private final String entryName;
+	private final String filename;
+	private final ZipEntry entry;
+	private final Path fallback;
+
+	public ArchiveEntryResource(Path archive, String entryName, String filename, ZipEntry entry, Path fallback) {
+		this.archive = archive;
+		this.entryName = entryName;
+		this.filename = filename;
+		this.entry = entry;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public boolean exists() {
+		return entry != null && !entry.isDirectory();
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public long contentLength() throws IOException {
+		if (!exists()) {
+			throw new FileNotFoundException(getDescription());
+		}
+		return entry.getSize();
+	}
+
+	@Override
+	public long lastModified() throws IOException {
+		if (!exists()) {
+			throw new FileNotFoundException(getDescription());
+		}
+		return entry.getTime();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (!Files.exists(archive) && fallback != null && Files.exists(fallback)) {
+			// the folder was rehydrated since this entry was resolved
+			return Files.newInputStream(fallback);
+		}
+		ZipFile zipFile = new ZipFile(archive.toFile());
+		try {
+			ZipEntry current = zipFile.getEntry(entryName);
+			if (current == null || current.isDirectory()) {
+				throw new FileNotFoundException(getDescription());
+			}
+			// the archive stays open until the caller is done with the entry
+			return new FilterInputStream(zipFile.getInputStream(current)) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						zipFile.close();
+					}
+				}
+			};
+		} catch (IOException | RuntimeException e) {
+			zipFile.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public String getDescription() {
+		return String.format("archive entry [%s!/%s]", archive, entryName);
+	}
+
+}
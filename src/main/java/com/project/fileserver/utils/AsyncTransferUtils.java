@@ -0,0 +1,476 @@
+package com.project.fileserver.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+
+import lombok.extern.log4j.Log4j2;
+
+// non-blocking servlet transfers: the request thread returns as soon as a
+// transfer starts, and a slow client holds no thread while its socket is not
+// ready. Disk reads and writes run on a bounded pool, one chunk at a time
+@Component
+@Log4j2
+public class AsyncTransferUtils {
+
+	private final Gson gson = new Gson();
+	private boolean enabled;
+	private int buffersize;
+	private long timeout;
+	private ExecutorService executor;
+	private ScheduledThreadPoolExecutor watchdog;
+
+	public AsyncTransferUtils(@Value("${async.enabled:false}") boolean enabled,
+			@Value("${async.threads:16}") int threads, @Value("${async.buffersize:65536}") int buffersize,
+			@Value("${async.timeout:60}") int timeout) {
+		this.enabled = enabled;
+		this.buffersize = buffersize;
+		this.timeout = TimeUnit.MINUTES.toMillis(timeout);
+		this.executor = enabled ? Executors.newFixedThreadPool(Math.max(1, threads)) : null;
+		if (enabled && timeout > 0) {
+			this.watchdog = new ScheduledThreadPoolExecutor(1);
+			this.watchdog.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	// writes count bytes of the resource from position on, the status and
+	// headers have to be set already; sent runs once the last byte is written,
+	// not for transfers that fail or time out
+	public void write(Resource resource, long position, long count, HttpServletRequest request,
+			HttpServletResponse response, Runnable sent) throws IOException {
+		Download download = new Download(start(request), resource, position, count, sent);
+		download.context.addListener(download);
+		download.watch();
+		response.getOutputStream().setWriteListener(download);
+	}
+
+	// reads up to limit bytes of the request body into the consumer and
+	// answers with what it returns as json
+	public void read(long limit, BodyConsumer consumer, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		Upload upload = new Upload(start(request), limit, consumer);
+		upload.context.addListener(upload);
+		upload.watch();
+		request.getInputStream().setReadListener(upload);
+	}
+
+	// closes the resource once the response has been sent: right away after a
+	// blocking transfer, from the completion callback of an asynchronous one
+	public void closeWhenDone(AutoCloseable resource, HttpServletRequest request) {
+		if (!request.isAsyncStarted()) {
+			close(resource);
+			return;
+		}
+		request.getAsyncContext().addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) {
+				close(resource);
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) {
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+	}
+
+	@PreDestroy
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+		if (watchdog != null) {
+			watchdog.shutdownNow();
+		}
+	}
+
+	private void close(AutoCloseable resource) {
+		try {
+			resource.close();
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	private AsyncContext start(HttpServletRequest request) {
+		AsyncContext context = request.startAsync();
+		// the container's timeout would also end a large transfer that is
+		// still going; the watchdog only ends those that stop moving, so a
+		// client that stops reading does not keep its file open forever
+		context.setTimeout(0);
+		return context;
+	}
+
+	public interface BodyConsumer {
+
+		// called in order, the position is where the buffer starts in the body
+		void accept(ByteBuffer buffer, long position) throws IOException;
+
+		Object complete() throws IOException;
+
+	}
+
+	private abstract class Transfer implements AsyncListener {
+
+		protected final AsyncContext context;
+		private boolean done;
+		private volatile long progress = System.nanoTime();
+		private ScheduledFuture<?> idle;
+
+		protected Transfer(AsyncContext context) {
+			this.context = context;
+		}
+
+		protected void schedule() {
+			try {
+				executor.execute(this::pump);
+			} catch (RejectedExecutionException e) {
+				fail(e);
+			}
+		}
+
+		protected abstract void pump();
+
+		// called whenever data moved, the idle time counts from the last call
+		protected void progress() {
+			progress = System.nanoTime();
+		}
+
+		// fails the transfer once it has made no progress for the timeout,
+		// otherwise looks again when that much time has passed since the last
+		protected synchronized void watch() {
+			if (done || watchdog == null) {
+				return;
+			}
+			long idleTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progress);
+			if (idleTime >= timeout) {
+				fail(new IOException("Transfer timed out"));
+				return;
+			}
+			try {
+				idle = watchdog.schedule(this::watch, timeout - idleTime, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// shutting down, the container ends what is left
+			}
+		}
+
+		protected synchronized void finish() {
+			if (!done) {
+				done = true;
+				unwatch();
+				release();
+				context.complete();
+			}
+		}
+
+		protected synchronized void fail(Throwable t) {
+			if (done) {
+				return;
+			}
+			done = true;
+			log.error(t.getMessage());
+			unwatch();
+			release();
+			HttpServletResponse response = (HttpServletResponse) context.getResponse();
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setStatus(getStatus(t).value());
+			}
+			context.complete();
+		}
+
+		protected synchronized boolean isDone() {
+			return done;
+		}
+
+		// called once the transfer is done, however it ended; may be called
+		// more than once
+		protected void release() {
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			fail(new IOException("Transfer timed out"));
+			release(event);
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			fail(event.getThrowable() == null ? new IOException("Transfer failed") : event.getThrowable());
+			release(event);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			release(event);
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+
+		// also when the container ends the transfer while a chunk is pending,
+		// the pump sees it is done and opens nothing again
+		private synchronized void release(AsyncEvent event) {
+			done = true;
+			unwatch();
+			release();
+		}
+
+		private void unwatch() {
+			if (idle != null) {
+				idle.cancel(false);
+				idle = null;
+			}
+		}
+
+		private HttpStatus getStatus(Throwable t) {
+			if (t instanceof NoSuchFileException) {
+				return HttpStatus.NOT_FOUND;
+			}
+			if (t instanceof IllegalArgumentException) {
+				return HttpStatus.BAD_REQUEST;
+			}
+			return HttpStatus.INTERNAL_SERVER_ERROR;
+		}
+
+	}
+
+	private class Download extends Transfer implements WriteListener {
+
+		private final Resource resource;
+		private final Runnable sent;
+		private final byte[] bytes;
+		private long position;
+		private long remaining;
+		private int pending;
+		private FileChannel channel;
+		private InputStream in;
+
+		private Download(AsyncContext context, Resource resource, long position, long count, Runnable sent) {
+			super(context);
+			this.resource = resource;
+			this.sent = sent;
+			this.position = position;
+			this.remaining = count;
+			this.bytes = new byte[(int) Math.max(1, Math.min(buffersize, count))];
+		}
+
+		@Override
+		public void onWritePossible() {
+			schedule();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			fail(t);
+		}
+
+		// runs until the socket stops accepting data, the container calls
+		// onWritePossible again once it drains
+		@Override
+		protected synchronized void pump() {
+			try {
+				ServletOutputStream out = context.getResponse().getOutputStream();
+				while (!isDone() && out.isReady()) {
+					if (pending == 0) {
+						if (remaining == 0) {
+							sent.run();
+							finish();
+							return;
+						}
+						fill();
+					}
+					out.write(bytes, 0, pending);
+					progress();
+					remaining -= pending;
+					position += pending;
+					pending = 0;
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		private void fill() throws IOException {
+			int length = (int) Math.min(bytes.length, remaining);
+			if (resource.isFile()) {
+				if (channel == null) {
+					channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new IOException("Unexpected end of file at position " + position);
+					}
+				}
+			} else {
+				if (in == null) {
+					in = resource.getInputStream();
+					skip(position);
+				}
+				int read = 0;
+				while (read < length) {
+					int result = in.read(bytes, read, length - read);
+					if (result < 0) {
+						throw new IOException("Unexpected end of stream at position " + (position + read));
+					}
+					read += result;
+				}
+			}
+			pending = length;
+		}
+
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				long skipped = in.skip(count);
+				if (skipped <= 0) {
+					throw new IOException("Unexpected end of stream at position " + (position - count));
+				}
+				count -= skipped;
+			}
+		}
+
+		@Override
+		protected void release() {
+			try {
+				if (channel != null) {
+					channel.close();
+					channel = null;
+				}
+				if (in != null) {
+					in.close();
+					in = null;
+				}
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+
+	}
+
+	private class Upload extends Transfer implements ReadListener {
+
+		private final BodyConsumer consumer;
+		private final ByteBuffer buffer;
+		private long remaining;
+		private long position;
+
+		private Upload(AsyncContext context, long limit, BodyConsumer consumer) {
+			super(context);
+			this.remaining = limit;
+			this.consumer = consumer;
+			this.buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(buffersize, limit)));
+		}
+
+		@Override
+		public void onDataAvailable() {
+			schedule();
+		}
+
+		@Override
+		public void onAllDataRead() {
+			schedule();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			fail(t);
+		}
+
+		// reads what the socket has without blocking and writes each full buffer
+		// before reading on; the container calls onDataAvailable once more
+		// arrives
+		@Override
+		protected synchronized void pump() {
+			try {
+				ServletInputStream in = context.getRequest().getInputStream();
+				while (!isDone() && in.isReady()) {
+					int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+					if (read < 0) {
+						break;
+					}
+					buffer.position(buffer.position() + read);
+					progress();
+					if (!buffer.hasRemaining()) {
+						flush();
+					}
+				}
+				if (!isDone() && in.isFinished()) {
+					flush();
+					respond(consumer.complete());
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		// bytes past the limit are dropped, like the blocking upload does
+		private void flush() throws IOException {
+			buffer.flip();
+			if (buffer.remaining() > remaining) {
+				buffer.limit((int) remaining);
+			}
+			int length = buffer.remaining();
+			if (length > 0) {
+				consumer.accept(buffer, position);
+				position += length;
+				remaining -= length;
+			}
+			buffer.clear();
+		}
+
+		private void respond(Object result) throws IOException {
+			HttpServletResponse response = (HttpServletResponse) context.getResponse();
+			byte[] body = gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+			response.setContentLength(body.length);
+			// small enough for the response buffer, so this does not block
+			response.getOutputStream().write(body);
+			finish();
+		}
+
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.project.fileserver.utils;
+
+import org.springframework.core.io.ByteArrayResource;
+
+public class CachedFileResource extends ByteArrayResource {
+
+	private final String filename;
+	private final long lastModified;
+
+	public CachedFileResource(byte[] content, String filename, long lastModified) {
+		super(content);
+		this.filename = filename;
+		this.lastModified = lastModified;
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public long lastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String getDescription() {
+		return String.format("cached file [%s]", filename);
+	}
+
+}
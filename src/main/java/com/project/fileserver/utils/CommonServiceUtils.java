@@ -1,70 +1,181 @@
 package com.project.fileserver.utils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Comparator;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.project.fileserver.service.ChecksumService;
 
 @Component
 public class CommonServiceUtils {
 
+	// already compressed formats that deflate cannot shrink any further
+	public static final String STORED_TYPES = "jpg,jpeg,png,gif,webp,heic,mp3,mp4,m4a,mov,mkv,avi,webm,"
+			+ "zip,gz,tgz,bz2,xz,7z,rar,zst,pdf,docx,xlsx,pptx";
+
 	@Value("${temppath:/fileserver/temp}")
 	private String temppath;
 
+	@Value("${download.buffersize:65536}")
+	private int buffersize;
+
+	@Value("${download.zip.level:1}")
+	private int level;
+
+	@Value("${download.zip.stored:" + STORED_TYPES + "}")
+	private Set<String> stored = Collections.emptySet();
+
+	@Autowired
+	private FileserverMetrics metrics;
+
+	@Autowired
+	private IdGenerator idGenerator;
+
 	public String refactorBucketName(String bucket) {
-		bucket = retainLowerCaseOnly(bucket.toLowerCase());
-		return bucket.substring(0, bucket.length() >= 50 ? 50 : bucket.length());
+		return retain(bucket, true, false, 50);
 	}
 
 	public String generateUniqueId(String prefix) {
-		prefix = retainLowerCaseOnly(prefix.toLowerCase());
-		String uuid = retainAplhaNumericOnly(UUID.randomUUID().toString().toLowerCase());
-		return String.format("%s%s", prefix, uuid);
+		return idGenerator.generate(retain(prefix, true, false, Integer.MAX_VALUE));
 	}
 
 	public String retainLowerCaseOnly(String name) {
-		return name.replaceAll("[^a-z]", "");
+		return retain(name, false, false, Integer.MAX_VALUE);
 	}
 
 	public String retainAplhaNumericOnly(String name) {
-		return name.replaceAll("[^a-z0-9]", "");
+		return retain(name, false, true, Integer.MAX_VALUE);
 	}
 
 	public JsonArray getFilenameList(String filenames) {
 		return new Gson().fromJson(filenames, JsonArray.class);
 	}
 
-	public File generateFiles(List<File> files) throws IOException {
+	public File generateFiles(List<Resource> files) throws IOException {
 		if (files.isEmpty()) {
 			return null;
 		} else {
 			if (files.size() > 1) {
-				Path targetdir = Paths.get(temppath, retainAplhaNumericOnly(UUID.randomUUID().toString()), "files.zip");
+				Path targetdir = Paths.get(temppath, generateUniqueId(""), "files.zip");
 				Files.createDirectories(targetdir.getParent());
 				File result = targetdir.toFile();
 				zipFiles(files, result);
 				return result;
+			} else if (files.get(0).isFile()) {
+				return files.get(0).getFile();
 			} else {
-				return files.get(0);
+				Resource resource = files.get(0);
+				Path target = Paths.get(temppath, generateUniqueId(""), resource.getFilename());
+				Files.createDirectories(target.getParent());
+				try (InputStream in = resource.getInputStream()) {
+					writeFile(in, target);
+				}
+				return target.toFile();
+			}
+		}
+	}
+
+	public List<Resource> getArchiveEntries(Path archive, Path folder, List<String> filenames)
+			throws IOException {
+		List<Resource> resources = new ArrayList<>(filenames.size());
+		try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+			for (String filename : filenames) {
+				String entryName = String.format("%s/%s", folder.getFileName(), filename);
+				resources.add(new ArchiveEntryResource(archive, entryName, filename, zipFile.getEntry(entryName),
+						folder.resolve(filename)));
 			}
 		}
+		return resources;
+	}
+
+	// entries of an archive that is already in memory, such as a packed one
+	public List<Resource> getArchiveEntries(byte[] archive, Path folder, List<String> filenames)
+			throws IOException {
+		Map<String, Integer> indexes = new HashMap<>();
+		List<Resource> resources = new ArrayList<>(filenames.size());
+		for (String filename : filenames) {
+			indexes.put(String.format("%s/%s", folder.getFileName(), filename), resources.size());
+			resources.add(new FileSystemResource(folder.resolve(filename)));
+		}
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			for (ZipEntry zipEntry = zis.getNextEntry(); zipEntry != null; zipEntry = zis.getNextEntry()) {
+				Integer index = indexes.get(zipEntry.getName());
+				if (index != null) {
+					resources.set(index, new CachedFileResource(zis.readAllBytes(), filenames.get(index),
+							zipEntry.getTime()));
+				}
+			}
+		}
+		return resources;
+	}
+
+	public long writeFile(InputStream in, Path target) throws IOException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			return writeFile(in, channel, 0, Long.MAX_VALUE);
+		}
+	}
+
+	public long writeFile(InputStream in, FileChannel channel, long position, long limit) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(buffersize);
+		byte[] bytes = new byte[buffersize];
+		long total = 0;
+		while (true) {
+			long remaining = limit - total;
+			// read one byte past the limit so oversized content is detected
+			int length = in.read(bytes, 0, remaining >= bytes.length ? bytes.length : (int) remaining + 1);
+			if (length < 0) {
+				break;
+			}
+			if (length > remaining) {
+				throw new IllegalArgumentException("Content exceeds the limit of " + limit + " bytes");
+			}
+			buffer.clear();
+			buffer.put(bytes, 0, length).flip();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			total += length;
+		}
+		return total;
 	}
 
 	public boolean deleteFiles(List<File> files) {
@@ -76,41 +187,91 @@ public class CommonServiceUtils {
 		return result;
 	}
 
-	public void deleteDirectory(Path path) throws IOException {
-		Files.walk(path).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+	// deletes the tree depth first while it is walked instead of listing it
+	// up front; whatever can be deleted is, and the failures are reported
+	// together afterwards. Returns the number of deleted entries
+	public long deleteDirectory(Path path) throws IOException {
+		DeletingVisitor visitor = new DeletingVisitor();
+		Files.walkFileTree(path, visitor);
+		if (!visitor.failures.isEmpty()) {
+			IOException exception = new IOException(
+					String.format("Could not delete %d entries under %s", visitor.failed, path));
+			visitor.failures.forEach(exception::addSuppressed);
+			throw exception;
+		}
+		return visitor.deleted;
 	}
 
-	public void zipFiles(List<File> files, File targetfile) throws FileNotFoundException, IOException {
+	public void zipFiles(List<Resource> files, File targetfile) throws FileNotFoundException, IOException {
 		try (FileOutputStream fos = new FileOutputStream(targetfile, false)) {
-			try (ZipOutputStream zipOut = new ZipOutputStream(fos)) {
-				for (File fileToZip : files) {
-					try (FileInputStream fis = new FileInputStream(fileToZip)) {
-						ZipEntry zipEntry = new ZipEntry(fileToZip.getName());
-						zipOut.putNextEntry(zipEntry);
-						byte[] bytes = new byte[1024];
-						int length;
-						while ((length = fis.read(bytes)) >= 0) {
-							zipOut.write(bytes, 0, length);
-						}
+			zipFiles(files, fos);
+		}
+	}
+
+	// returns the number of compressed bytes written to the stream
+	public long zipFiles(List<Resource> files, OutputStream out) throws IOException {
+		long start = System.nanoTime();
+		long total = 0;
+		NonClosingOutputStream target = new NonClosingOutputStream(out);
+		try (ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(target, buffersize))) {
+			zipOut.setLevel(level);
+			byte[] bytes = new byte[buffersize];
+			for (Resource fileToZip : files) {
+				// incompressible content is only copied, deflate would spend cpu
+				// without making it any smaller
+				boolean store = stored.contains(getExtension(fileToZip.getFilename()));
+				zipOut.setLevel(store ? Deflater.NO_COMPRESSION : level);
+				try (InputStream fis = fileToZip.getInputStream()) {
+					ZipEntry zipEntry = new ZipEntry(fileToZip.getFilename());
+					zipEntry.setTime(fileToZip.lastModified());
+					zipOut.putNextEntry(zipEntry);
+					int length;
+					while ((length = fis.read(bytes)) >= 0) {
+						zipOut.write(bytes, 0, length);
+						total += length;
 					}
+					zipOut.closeEntry();
 				}
 			}
 		}
+		metrics.recordZip(total, System.nanoTime() - start);
+		return target.count;
 	}
 
 	public void zipDirectory(Path source, Path target) throws IOException {
+		zipDirectory(source, target, Deflater.DEFAULT_COMPRESSION, Collections.emptySet(), new IoThrottle(0));
+	}
+
+	public void zipDirectory(Path source, Path target, int level, Set<String> stored, IoThrottle throttle)
+			throws IOException {
+		zipDirectory(source, target, level, stored, throttle, file -> true);
+	}
+
+	public void zipDirectory(Path source, Path target, int level, Set<String> stored, IoThrottle throttle,
+			Predicate<File> include) throws IOException {
+		long start = System.nanoTime();
+		long total;
 		try (FileOutputStream fos = new FileOutputStream(target.toFile())) {
-			try (ZipOutputStream zipOut = new ZipOutputStream(fos)) {
+			try (ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(fos, buffersize))) {
+				zipOut.setLevel(level);
 				File fileToZip = source.toFile();
-				zipFile(fileToZip, fileToZip.getName(), zipOut);
+				total = zipFile(fileToZip, fileToZip.getName(), zipOut, level, stored, throttle, include,
+						new byte[buffersize]);
 			}
 		}
+		metrics.recordZip(total, System.nanoTime() - start);
 	}
 
 	public void unzip(Path source, Path destination) throws IOException {
+		unzip(new FileInputStream(source.toFile()), destination);
+	}
+
+	public void unzip(InputStream source, Path destination) throws IOException {
+		long start = System.nanoTime();
+		long total = 0;
 		File destDir = destination.toFile();
 		byte[] buffer = new byte[1024];
-		try (ZipInputStream zis = new ZipInputStream(new FileInputStream(source.toFile()))) {
+		try (ZipInputStream zis = new ZipInputStream(source)) {
 			ZipEntry zipEntry = zis.getNextEntry();
 			while (zipEntry != null) {
 				File newFile = newFile(destDir, zipEntry);
@@ -129,6 +290,7 @@ public class CommonServiceUtils {
 						int len;
 						while ((len = zis.read(buffer)) > 0) {
 							fos.write(buffer, 0, len);
+							total += len;
 						}
 					}
 				}
@@ -136,6 +298,7 @@ public class CommonServiceUtils {
 			}
 			zis.closeEntry();
 		}
+		metrics.recordUnzip(total, System.nanoTime() - start);
 	}
 
 	public boolean isEmpty(Path path) throws IOException {
@@ -147,9 +310,12 @@ public class CommonServiceUtils {
 		return false;
 	}
 
-	private void zipFile(File fileToZip, String fileName, ZipOutputStream zipOut) throws IOException {
-		if (fileToZip.isHidden()) {
-			return;
+	// returns the uncompressed size of everything added
+	private long zipFile(File fileToZip, String fileName, ZipOutputStream zipOut, int level, Set<String> stored,
+			IoThrottle throttle, Predicate<File> include, byte[] bytes) throws IOException {
+		// the checksum sidecar goes along so the archive can be verified
+		if (fileToZip.isHidden() && !ChecksumService.SIDECAR.equals(fileToZip.getName())) {
+			return 0;
 		}
 		if (fileToZip.isDirectory()) {
 			if (fileName.endsWith("/")) {
@@ -159,21 +325,75 @@ public class CommonServiceUtils {
 				zipOut.putNextEntry(new ZipEntry(fileName + "/"));
 				zipOut.closeEntry();
 			}
+			long total = 0;
 			File[] children = fileToZip.listFiles();
 			for (File childFile : children) {
-				zipFile(childFile, fileName + "/" + childFile.getName(), zipOut);
+				total += zipFile(childFile, fileName + "/" + childFile.getName(), zipOut, level, stored, throttle,
+						include, bytes);
 			}
-			return;
+			return total;
+		}
+		if (!include.test(fileToZip)) {
+			return 0;
 		}
+		ZipEntry zipEntry = new ZipEntry(fileName);
+		zipEntry.setTime(fileToZip.lastModified());
+		// already compressed content gains nothing from deflate; level 0 copies
+		// it in the same single pass, a stored entry would need its checksum
+		// and so another read up front
+		zipOut.setLevel(stored.contains(getExtension(fileToZip.getName())) ? Deflater.NO_COMPRESSION : level);
+		long total = 0;
 		try (FileInputStream fis = new FileInputStream(fileToZip)) {
-			ZipEntry zipEntry = new ZipEntry(fileName);
 			zipOut.putNextEntry(zipEntry);
-			byte[] bytes = new byte[1024];
 			int length;
 			while ((length = fis.read(bytes)) >= 0) {
+				throttle.acquire(length);
 				zipOut.write(bytes, 0, length);
+				total += length;
 			}
+			zipOut.closeEntry();
 		}
+		return total;
+	}
+
+	private String getExtension(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+	}
+
+	// keeps a-z (and 0-9) in a single pass, returning the name itself when
+	// nothing has to change; called for every request so it avoids regexes
+	private String retain(String name, boolean lowerCase, boolean digits, int max) {
+		char[] chars = null;
+		int length = 0;
+		for (int index = 0; index < name.length() && length < max; index++) {
+			char c = name.charAt(index);
+			char mapped = lowerCase ? toLowerCase(c) : c;
+			boolean keep = (mapped >= 'a' && mapped <= 'z') || (digits && mapped >= '0' && mapped <= '9');
+			if (chars == null) {
+				if (keep && mapped == c) {
+					length++;
+					continue;
+				}
+				chars = new char[Math.min(name.length(), max)];
+				name.getChars(0, length, chars, 0);
+			}
+			if (keep) {
+				chars[length++] = mapped;
+			}
+		}
+		if (chars != null) {
+			return new String(chars, 0, length);
+		}
+		return length == name.length() ? name : name.substring(0, length);
+	}
+
+	private char toLowerCase(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		// a few other letters, like the kelvin sign, lower case to ascii
+		return c < 128 ? c : Character.toLowerCase(c);
 	}
 
 	private File newFile(File destinationDir, ZipEntry zipEntry) throws IOException {
@@ -186,4 +406,82 @@ public class CommonServiceUtils {
 		return destFile;
 	}
 
+	private static class DeletingVisitor extends SimpleFileVisitor<Path> {
+
+		private static final int MAX_FAILURES = 100;
+
+		private final List<IOException> failures = new ArrayList<>();
+		private long deleted;
+		private long failed;
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+			delete(file);
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException exc) {
+			fail(exc);
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+			if (exc != null) {
+				fail(exc);
+			}
+			delete(dir);
+			return FileVisitResult.CONTINUE;
+		}
+
+		private void delete(Path path) {
+			try {
+				Files.delete(path);
+				deleted++;
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		// entries removed by someone else in the meantime are not failures
+		private void fail(IOException e) {
+			if (e instanceof NoSuchFileException) {
+				return;
+			}
+			failed++;
+			if (failures.size() < MAX_FAILURES) {
+				failures.add(e);
+			}
+		}
+
+	}
+
+	private static class NonClosingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		public NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+
+	}
+
 }
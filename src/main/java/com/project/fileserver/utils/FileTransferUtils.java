@@ -0,0 +1,462 @@
+package com.project.fileserver.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.FileCacheService;
+
+@Component
+public class FileTransferUtils {
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	private static final String GZIP = "gzip";
+	private static final String COMPRESSIBLE_TYPES = "text/*,application/json,application/xml,application/javascript,"
+			+ "application/x-ndjson,application/x-yaml,image/svg+xml";
+
+	@Value("${download.sendfile:true}")
+	private boolean sendfile;
+
+	@Value("${download.maxranges:16}")
+	private int maxranges;
+
+	@Value("${download.compression.enabled:true}")
+	private boolean compression;
+
+	@Value("${download.compression.minsize:1024}")
+	private long compressionMinsize;
+
+	@Value("${download.compression.maxsize:8388608}")
+	private long compressionMaxsize;
+
+	@Value("${download.compression.level:6}")
+	private int compressionLevel;
+
+	private List<MediaType> compressibleTypes;
+
+	@Autowired
+	private FileserverMetrics metrics;
+
+	@Autowired
+	private AsyncTransferUtils asyncTransfer;
+
+	@Autowired
+	private FileCacheService fileCache;
+
+	// parsed once, a bad type fails the startup instead of every download
+	@Value("${download.compression.types:" + COMPRESSIBLE_TYPES + "}")
+	public void setCompressibleTypes(String[] types) {
+		List<MediaType> mediaTypes = new ArrayList<>(types.length);
+		for (String type : types) {
+			mediaTypes.add(MediaType.parseMediaType(type.trim()));
+		}
+		this.compressibleTypes = mediaTypes;
+	}
+
+	public void transfer(Resource resource, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		transfer(resource, null, null, request, response);
+	}
+
+	// the checksum becomes a strong etag, so clients can revalidate what they
+	// already hold without downloading it again. Files of a folder can be sent
+	// compressed, their encoded copies are cached with the folder's files
+	public void transfer(Resource resource, String checksum, RequiredObject requiredObject,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		long length = resource.contentLength();
+		long lastModified = resource.lastModified() / 1000 * 1000;
+		MediaType mediaType = MediaTypeFactory.getMediaType(resource.getFilename())
+				.orElse(MediaType.APPLICATION_OCTET_STREAM);
+		String contentType = mediaType.toString();
+		// files of a folder are sent under its lease; the container gives no
+		// word when it has sent a file, so those are never left to sendfile
+		boolean leased = requiredObject != null;
+		// ranges always address the unencoded file
+		boolean compressible = requiredObject != null && isCompressible(mediaType, length);
+		String encoding = compressible && request.getHeader(HttpHeaders.RANGE) == null && acceptsGzip(request) ? GZIP
+				: null;
+
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		if (compressible) {
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		// each encoding is a representation of its own and needs its own etag
+		String etag = checksum == null ? null
+				: encoding == null ? "\"" + checksum + "\"" : "\"" + checksum + "-" + encoding + "\"";
+		if (etag != null) {
+			response.setHeader(HttpHeaders.ETAG, etag);
+		}
+		if (!checkPreconditions(request, response, lastModified, etag)) {
+			return;
+		}
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"");
+
+		if (encoding != null) {
+			byte[] encoded = fileCache.getVariant(requiredObject, resource, encoding, this::gzip);
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(contentType);
+			response.setHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+			response.setContentLengthLong(encoded.length);
+			write(new ByteArrayResource(encoded), 0, encoded.length, leased, request, response);
+			return;
+		}
+
+		List<long[]> ranges = parseRanges(request, lastModified, etag, length);
+		if (ranges == null) {
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(contentType);
+			response.setContentLengthLong(length);
+			write(resource, 0, length, leased, request, response);
+		} else if (ranges.isEmpty()) {
+			response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+		} else if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+			response.setContentType(contentType);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(range, length));
+			response.setContentLengthLong(range[1] - range[0] + 1);
+			write(resource, range[0], range[1] - range[0] + 1, leased, request, response);
+		} else {
+			metrics.recordDownload(writeMultipart(resource, contentType, ranges, length, response));
+		}
+	}
+
+	private boolean checkPreconditions(HttpServletRequest request, HttpServletResponse response, long lastModified,
+			String etag) {
+		String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+		if (ifMatch != null && !matches(ifMatch, etag, false)) {
+			response.setStatus(HttpStatus.PRECONDITION_FAILED.value());
+			return false;
+		}
+		// when both are sent the etag decides and the date is ignored
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			if (matches(ifNoneMatch, etag, true)) {
+				response.setStatus(HttpStatus.NOT_MODIFIED.value());
+				return false;
+			}
+			return true;
+		}
+		long ifUnmodifiedSince = getDateHeader(request, HttpHeaders.IF_UNMODIFIED_SINCE);
+		if (ifUnmodifiedSince != -1 && lastModified > ifUnmodifiedSince) {
+			response.setStatus(HttpStatus.PRECONDITION_FAILED.value());
+			return false;
+		}
+		long ifModifiedSince = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+		if (ifModifiedSince != -1 && lastModified <= ifModifiedSince) {
+			response.setStatus(HttpStatus.NOT_MODIFIED.value());
+			return false;
+		}
+		return true;
+	}
+
+	// null means "serve the whole file", an empty list means the range is not
+	// satisfiable
+	private List<long[]> parseRanges(HttpServletRequest request, long lastModified, String etag, long length) {
+		String header = request.getHeader(HttpHeaders.RANGE);
+		if (header == null || !header.startsWith("bytes=")) {
+			return null;
+		}
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange != null && (ifRange.startsWith("\"") || ifRange.startsWith("W/"))) {
+			if (etag == null || !etag.equals(ifRange.trim())) {
+				return null;
+			}
+		} else if (ifRange != null) {
+			long date = getDateHeader(request, HttpHeaders.IF_RANGE);
+			if (date == -1 || lastModified > date) {
+				return null;
+			}
+		}
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > maxranges) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long start;
+			long end;
+			try {
+				if (dash == 0) {
+					long suffix = Long.parseLong(spec.substring(1));
+					if (suffix <= 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						end = length - 1;
+					} else {
+						end = Long.parseLong(spec.substring(dash + 1));
+						if (end < start) {
+							return null;
+						}
+						end = Math.min(end, length - 1);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (start < length) {
+				ranges.add(new long[] { start, end });
+			}
+		}
+		return ranges;
+	}
+
+	// the bytes are recorded once they are written, not when a transfer that
+	// goes on without the request thread starts
+	private void write(Resource resource, long position, long count, boolean leased, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (count == 0) {
+			metrics.recordDownload(0);
+			return;
+		}
+		// sendfile already leaves the writing to the container's poller
+		boolean sendfile = this.sendfile && !leased && resource.isFile()
+				&& Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT));
+		if (!sendfile && asyncTransfer.isEnabled()) {
+			asyncTransfer.write(resource, position, count, request, response, () -> metrics.recordDownload(count));
+			return;
+		}
+		if (!resource.isFile()) {
+			try (InputStream in = resource.getInputStream()) {
+				copyRange(in, 0, position, count, response.getOutputStream());
+			}
+			metrics.recordDownload(count);
+			return;
+		}
+		File file = resource.getFile();
+		if (sendfile) {
+			// the container reports nothing back, counted when it is handed over
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, position);
+			request.setAttribute(SENDFILE_END, position + count);
+			metrics.recordDownload(count);
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			transferTo(channel, position, count, Channels.newChannel(response.getOutputStream()));
+		}
+		metrics.recordDownload(count);
+	}
+
+	private long writeMultipart(Resource resource, String contentType, List<long[]> ranges, long length,
+			HttpServletResponse response) throws IOException {
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+		List<byte[]> headers = new ArrayList<>(ranges.size());
+		long total = 0;
+		for (long[] range : ranges) {
+			byte[] header = String.format("\r\n--%s\r\n%s: %s\r\n%s: %s\r\n\r\n", boundary,
+					HttpHeaders.CONTENT_TYPE, contentType, HttpHeaders.CONTENT_RANGE, contentRange(range, length))
+					.getBytes(StandardCharsets.US_ASCII);
+			headers.add(header);
+			total += header.length + range[1] - range[0] + 1;
+		}
+		byte[] trailer = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+		total += trailer.length;
+
+		response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(total);
+		OutputStream out = response.getOutputStream();
+		if (resource.isFile()) {
+			WritableByteChannel target = Channels.newChannel(out);
+			try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+				for (int index = 0, limit = ranges.size(); index < limit; index++) {
+					long[] range = ranges.get(index);
+					out.write(headers.get(index));
+					transferTo(channel, range[0], range[1] - range[0] + 1, target);
+				}
+			}
+		} else {
+			// entries inside archives can only be read sequentially, reopen them
+			// whenever a range starts before the current position
+			InputStream in = null;
+			long current = 0;
+			try {
+				for (int index = 0, limit = ranges.size(); index < limit; index++) {
+					long[] range = ranges.get(index);
+					out.write(headers.get(index));
+					if (in == null || range[0] < current) {
+						if (in != null) {
+							in.close();
+						}
+						in = resource.getInputStream();
+						current = 0;
+					}
+					current = copyRange(in, current, range[0], range[1] - range[0] + 1, out);
+				}
+			} finally {
+				if (in != null) {
+					in.close();
+				}
+			}
+		}
+		out.write(trailer);
+		return total;
+	}
+
+	private long copyRange(InputStream in, long current, long position, long count, OutputStream out)
+			throws IOException {
+		long skip = position - current;
+		while (skip > 0) {
+			long skipped = in.skip(skip);
+			if (skipped <= 0) {
+				throw new IOException("Unexpected end of stream at position " + (position - skip));
+			}
+			skip -= skipped;
+		}
+		byte[] bytes = new byte[(int) Math.min(count, 65536)];
+		long remaining = count;
+		while (remaining > 0) {
+			int length = in.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+			if (length < 0) {
+				throw new IOException("Unexpected end of stream at position " + (position + count - remaining));
+			}
+			out.write(bytes, 0, length);
+			remaining -= length;
+		}
+		return position + count;
+	}
+
+	private void transferTo(FileChannel channel, long position, long count, WritableByteChannel target)
+			throws IOException {
+		while (count > 0) {
+			long transferred = channel.transferTo(position, count, target);
+			if (transferred <= 0) {
+				throw new IOException("Unexpected end of file at position " + position);
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	private boolean isCompressible(MediaType mediaType, long length) {
+		if (!compression || length < compressionMinsize || length > compressionMaxsize) {
+			return false;
+		}
+		for (MediaType type : compressibleTypes) {
+			if (type.includes(mediaType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// gzip unless the client refuses it, by name or through "*;q=0"
+	private boolean acceptsGzip(HttpServletRequest request) {
+		Boolean wildcard = null;
+		Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+		while (headers != null && headers.hasMoreElements()) {
+			for (String coding : headers.nextElement().split(",")) {
+				String[] parts = coding.split(";");
+				String name = parts[0].trim().toLowerCase();
+				boolean accepted = true;
+				for (int index = 1; index < parts.length; index++) {
+					String parameter = parts[index].trim();
+					if (parameter.startsWith("q=")) {
+						try {
+							accepted = Double.parseDouble(parameter.substring(2)) > 0;
+						} catch (NumberFormatException e) {
+							accepted = false;
+						}
+					}
+				}
+				if (name.equals(GZIP) || name.equals("x-gzip")) {
+					return accepted;
+				}
+				if (name.equals("*")) {
+					wildcard = accepted;
+				}
+			}
+		}
+		return Boolean.TRUE.equals(wildcard);
+	}
+
+	private byte[] gzip(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(bytes, 65536) {
+			{
+				def.setLevel(compressionLevel);
+			}
+		}) {
+			in.transferTo(out);
+		}
+		return bytes.toByteArray();
+	}
+
+	// a list of etags or "*", weak comparison ignores the W/ prefix
+	private boolean matches(String header, String etag, boolean weak) {
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*")) {
+				return true;
+			}
+			if (etag == null) {
+				continue;
+			}
+			if (tag.startsWith("W/")) {
+				if (!weak) {
+					continue;
+				}
+				tag = tag.substring(2);
+			}
+			if (tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String contentRange(long[] range, long length) {
+		return String.format("bytes %d-%d/%d", range[0], range[1], length);
+	}
+
+	private long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.project.fileserver.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// meters are registered once and looked up without building tags on the hot path
+@Component
+public class FileserverMetrics {
+
+	private final MeterRegistry registry;
+	private final AtomicInteger active = new AtomicInteger();
+	private final Map<String, Timer> passes = new ConcurrentHashMap<>();
+	private final Map<String, Counter> items = new ConcurrentHashMap<>();
+	private final DistributionSummary uploaded;
+	private final DistributionSummary downloaded;
+	private final Timer zip;
+	private final Counter zipped;
+	private final Timer unzip;
+	private final Counter unzipped;
+
+	public FileserverMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		registry.gauge("fileserver.requests.active", active);
+		this.uploaded = DistributionSummary.builder("fileserver.upload.bytes").baseUnit("bytes")
+				.description("Bytes written per uploaded file").register(registry);
+		this.downloaded = DistributionSummary.builder("fileserver.download.bytes").baseUnit("bytes")
+				.description("Bytes sent per download").register(registry);
+		this.zip = Timer.builder("fileserver.zip").description("Time spent writing zip archives").register(registry);
+		this.zipped = Counter.builder("fileserver.zip.bytes").baseUnit("bytes")
+				.description("Uncompressed bytes written into zip archives").register(registry);
+		this.unzip = Timer.builder("fileserver.unzip").description("Time spent extracting zip archives")
+				.register(registry);
+		this.unzipped = Counter.builder("fileserver.unzip.bytes").baseUnit("bytes")
+				.description("Uncompressed bytes extracted from zip archives").register(registry);
+	}
+
+	public int requestStarted() {
+		return active.incrementAndGet();
+	}
+
+	public int requestFinished() {
+		return active.decrementAndGet();
+	}
+
+	public void recordUpload(long bytes) {
+		uploaded.record(bytes);
+	}
+
+	public void recordDownload(long bytes) {
+		downloaded.record(bytes);
+	}
+
+	public void recordZip(long bytes, long nanos) {
+		zipped.increment(bytes);
+		zip.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordUnzip(long bytes, long nanos) {
+		unzipped.increment(bytes);
+		unzip.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordPass(String executor, long processed, long nanos) {
+		passes.computeIfAbsent(executor, name -> Timer.builder("fileserver.executor.pass").tag("executor", name)
+				.description("Lifecycle pass duration").register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+		items.computeIfAbsent(executor, name -> Counter.builder("fileserver.executor.items").tag("executor", name)
+				.description("Folders processed by lifecycle passes").register(registry)).increment(processed);
+	}
+
+}
@@ -0,0 +1,242 @@
+package com.project.fileserver.utils;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.RequiredObject;
+
+@Component
+public class FolderLockManager {
+
+	private final Map<String, LockEntry> locks = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<Object>> flights = new ConcurrentHashMap<>();
+
+	// exclusive locks also wait for the leases of the folder; they wait
+	// without holding the lock, so a long download never blocks the readers
+	// of its folder. While one waits no new leases are handed out, so a
+	// steady stream of downloads cannot starve it. A wait that is interrupted
+	// ends with a CancellationException
+	public FolderLock lock(RequiredObject requiredObject, boolean exclusive) {
+		String key = getKey(requiredObject);
+		LockEntry entry = acquire(key);
+		Lock lock = exclusive ? entry.lock.writeLock() : entry.lock.readLock();
+		if (exclusive) {
+			entry.addWriter();
+		}
+		try {
+			while (true) {
+				if (exclusive) {
+					entry.awaitLeases();
+				}
+				lock.lock();
+				if (!exclusive || !entry.isLeased()) {
+					return new FolderLock(key, lock::unlock);
+				}
+				lock.unlock();
+			}
+		} catch (RuntimeException e) {
+			release(key);
+			throw e;
+		} finally {
+			if (exclusive) {
+				entry.removeWriter();
+			}
+		}
+	}
+
+	public FolderLock tryLock(RequiredObject requiredObject, boolean exclusive) {
+		String key = getKey(requiredObject);
+		LockEntry entry = acquire(key);
+		Lock lock = exclusive ? entry.lock.writeLock() : entry.lock.readLock();
+		if (!lock.tryLock()) {
+			release(key);
+			return null;
+		}
+		if (exclusive && entry.isLeased()) {
+			lock.unlock();
+			release(key);
+			return null;
+		}
+		return new FolderLock(key, lock::unlock);
+	}
+
+	// the exclusive lock unless the folder is leased: waits for the other
+	// locks, which are held briefly, but not for downloads
+	public FolderLock lockUnlessLeased(RequiredObject requiredObject) {
+		String key = getKey(requiredObject);
+		LockEntry entry = acquire(key);
+		Lock lock = entry.lock.writeLock();
+		try {
+			lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			release(key);
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting for a folder");
+		}
+		if (entry.isLeased()) {
+			lock.unlock();
+			release(key);
+			return null;
+		}
+		return new FolderLock(key, lock::unlock);
+	}
+
+	// a shared hold on the folder that may be released by another thread,
+	// e.g. the one that completes an asynchronous download. Taken like a
+	// shared lock, so it waits for an exclusive holder, and also for the
+	// exclusive lockers waiting for the leases already held
+	public FolderLock lease(RequiredObject requiredObject) {
+		String key = getKey(requiredObject);
+		LockEntry entry = acquire(key);
+		Lock lock = entry.lock.readLock();
+		try {
+			entry.awaitWriters();
+			lock.lock();
+		} catch (RuntimeException e) {
+			release(key);
+			throw e;
+		}
+		try {
+			entry.lease();
+		} finally {
+			lock.unlock();
+		}
+		return new FolderLock(key, entry::unlease);
+	}
+
+	public <T> T singleFlight(RequiredObject requiredObject, Callable<T> task) throws Exception {
+		return singleFlight(getKey(requiredObject), task);
+	}
+
+	// the same for work on a single file of a folder, which does not wait for
+	// the work on other files
+	public <T> T singleFlight(RequiredObject requiredObject, String filename, Callable<T> task) throws Exception {
+		return singleFlight(getKey(requiredObject) + "/" + filename, task);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T singleFlight(String key, Callable<T> task) throws Exception {
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		CompletableFuture<Object> existing = flights.putIfAbsent(key, future);
+		if (existing != null) {
+			try {
+				return (T) existing.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+		try {
+			T result = task.call();
+			future.complete(result);
+			return result;
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			flights.remove(key, future);
+		}
+	}
+
+	private String getKey(RequiredObject requiredObject) {
+		return String.format("%s/%s", requiredObject.getBucket(), requiredObject.getFolderid());
+	}
+
+	private LockEntry acquire(String key) {
+		return locks.compute(key, (k, entry) -> {
+			LockEntry result = entry == null ? new LockEntry() : entry;
+			result.references++;
+			return result;
+		});
+	}
+
+	private void release(String key) {
+		locks.computeIfPresent(key, (k, entry) -> --entry.references == 0 ? null : entry);
+	}
+
+	private static class LockEntry {
+
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private int references;
+		private int leases;
+		// exclusive lockers waiting for the leases to end
+		private int writers;
+
+		private synchronized void lease() {
+			leases++;
+		}
+
+		private synchronized void unlease() {
+			if (--leases == 0) {
+				notifyAll();
+			}
+		}
+
+		private synchronized boolean isLeased() {
+			return leases > 0;
+		}
+
+		private synchronized void addWriter() {
+			writers++;
+		}
+
+		private synchronized void removeWriter() {
+			if (--writers == 0) {
+				notifyAll();
+			}
+		}
+
+		private synchronized void awaitLeases() {
+			while (leases > 0) {
+				await();
+			}
+		}
+
+		private synchronized void awaitWriters() {
+			while (writers > 0) {
+				await();
+			}
+		}
+
+		// a shutdown interrupts the wait instead of waiting for downloads
+		private synchronized void await() {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Interrupted while waiting for a folder");
+			}
+		}
+
+	}
+
+	public class FolderLock implements AutoCloseable {
+
+		private final String key;
+		private final Runnable unlock;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private FolderLock(String key, Runnable unlock) {
+			this.key = key;
+			this.unlock = unlock;
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				unlock.run();
+				release(key);
+			}
+		}
+
+	}
+
+}
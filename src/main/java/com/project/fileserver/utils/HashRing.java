@@ -0,0 +1,49 @@
+package com.project.fileserver.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// consistent hash ring: every node is placed on the ring at a number of
+// virtual points and a key belongs to the node of the first point at or after
+// its hash, so a node joining or leaving only moves the keys next to its own
+// points
+public class HashRing {
+
+	private final NavigableMap<Long, String> points = new TreeMap<>();
+
+	public HashRing(Collection<String> nodes, int vnodes) {
+		for (String node : nodes) {
+			for (int index = 0; index < vnodes; index++) {
+				points.put(hash(node + "#" + index), node);
+			}
+		}
+	}
+
+	public String getOwner(String key) {
+		if (points.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : points.firstEntry().getValue();
+	}
+
+	// 64 bit FNV-1a, finished with the murmur3 mix so that short keys which
+	// only differ in their last characters still land far apart
+	public static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte value : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}
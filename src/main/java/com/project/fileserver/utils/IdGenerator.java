@@ -0,0 +1,9 @@
+package com.project.fileserver.utils;
+
+// produces the folder, session and temporary ids; ids are lower case letters
+// and digits only and the prefix is expected to be sanitized already
+public interface IdGenerator {
+
+	String generate(String prefix);
+
+}
@@ -0,0 +1,38 @@
+package com.project.fileserver.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+public class IoThrottle {
+
+	private static final long BURST = TimeUnit.SECONDS.toNanos(1);
+
+	private final long bytesPerSecond;
+	private long next = System.nanoTime();
+
+	public IoThrottle(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public void acquire(long bytes) throws InterruptedIOException {
+		if (bytesPerSecond <= 0 || bytes <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			// idle time is credited up to one second of burst
+			next = Math.max(next, now - BURST) + bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+			wait = next - now;
+		}
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+	}
+
+}
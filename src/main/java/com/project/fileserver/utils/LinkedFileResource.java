@@ -0,0 +1,55 @@
+package com.project.fileserver.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.springframework.core.io.AbstractResource;
+
+public class LinkedFileResource extends AbstractResource {
+
+	private final Path link;
+	private final Path fallback;
+
+	public LinkedFileResource(Path link, Path fallback) {
+		this.link = link;
+		this.fallback = fallback;
+	}
+
+	@Override
+	public boolean exists() {
+		return Files.isRegularFile(getPath());
+	}
+
+	@Override
+	public String getFilename() {
+		return link.getFileName().toString();
+	}
+
+	@Override
+	public long contentLength() throws IOException {
+		return Files.size(getPath());
+	}
+
+	@Override
+	public long lastModified() throws IOException {
+		return Files.getLastModifiedTime(getPath()).toMillis();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return Files.newInputStream(getPath());
+	}
+
+	@Override
+	public String getDescription() {
+		return String.format("linked file [%s]", link);
+	}
+
+	// the folder was rehydrated since this link was resolved
+	private Path getPath() {
+		return !Files.exists(link) && fallback != null && Files.exists(fallback) ? fallback : link;
+	}
+
+}
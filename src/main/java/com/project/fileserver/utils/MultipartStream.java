@@ -0,0 +1,243 @@
+package com.project.fileserver.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MultipartStream {
+
+	private static final byte[] HEADER_SEPARATOR = { '\r', '\n', '\r', '\n' };
+	private static final int MIN_BUFFER_SIZE = 8192;
+
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final byte[] buffer;
+	private final long maxpartsize;
+	private int head;
+	private int tail;
+	private boolean finished;
+	private PartInputStream current;
+
+	public MultipartStream(InputStream in, String boundary, int buffersize, long maxpartsize) {
+		this.in = in;
+		this.maxpartsize = maxpartsize;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		this.buffer = new byte[Math.max(buffersize, MIN_BUFFER_SIZE)];
+		// the first boundary is not preceded by a line break, pretend it is
+		this.buffer[0] = '\r';
+		this.buffer[1] = '\n';
+		this.tail = 2;
+	}
+
+	public static String getBoundary(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.regionMatches(true, 0, "boundary=", 0, "boundary=".length())) {
+				String boundary = param.substring("boundary=".length());
+				if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+					boundary = boundary.substring(1, boundary.length() - 1);
+				}
+				return boundary.isEmpty() ? null : boundary;
+			}
+		}
+		return null;
+	}
+
+	public Part nextPart() throws IOException {
+		if (finished) {
+			return null;
+		}
+		if (current == null) {
+			// skip the preamble up to the first delimiter
+			current = new PartInputStream(-1);
+		}
+		current.skipRemaining();
+		if (!ensure(2)) {
+			throw new IOException("Malformed multipart body: unexpected end of stream");
+		}
+		if (buffer[head] == '-' && buffer[head + 1] == '-') {
+			finished = true;
+			return null;
+		}
+		int end = indexOf(HEADER_SEPARATOR, head);
+		while (end < 0) {
+			if (tail - head == buffer.length) {
+				throw new IOException("Malformed multipart body: part headers are too large");
+			}
+			if (!fill()) {
+				throw new IOException("Malformed multipart body: unexpected end of stream");
+			}
+			end = indexOf(HEADER_SEPARATOR, head);
+		}
+		Map<String, String> headers = new LinkedHashMap<>();
+		String block = new String(buffer, head, end - head, StandardCharsets.UTF_8);
+		for (String line : block.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		head = end + HEADER_SEPARATOR.length;
+		current = new PartInputStream(maxpartsize);
+		return new Part(headers, current);
+	}
+
+	private boolean ensure(int count) throws IOException {
+		while (tail - head < count) {
+			if (!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean fill() throws IOException {
+		if (head > 0) {
+			System.arraycopy(buffer, head, buffer, 0, tail - head);
+			tail -= head;
+			head = 0;
+		}
+		int read = in.read(buffer, tail, buffer.length - tail);
+		if (read < 0) {
+			return false;
+		}
+		tail += read;
+		return true;
+	}
+
+	private int indexOf(byte[] pattern, int from) {
+		int last = tail - pattern.length;
+		outer: for (int index = from; index <= last; index++) {
+			for (int offset = 0; offset < pattern.length; offset++) {
+				if (buffer[index + offset] != pattern[offset]) {
+					continue outer;
+				}
+			}
+			return index;
+		}
+		return -1;
+	}
+
+	public static class Part {
+
+		private final Map<String, String> headers;
+		private final InputStream content;
+
+		private Part(Map<String, String> headers, InputStream content) {
+			this.headers = headers;
+			this.content = content;
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		public String getFilename() {
+			String disposition = getHeader("content-disposition");
+			if (disposition == null) {
+				return null;
+			}
+			for (String param : disposition.split(";")) {
+				param = param.trim();
+				if (param.startsWith("filename=")) {
+					String filename = param.substring("filename=".length());
+					if (filename.length() > 1 && filename.startsWith("\"") && filename.endsWith("\"")) {
+						filename = filename.substring(1, filename.length() - 1);
+					}
+					// some clients send the full client-side path
+					int separator = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\'));
+					filename = filename.substring(separator + 1);
+					return filename.isEmpty() ? null : filename;
+				}
+			}
+			return null;
+		}
+
+		public InputStream getInputStream() {
+			return content;
+		}
+
+	}
+
+	public static class SizeLimitExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public SizeLimitExceededException(long limit) {
+			super("Part exceeds the maximum size of " + limit + " bytes");
+		}
+
+	}
+
+	private class PartInputStream extends InputStream {
+
+		private final long limit;
+		private long count;
+		private boolean done;
+
+		private PartInputStream(long limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			int available = readable();
+			while (available == 0) {
+				if (!fill()) {
+					throw new IOException("Malformed multipart body: unexpected end of stream");
+				}
+				available = readable();
+			}
+			if (available < 0) {
+				done = true;
+				head += delimiter.length;
+				return -1;
+			}
+			int length = Math.min(available, len);
+			count += length;
+			if (limit >= 0 && count > limit) {
+				throw new SizeLimitExceededException(limit);
+			}
+			System.arraycopy(buffer, head, b, off, length);
+			head += length;
+			return length;
+		}
+
+		// bytes that can safely be handed out, or -1 when the delimiter is at head
+		private int readable() {
+			int index = indexOf(delimiter, head);
+			if (index == head) {
+				return -1;
+			}
+			if (index > 0) {
+				return index - head;
+			}
+			return Math.max(0, tail - head - delimiter.length + 1);
+		}
+
+		private void skipRemaining() throws IOException {
+			byte[] skip = new byte[4096];
+			while (read(skip, 0, skip.length) >= 0) {
+			}
+		}
+
+	}
+
+}
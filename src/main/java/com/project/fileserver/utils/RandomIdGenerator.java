@@ -0,0 +1,36 @@
+package com.project.fileserver.utils;
+
+import java.util.UUID;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// the previous format, 32 hex characters of a random uuid; slower than the
+// ordered ids but unguessable
+@Component
+@ConditionalOnProperty(name = "ids.generator", havingValue = "random")
+public class RandomIdGenerator implements IdGenerator {
+
+	public static final int LENGTH = 32;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	@Override
+	public String generate(String prefix) {
+		UUID uuid = UUID.randomUUID();
+		int offset = prefix.length();
+		char[] chars = new char[offset + LENGTH];
+		prefix.getChars(0, offset, chars, 0);
+		encode(uuid.getMostSignificantBits(), chars, offset);
+		encode(uuid.getLeastSignificantBits(), chars, offset + 16);
+		return new String(chars);
+	}
+
+	private void encode(long value, char[] chars, int offset) {
+		for (int index = offset + 15; index >= offset; index--) {
+			chars[index] = HEX[(int) (value & 0xf)];
+			value >>>= 4;
+		}
+	}
+
+}
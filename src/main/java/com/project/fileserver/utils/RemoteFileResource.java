@@ -0,0 +1,89 @@
+package com.project.fileserver.utils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.ClusterService;
+
+// a file of a bucket owned by another node, fetched from that node when it is
+// read; whether it exists is only known then
+public class RemoteFileResource extends AbstractResource {
+
+	private final ClusterService cluster;
+	private final String node;
+	private final RequiredObject requiredObject;
+	private final String filename;
+	private long lastModified = System.currentTimeMillis();
+
+	public RemoteFileResource(ClusterService cluster, String node, RequiredObject requiredObject, String filename) {
+		this.cluster = cluster;
+		this.node = node;
+		this.requiredObject = requiredObject;
+		this.filename = filename;
+	}
+
+	@Override
+	public boolean exists() {
+		return true;
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	// known once the file has been opened
+	@Override
+	public long lastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		HttpResponse<InputStream> response;
+		try {
+			response = cluster.getClient().send(cluster.newRequest(node, "GET",
+					cluster.getFileTarget(requiredObject, filename), BodyPublishers.noBody()).build(),
+					BodyHandlers.ofInputStream());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		}
+		if (response.statusCode() != HttpStatus.OK.value()) {
+			response.body().close();
+			if (response.statusCode() == HttpStatus.NOT_FOUND.value()) {
+				throw new FileNotFoundException("Not found");
+			}
+			throw new IOException(node + " answered " + response.statusCode());
+		}
+		response.headers().firstValue(HttpHeaders.LAST_MODIFIED).ifPresent(value -> {
+			try {
+				lastModified = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+						.toEpochMilli();
+			} catch (DateTimeParseException e) {
+				// keeps the time it was fetched
+			}
+		});
+		return response.body();
+	}
+
+	@Override
+	public String getDescription() {
+		return String.format("file [%s/%s/%s] on node %s", requiredObject.getBucket(), requiredObject.getFolderid(),
+				filename, node);
+	}
+
+}
@@ -0,0 +1,145 @@
+package com.project.fileserver.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.project.fileserver.model.RequiredObject;
+
+// maps folders to their location on disk; with shards each bucket fans out
+// into levels of 256 directories named after a hash of the folder id, e.g.
+// <localpath>/<bucket>/3f/a0/<folderid> and <archivalpath>/<bucket>/3f/a0/<folderid>.zip
+@Component
+public class StoragePathResolver {
+
+	public static final int MAX_LEVELS = 4;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Path localpath;
+	private Path archivalpath;
+	private int levels;
+
+	public StoragePathResolver(@Value("${localpath:/fileserver/files}") String localpath,
+			@Value("${executors.archival.path:/fileserver/archives}") String archivalpath,
+			@Value("${storage.shards.levels:0}") int levels) {
+		if (levels < 0 || levels > MAX_LEVELS) {
+			throw new IllegalArgumentException("storage.shards.levels must be between 0 and " + MAX_LEVELS);
+		}
+		this.localpath = Paths.get(localpath);
+		this.archivalpath = Paths.get(archivalpath);
+		this.levels = levels;
+	}
+
+	public Path getLocalRoot() {
+		return localpath;
+	}
+
+	public Path getArchivalRoot() {
+		return archivalpath;
+	}
+
+	public boolean isSharded() {
+		return levels > 0;
+	}
+
+	public Path getFolder(RequiredObject requiredObject) {
+		return getFolder(requiredObject.getBucket(), requiredObject.getFolderid());
+	}
+
+	// folders that have not been migrated yet are still found at the flat
+	// location, which costs one extra lookup for folders that do not exist
+	public Path getFolder(String bucket, String folderid) {
+		return resolve(localpath.resolve(bucket), folderid);
+	}
+
+	public Path getArchive(RequiredObject requiredObject) {
+		return getArchive(requiredObject.getBucket(), requiredObject.getFolderid());
+	}
+
+	public Path getArchive(String bucket, String folderid) {
+		return resolve(archivalpath.resolve(bucket), String.format("%s.zip", folderid));
+	}
+
+	// deduplicated files of an archive are kept as links next to it
+	public Path getLinks(RequiredObject requiredObject) {
+		return getLinks(requiredObject.getBucket(), requiredObject.getFolderid());
+	}
+
+	public Path getLinks(String bucket, String folderid) {
+		return resolve(archivalpath.resolve(bucket), String.format("%s.links", folderid));
+	}
+
+	// the location under the configured layout, whether or not anything is there
+	public Path getShardedPath(Path bucket, String name) {
+		Path path = bucket;
+		if (levels > 0) {
+			String hash = getHash(getFolderid(name));
+			for (int level = 0; level < levels; level++) {
+				path = path.resolve(hash.substring(level * 2, level * 2 + 2));
+			}
+		}
+		return path.resolve(name);
+	}
+
+	// visits the folders, archives and links of a bucket in any layout,
+	// skipping hidden staging files
+	public void forEachEntry(Path bucket, Consumer<Path> consumer) throws IOException {
+		try (Stream<Path> entries = Files.list(bucket)) {
+			for (Path entry : (Iterable<Path>) entries::iterator) {
+				String name = entry.getFileName().toString();
+				if (name.startsWith(".")) {
+					continue;
+				}
+				if (isShard(name) && Files.isDirectory(entry)) {
+					forEachEntry(entry, consumer);
+				} else {
+					consumer.accept(entry);
+				}
+			}
+		}
+	}
+
+	// generated ids are always longer, so a two character hex name is a shard
+	public boolean isShard(String name) {
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+				&& Character.digit(name.charAt(1), 16) >= 0;
+	}
+
+	private Path resolve(Path bucket, String name) {
+		Path sharded = getShardedPath(bucket, name);
+		if (levels > 0 && !Files.exists(sharded)) {
+			Path flat = bucket.resolve(name);
+			if (Files.exists(flat)) {
+				return flat;
+			}
+		}
+		return sharded;
+	}
+
+	private String getFolderid(String name) {
+		int dot = name.indexOf('.');
+		return dot < 0 ? name : name.substring(0, dot);
+	}
+
+	private String getHash(String folderid) {
+		CRC32 crc = new CRC32();
+		crc.update(folderid.getBytes(StandardCharsets.UTF_8));
+		long value = crc.getValue();
+		char[] chars = new char[8];
+		for (int index = 7; index >= 0; index--) {
+			chars[index] = HEX[(int) (value & 0xf)];
+			value >>>= 4;
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.project.fileserver.utils;
+
+import java.security.SecureRandom;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+// ulid style ids: 48 bits of milliseconds, the node and 70 random bits, so ids
+// with the same prefix sort by creation time. Folder ids are all a download
+// url needs, so the random part comes from a secure generator: knowing when a
+// folder was created still leaves 2^70 candidates
+@Component
+@ConditionalOnProperty(name = "ids.generator", havingValue = "ordered", matchIfMissing = true)
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+	public static final int LENGTH = 26;
+	public static final int MAX_NODE = 1023;
+
+	// crockford's base32 in lower case, in ascending order so the text sorts
+	// like the value
+	private static final char[] ALPHABET = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+
+	private final SecureRandom random = new SecureRandom();
+	private final int node;
+
+	public TimeOrderedIdGenerator(@Value("${ids.node:0}") int node) {
+		if (node < 0 || node > MAX_NODE) {
+			throw new IllegalArgumentException("ids.node must be between 0 and " + MAX_NODE);
+		}
+		this.node = node;
+	}
+
+	@Override
+	public String generate(String prefix) {
+		return generate(prefix, System.currentTimeMillis());
+	}
+
+	String generate(String prefix, long time) {
+		byte[] bytes = new byte[9];
+		random.nextBytes(bytes);
+		long high = 0;
+		for (int index = 0; index < 8; index++) {
+			high = high << 8 | bytes[index] & 0xff;
+		}
+		int offset = prefix.length();
+		char[] chars = new char[offset + LENGTH];
+		prefix.getChars(0, offset, chars, 0);
+		encode(time, chars, offset, 10);
+		encode(node, chars, offset + 10, 2);
+		// 60 bits of the long, then 2 of its unused top bits and the last byte
+		encode(high, chars, offset + 12, 12);
+		encode(high >>> 60 << 8 | bytes[8] & 0xff, chars, offset + 24, 2);
+		return new String(chars);
+	}
+
+	// writes the lowest 5 * count bits of the value
+	private void encode(long value, char[] chars, int offset, int count) {
+		for (int index = offset + count - 1; index >= offset; index--) {
+			chars[index] = ALPHABET[(int) (value & 31)];
+			value >>>= 5;
+		}
+	}
+
+}
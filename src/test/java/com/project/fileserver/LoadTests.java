@@ -0,0 +1,332 @@
+package com.project.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.project.fileserver.executors.ArchivalExecutor;
+import com.project.fileserver.executors.DeletionExecutor;
+import com.project.fileserver.utils.StoragePathResolver;
+
+// drives the REST API with a weighted mix of requests and reports latency,
+// error rate and disk growth; run with mvn test -Pload and tune with
+// -Dload.duration=seconds -Dload.concurrency=threads -Dload.folders=count
+// -Dload.sizes=bytes:weight,... -Dload.mix=operation:weight,...
+// -Dload.lifecycle=seconds between archival and deletion passes (0 disables)
+// -Dload.archival.days / -Dload.deletion.days (-1 makes every folder eligible)
+// -Dload.maxerrors=fraction of failed requests that still passes
+@Tag("load")
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+class LoadTests {
+
+	private static final Path ROOT = createRoot();
+	private static final String BUCKET = "load";
+	private static final int FILES_PER_FOLDER = 16;
+
+	@Autowired
+	private TestRestTemplate rest;
+
+	@Autowired
+	private ArchivalExecutor archivalExecutor;
+
+	@Autowired
+	private DeletionExecutor deletionExecutor;
+
+	@Autowired
+	private StoragePathResolver paths;
+
+	private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+	// uploads into folders the archival pass removed because they were empty
+	private final AtomicLong expired = new AtomicLong();
+	// folder/filename -> size of the files the clients know about
+	private final Map<String, Integer> known = new ConcurrentHashMap<>();
+	private final List<String> folders = new ArrayList<>();
+
+	@DynamicPropertySource
+	static void properties(DynamicPropertyRegistry registry) {
+		registry.add("localpath", () -> ROOT.resolve("files").toString());
+		registry.add("temppath", () -> ROOT.resolve("temp").toString());
+		registry.add("executors.archival.path", () -> ROOT.resolve("archives").toString());
+		registry.add("upload.sessions.path", () -> ROOT.resolve("sessions").toString());
+		registry.add("upload.dedup.path", () -> ROOT.resolve("blobs").toString());
+		registry.add("metadata.path", () -> ROOT.resolve("metadata").resolve("index.mv.db").toString());
+		registry.add("executors.archival.days", () -> System.getProperty("load.archival.days", "-1"));
+		registry.add("executors.deletion.days", () -> System.getProperty("load.deletion.days", "1"));
+	}
+
+	@AfterAll
+	static void cleanUp() throws IOException {
+		try (Stream<Path> paths = Files.walk(ROOT)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void sustainsMixedTraffic() throws Exception {
+		long duration = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 60));
+		int concurrency = Integer.getInteger("load.concurrency", 16);
+		int lifecycle = Integer.getInteger("load.lifecycle", 15);
+		double maxerrors = Double.parseDouble(System.getProperty("load.maxerrors", "0.01"));
+		Map<String, Integer> sizes = parseWeights(System.getProperty("load.sizes", "1024:50,65536:40,1048576:10"));
+		Map<String, Integer> mix = parseWeights(System.getProperty("load.mix",
+				"generate:5,upload:30,download:55,delete:10"));
+		for (int index = 0, limit = Integer.getInteger("load.folders", 64); index < limit; index++) {
+			generate();
+		}
+
+		long startSize = sizeOf(ROOT);
+		AtomicLong peakTemp = new AtomicLong();
+		List<Long> passes = new ArrayList<>();
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		long deadline = System.nanoTime() + duration;
+		long start = System.nanoTime();
+		for (int index = 0; index < concurrency; index++) {
+			workers.execute(() -> {
+				Random random = ThreadLocalRandom.current();
+				while (System.nanoTime() < deadline) {
+					String operation = pick(mix, random);
+					try {
+						run(operation, Integer.parseInt(pick(sizes, random)), random);
+					} catch (RuntimeException e) {
+						errors.computeIfAbsent(operation, key -> new AtomicLong()).incrementAndGet();
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		long nextPass = lifecycle > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(lifecycle) : Long.MAX_VALUE;
+		while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+			peakTemp.accumulateAndGet(sizeOf(ROOT.resolve("temp")), Math::max);
+			if (System.nanoTime() >= nextPass) {
+				long passStart = System.nanoTime();
+				archivalExecutor.runPass();
+				deletionExecutor.runPass();
+				passes.add(System.nanoTime() - passStart);
+				nextPass = System.nanoTime() + TimeUnit.SECONDS.toNanos(lifecycle);
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		long total = 0;
+		long failed = 0;
+		System.out.printf("%n%-10s %10s %10s %10s %10s %10s %10s %8s%n", "operation", "requests", "ops/s", "p50 ms",
+				"p99 ms", "p999 ms", "max ms", "errors");
+		for (String operation : mix.keySet()) {
+			Histogram histogram = latencies.getOrDefault(operation, new Histogram(3));
+			long count = histogram.getTotalCount();
+			long error = errors.getOrDefault(operation, new AtomicLong()).get();
+			System.out.printf("%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %8d%n", operation, count,
+					count / elapsed, millis(histogram.getValueAtPercentile(50)),
+					millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+					millis(histogram.getMaxValue()), error);
+			total += count;
+			failed += error;
+		}
+		double errorRate = total == 0 ? 0 : (double) failed / total;
+		System.out.printf("total %d requests in %.1f s, %.1f ops/s, error rate %.4f%n", total, elapsed,
+				total / elapsed, errorRate);
+		System.out.printf("disk %d -> %d bytes, temp peak %d bytes, %d lifecycle passes, slowest %.1f ms, "
+				+ "%d uploads to expired folders%n", startSize, sizeOf(ROOT), peakTemp.get(), passes.size(),
+				millis(passes.stream().mapToLong(Long::longValue).max().orElse(0)), expired.get());
+		assertTrue(errorRate <= maxerrors, "error rate " + errorRate + " exceeds " + maxerrors);
+	}
+
+	private void run(String operation, int size, Random random) {
+		switch (operation) {
+		case "generate":
+			generate();
+			break;
+		case "upload":
+			upload(size, random);
+			break;
+		case "download":
+			download(random);
+			break;
+		case "delete":
+			delete(random);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown operation " + operation);
+		}
+	}
+
+	private void generate() {
+		long start = System.nanoTime();
+		ResponseEntity<String> response = rest.getForEntity("/api/generateId?bucket={bucket}", String.class, BUCKET);
+		record("generate", start, response);
+		if (response.getStatusCode().is2xxSuccessful()) {
+			synchronized (folders) {
+				folders.add(response.getBody());
+			}
+		}
+	}
+
+	private void upload(int size, Random random) {
+		String folder = randomFolder(random);
+		String filename = String.format("file%02d.bin", random.nextInt(FILES_PER_FOLDER));
+		byte[] content = new byte[size];
+		random.nextBytes(content);
+		MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+		body.add("files", new ByteArrayResource(content) {
+
+			@Override
+			public String getFilename() {
+				return filename;
+			}
+
+		});
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+		long start = System.nanoTime();
+		ResponseEntity<String> response = rest.postForEntity("/api/upload/files?bucket={bucket}&id={id}&replace=true",
+				new HttpEntity<>(body, headers), String.class, BUCKET, folder);
+		if (!response.getStatusCode().is2xxSuccessful() && isRemoved(folder)) {
+			synchronized (folders) {
+				folders.remove(folder);
+			}
+			expired.incrementAndGet();
+		} else if (record("upload", start, response)) {
+			known.put(folder + "/" + filename, size);
+		}
+	}
+
+	private void download(Random random) {
+		String key = randomFile(random);
+		if (key == null) {
+			return;
+		}
+		String[] parts = key.split("/");
+		long start = System.nanoTime();
+		ResponseEntity<byte[]> response = rest.exchange("/api/download/files?bucket={bucket}&id={id}",
+				HttpMethod.POST, json(parts[1]), byte[].class, BUCKET, parts[0]);
+		// a concurrent delete may have removed the file since it was picked
+		if (known.containsKey(key)) {
+			record("download", start, response);
+		}
+	}
+
+	private void delete(Random random) {
+		String key = randomFile(random);
+		if (key == null || known.remove(key) == null) {
+			return;
+		}
+		String[] parts = key.split("/");
+		long start = System.nanoTime();
+		ResponseEntity<String> response = rest.exchange("/api/delete/files?bucket={bucket}&id={id}",
+				HttpMethod.DELETE, json(parts[1]), String.class, BUCKET, parts[0]);
+		record("delete", start, response);
+	}
+
+	private boolean record(String operation, long start, ResponseEntity<?> response) {
+		latencies.computeIfAbsent(operation, key -> new ConcurrentHistogram(3)).recordValue(System.nanoTime() - start);
+		if (!response.getStatusCode().is2xxSuccessful()) {
+			errors.computeIfAbsent(operation, key -> new AtomicLong()).incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private HttpEntity<String> json(String filename) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return new HttpEntity<>(String.format("[\"%s\"]", filename), headers);
+	}
+
+	private boolean isRemoved(String folder) {
+		return !Files.exists(paths.getFolder(BUCKET, folder)) && !Files.exists(paths.getArchive(BUCKET, folder));
+	}
+
+	private String randomFolder(Random random) {
+		synchronized (folders) {
+			return folders.get(random.nextInt(folders.size()));
+		}
+	}
+
+	private String randomFile(Random random) {
+		Object[] keys = known.keySet().toArray();
+		return keys.length == 0 ? null : (String) keys[random.nextInt(keys.length)];
+	}
+
+	private static String pick(Map<String, Integer> weights, Random random) {
+		int total = weights.values().stream().mapToInt(Integer::intValue).sum();
+		int value = random.nextInt(total);
+		for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+			value -= entry.getValue();
+			if (value < 0) {
+				return entry.getKey();
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	// name:weight,name:weight
+	private static Map<String, Integer> parseWeights(String value) {
+		Map<String, Integer> weights = new LinkedHashMap<>();
+		for (String item : value.split(",")) {
+			String[] parts = item.trim().split(":");
+			weights.put(parts[0], Integer.valueOf(parts[1]));
+		}
+		return weights;
+	}
+
+	private static long sizeOf(Path path) {
+		if (!Files.exists(path)) {
+			return 0;
+		}
+		try (Stream<Path> paths = Files.walk(path)) {
+			return paths.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+		} catch (IOException | RuntimeException e) {
+			// files come and go while the load runs
+			return 0;
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static Path createRoot() {
+		try {
+			return Files.createTempDirectory("fileserver-load");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package com.project.fileserver.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.AccessTrackerService;
+import com.project.fileserver.service.BlobStoreService;
+import com.project.fileserver.service.ChecksumService;
+import com.project.fileserver.service.ClusterService;
+import com.project.fileserver.service.FileCacheService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
+import com.project.fileserver.service.impl.LocalFileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.StoragePathResolver;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ClusterControllerTests {
+
+	private static final String FOLDER_TARGET = "/api/cluster/folders?bucket=bucket&id=handed";
+
+	@TempDir
+	Path root;
+
+	private StoragePathResolver paths;
+	private PackStoreService packStore;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private ClusterService cluster;
+	private MockMvc mvc;
+
+	@BeforeEach
+	void open() throws Exception {
+		paths = new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), 0);
+		CommonServiceUtils commonService = new CommonServiceUtils();
+		FileserverMetrics metrics = new FileserverMetrics(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(commonService, "temppath", root.resolve("temp").toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "metrics", metrics);
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		FolderLockManager folderLocks = new FolderLockManager();
+		packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144, 268435456, 0.5);
+		metadataIndex = new MetadataIndexService(paths, packStore, root.resolve("metadata/index.mv.db").toString(),
+				false);
+		accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 3600, 100000);
+		BlobStoreService blobStore = new BlobStoreService(false, root.resolve("blobs").toString(), 65536);
+		LocalFileserverService fileserverService = new LocalFileserverService(0, 60, 100000, true, paths,
+				commonService, folderLocks, metadataIndex, accessTracker,
+				new FileCacheService(folderLocks, true, 1 << 20, 1 << 16, 1 << 20), blobStore,
+				new ChecksumService(blobStore, true, 1000), packStore, metrics);
+		cluster = new ClusterService(new StaticListableBeanFactory(Map.of("local", fileserverService)), "local",
+				commonService, paths, metadataIndex, true, "a", new String[] { "a=http://localhost:9090" }, "secret",
+				128, "redirect", 10);
+		// the scheduler is only reached by accepted membership changes
+		mvc = MockMvcBuilders.standaloneSetup(new ClusterController(cluster, null)).build();
+	}
+
+	@AfterEach
+	void close() {
+		accessTracker.close();
+		metadataIndex.close();
+		packStore.close();
+	}
+
+	@Test
+	void unsignedRequestsOfNodesAreRefused() throws Exception {
+		mvc.perform(put("/api/cluster/nodes").contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": \"http://localhost:9999\"}")).andExpect(status().isForbidden());
+		assertEquals(Map.of("a", "http://localhost:9090"), cluster.getStatus().getNodes());
+
+		mvc.perform(put(FOLDER_TARGET).content(zip("a.txt", "hello"))).andExpect(status().isForbidden());
+		// a signature for another request does not do either
+		mvc.perform(sign(put(FOLDER_TARGET.replace("handed", "other")), "PUT", FOLDER_TARGET)
+				.content(zip("a.txt", "hello"))).andExpect(status().isForbidden());
+		assertFalse(Files.exists(paths.getFolder(new RequiredObject("bucket", "handed"))));
+	}
+
+	@Test
+	void signedHandoversAreStored() throws Exception {
+		mvc.perform(sign(put(FOLDER_TARGET), "PUT", FOLDER_TARGET).content(zip("a.txt", "hello")))
+				.andExpect(status().isOk()).andExpect(content().string("1"));
+
+		assertEquals("hello", Files.readString(paths.getFolder(new RequiredObject("bucket", "handed"))
+				.resolve("a.txt")));
+	}
+
+	@Test
+	void handoversKeepFilesUploadedMeanwhile() throws Exception {
+		mvc.perform(sign(put(FOLDER_TARGET), "PUT", FOLDER_TARGET).content(zip("a.txt", "newer")))
+				.andExpect(status().isOk());
+
+		// a retried handover from the previous owner
+		mvc.perform(sign(put(FOLDER_TARGET), "PUT", FOLDER_TARGET).content(zip("a.txt", "older")))
+				.andExpect(status().isOk()).andExpect(content().string("0"));
+
+		assertEquals("newer", Files.readString(paths.getFolder(new RequiredObject("bucket", "handed"))
+				.resolve("a.txt")));
+	}
+
+	// with the headers node a would send
+	private MockHttpServletRequestBuilder sign(MockHttpServletRequestBuilder builder, String method, String target) {
+		HttpRequest signed = cluster.newRequest("a", method, target, BodyPublishers.noBody()).build();
+		signed.headers().map().forEach((name, values) -> builder.header(name, values.toArray()));
+		return builder;
+	}
+
+	private byte[] zip(String name, String content) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipOutputStream zipOut = new ZipOutputStream(out)) {
+			zipOut.putNextEntry(new ZipEntry(name));
+			zipOut.write(content.getBytes());
+			zipOut.closeEntry();
+		}
+		return out.toByteArray();
+	}
+
+}
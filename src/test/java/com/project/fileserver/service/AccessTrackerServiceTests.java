@@ -0,0 +1,57 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.StoragePathResolver;
+
+class AccessTrackerServiceTests {
+
+	@TempDir
+	Path root;
+
+	@Test
+	void accessesAreVisibleBeforeAndAfterTheyAreFlushed() throws Exception {
+		Path folder = Files.createDirectories(root.resolve("files/bucket/folder"));
+		Files.setLastModifiedTime(folder, FileTime.fromMillis(1000));
+		StoragePathResolver paths = new StoragePathResolver(root.resolve("files").toString(),
+				root.resolve("archives").toString(), 0);
+		PackStoreService packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144,
+				268435456, 0.5);
+		MetadataIndexService metadataIndex = new MetadataIndexService(paths, packStore,
+				root.resolve("metadata/index.mv.db").toString(), false);
+		AccessTrackerService accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 3600, 100000);
+		try {
+			RequiredObject requiredObject = new RequiredObject("bucket", "folder");
+			metadataIndex.refresh(requiredObject);
+			assertEquals(1000, accessTracker.getLastAccess(requiredObject));
+
+			long before = System.currentTimeMillis();
+			accessTracker.record(requiredObject);
+			accessTracker.record(requiredObject);
+			// nothing is written until the tracker flushes
+			assertEquals(1000, Files.getLastModifiedTime(folder).toMillis());
+			assertEquals(1000, metadataIndex.get(requiredObject).getLastAccess());
+			long pending = accessTracker.getLastAccess(requiredObject);
+			assertTrue(pending >= before);
+
+			accessTracker.flush();
+			assertEquals(pending, metadataIndex.get(requiredObject).getLastAccess());
+			assertEquals(pending, Files.getLastModifiedTime(folder).toMillis());
+			assertEquals(pending, accessTracker.getLastAccess(requiredObject));
+		} finally {
+			accessTracker.close();
+			metadataIndex.close();
+			packStore.close();
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlobStoreServiceTests {
+
+	@TempDir
+	Path root;
+
+	@Test
+	void identicalContentIsStoredOnceAndCollectedWhenUnreferenced() throws Exception {
+		BlobStoreService blobStore = new BlobStoreService(true, root.resolve("blobs").toString(), 4096);
+		assumeTrue(blobStore.isEnabled());
+		Path one = Files.createDirectories(root.resolve("files/one"));
+		Path two = Files.createDirectories(root.resolve("files/two"));
+		byte[] content = "the same attachment".getBytes();
+
+		Path staged = Files.write(one.resolve(".a.part"), content);
+		blobStore.publish(staged, blobStore.digest(staged), one.resolve("a.txt"), false);
+		assertFalse(blobStore.isShared(one.resolve("a.txt")));
+		staged = Files.write(two.resolve(".a.part"), content);
+		blobStore.publish(staged, blobStore.digest(staged), two.resolve("a.txt"), false);
+
+		assertFalse(Files.exists(staged));
+		assertArrayEquals(content, Files.readAllBytes(two.resolve("a.txt")));
+		assertEquals(Files.getAttribute(one.resolve("a.txt"), "unix:ino"),
+				Files.getAttribute(two.resolve("a.txt"), "unix:ino"));
+		assertTrue(blobStore.isShared(one.resolve("a.txt")));
+
+		Files.delete(one.resolve("a.txt"));
+		assertEquals(0, blobStore.collect());
+		Files.delete(two.resolve("a.txt"));
+		assertEquals(1, blobStore.collect());
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.project.fileserver.model.FileChecksum;
+
+class ChecksumServiceTests {
+
+	private static final String HELLO = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+	@TempDir
+	Path root;
+
+	@Test
+	void recordedHashesLastUntilTheFileChanges() throws Exception {
+		ChecksumService checksums = new ChecksumService(new BlobStoreService(false, "", 4096), true, 100);
+		Path folder = Files.createDirectories(root.resolve("files/bucket/one"));
+		Path staged = Files.write(folder.resolve(".a.part"), "hello".getBytes());
+		Path file = folder.resolve("a.txt");
+
+		checksums.record(file, checksums.digest(staged), () -> Files.move(staged, file));
+		assertEquals(HELLO, checksums.getChecksum(file));
+		assertTrue(Files.exists(folder.resolve(ChecksumService.JOURNAL)));
+
+		// a fresh instance reads the sidecar back
+		checksums = new ChecksumService(new BlobStoreService(false, "", 4096), true, 100);
+		assertEquals(HELLO, checksums.getChecksum(file));
+
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 5000));
+		assertNull(checksums.getChecksum(file));
+		assertTrue(checksums.prune(folder).isEmpty());
+
+		checksums.remove(folder, Collections.singletonList("a.txt"));
+		assertFalse(Files.exists(folder.resolve(ChecksumService.SIDECAR)));
+		assertFalse(Files.exists(folder.resolve(ChecksumService.JOURNAL)));
+	}
+
+	@Test
+	void writesAreJournaledAndFoldedIntoTheSidecarOnArchival() throws Exception {
+		ChecksumService checksums = new ChecksumService(new BlobStoreService(false, "", 4096), true, 100);
+		Path folder = Files.createDirectories(root.resolve("files/bucket/one"));
+		Path sidecar = folder.resolve(ChecksumService.SIDECAR);
+		Path journal = folder.resolve(ChecksumService.JOURNAL);
+		for (int index = 0; index < 10; index++) {
+			Path file = Files.write(folder.resolve(index + ".txt"), "hello".getBytes());
+			checksums.record(file, checksums.digest(file), () -> {
+			});
+		}
+		// one line per write, the sidecar is not rewritten
+		assertEquals(10, Files.readAllLines(journal).size());
+		assertFalse(Files.exists(sidecar));
+		checksums.remove(folder, Collections.singletonList("0.txt"));
+
+		// a fresh instance replays the journal
+		checksums = new ChecksumService(new BlobStoreService(false, "", 4096), true, 100);
+		assertNull(checksums.getChecksum(folder.resolve("0.txt")));
+		assertEquals(HELLO, checksums.getChecksum(folder.resolve("9.txt")));
+
+		assertEquals(9, checksums.prune(folder).size());
+		assertTrue(Files.exists(sidecar));
+		assertFalse(Files.exists(journal));
+		checksums = new ChecksumService(new BlobStoreService(false, "", 4096), true, 100);
+		assertEquals(HELLO, checksums.getChecksum(folder.resolve("9.txt")));
+	}
+
+	@Test
+	void archivesAreVerifiedAgainstTheRecordedHashes() throws Exception {
+		ChecksumService checksums = new ChecksumService(new BlobStoreService(false, "", 4096), true, 100);
+		Path folder = Files.createDirectories(root.resolve("files/bucket/one"));
+		Path file = Files.write(folder.resolve("a.txt"), "hello".getBytes());
+		checksums.record(file, checksums.digest(file), () -> {
+		});
+		Map<String, FileChecksum> recorded = checksums.prune(folder);
+
+		Path good = zip(root.resolve("good.zip"), "hello", Files.readAllBytes(folder.resolve(ChecksumService.SIDECAR)));
+		Path bad = zip(root.resolve("bad.zip"), "hellp", Files.readAllBytes(folder.resolve(ChecksumService.SIDECAR)));
+		assertTrue(checksums.verify(good, "one", recorded).isEmpty());
+		assertEquals(Collections.singletonList("a.txt"), checksums.verify(bad, "one", recorded));
+		assertEquals(HELLO, checksums.getChecksum(good, "one", "a.txt"));
+
+		// extraction moves the modification time, the hash follows it
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+		checksums.invalidate(folder);
+		assertNull(checksums.getChecksum(file));
+		assertTrue(checksums.verify(folder).isEmpty());
+		checksums.restamp(folder);
+		assertEquals(HELLO, checksums.getChecksum(file));
+	}
+
+	private Path zip(Path target, String content, byte[] sidecar) throws Exception {
+		try (OutputStream out = Files.newOutputStream(target); ZipOutputStream zipOut = new ZipOutputStream(out)) {
+			zipOut.putNextEntry(new ZipEntry("one/a.txt"));
+			zipOut.write(content.getBytes());
+			zipOut.putNextEntry(new ZipEntry("one/" + ChecksumService.SIDECAR));
+			zipOut.write(sidecar);
+			zipOut.closeEntry();
+		}
+		return target;
+	}
+
+}
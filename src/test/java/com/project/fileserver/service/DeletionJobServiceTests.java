@@ -0,0 +1,206 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.google.gson.Gson;
+import com.project.fileserver.controller.DeletionJobController;
+import com.project.fileserver.executors.ArchivalExecutor;
+import com.project.fileserver.model.DeletionStatus;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.impl.LocalFileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.StoragePathResolver;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DeletionJobServiceTests {
+
+	@TempDir
+	Path root;
+
+	private StoragePathResolver paths;
+	private CommonServiceUtils commonService;
+	private FileserverMetrics metrics;
+	private FolderLockManager folderLocks;
+	private PackStoreService packStore;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private FileCacheService fileCache;
+	private BlobStoreService blobStore;
+	private ChecksumService checksums;
+	private LocalFileserverService fileserverService;
+	private ClusterService cluster;
+	private DeletionJobService deletionJobs;
+
+	@BeforeEach
+	void open() throws Exception {
+		paths = new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), 0);
+		commonService = new CommonServiceUtils();
+		metrics = new FileserverMetrics(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(commonService, "temppath", root.resolve("temp").toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "metrics", metrics);
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		folderLocks = new FolderLockManager();
+		packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144, 268435456, 0.5);
+		metadataIndex = new MetadataIndexService(paths, packStore, root.resolve("metadata/index.mv.db").toString(),
+				false);
+		accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 3600, 100000);
+		fileCache = new FileCacheService(folderLocks, true, 1 << 20, 1 << 16, 1 << 20);
+		blobStore = new BlobStoreService(false, root.resolve("blobs").toString(), 65536);
+		checksums = new ChecksumService(blobStore, true, 1000);
+		fileserverService = new LocalFileserverService(0, 60, 100000, true, paths, commonService, folderLocks,
+				metadataIndex, accessTracker, fileCache, blobStore, checksums, packStore, metrics);
+		StaticListableBeanFactory beanFactory = new StaticListableBeanFactory(Map.of("local", fileserverService));
+		cluster = new ClusterService(beanFactory, "local", commonService, paths, metadataIndex, false, "",
+				new String[0], "", 128, "redirect", 10);
+		deletionJobs = new DeletionJobService(beanFactory, "local", commonService, cluster, metrics, 2, 60);
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		deletionJobs.close();
+		accessTracker.close();
+		metadataIndex.close();
+		packStore.close();
+	}
+
+	@Test
+	void foldersAreDeletedInWhateverStateTheyAre() throws Exception {
+		RequiredObject live = createFolder("live", "hello".getBytes());
+		RequiredObject packed = createFolder("packed", "hello".getBytes());
+		// too large for the pack, archived as a zip of its own
+		byte[] noise = new byte[400000];
+		new Random(1).nextBytes(noise);
+		RequiredObject archived = createFolder("archived", noise);
+		age(packed, 60);
+		age(archived, 60);
+		archival().runPass();
+		assertTrue(packStore.contains(packed));
+		assertTrue(Files.exists(paths.getArchive(archived)));
+
+		DeletionStatus status = await(deletionJobs.submit("bucket", String.format(
+				"[\"%s\", \"%s\", \"%s\", \"missing\"]", live.getFolderid(), packed.getFolderid(),
+				archived.getFolderid())).getJob());
+
+		assertEquals(4, status.getFolders());
+		assertEquals(3, status.getDeleted());
+		assertEquals(1, status.getMissing());
+		assertEquals(0, status.getFailed());
+		assertFalse(Files.exists(paths.getFolder(live)));
+		assertFalse(packStore.contains(packed));
+		assertFalse(Files.exists(paths.getArchive(archived)));
+		for (RequiredObject folder : new RequiredObject[] { live, packed, archived }) {
+			assertTrue(fileserverService.getFiles(folder, "[\"a.txt\"]").stream().noneMatch(file -> file.exists()));
+		}
+	}
+
+	@Test
+	void invalidFolderListsAreRefused() {
+		assertThrows(IllegalArgumentException.class, () -> deletionJobs.submit("bucket", "[]"));
+		assertThrows(IllegalArgumentException.class, () -> deletionJobs.submit("bucket", "{"));
+		assertThrows(IllegalArgumentException.class, () -> deletionJobs.submit("bucket", "[\"../files\"]"));
+		assertThrows(IllegalArgumentException.class, () -> deletionJobs.submit("bucket", "[\".hidden\"]"));
+		assertThrows(NoSuchFileException.class, () -> deletionJobs.getStatus("unknown"));
+	}
+
+	@Test
+	void finishedJobsAreForgotten() throws Exception {
+		deletionJobs.close();
+		deletionJobs = new DeletionJobService(new StaticListableBeanFactory(Map.of("local", fileserverService)),
+				"local", commonService, cluster, metrics, 2, 0);
+		RequiredObject folder = createFolder("expired", "hello".getBytes());
+		String job = deletionJobs.submit("bucket", String.format("[\"%s\"]", folder.getFolderid())).getJob();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				deletionJobs.getStatus(job);
+			} catch (NoSuchFileException e) {
+				break;
+			}
+			assertTrue(System.currentTimeMillis() < deadline, "job was kept");
+			Thread.sleep(10);
+		}
+		assertFalse(Files.exists(paths.getFolder(folder)));
+	}
+
+	@Test
+	void jobsAreSubmittedAndPolledOverHttp() throws Exception {
+		RequiredObject folder = createFolder("http", "hello".getBytes());
+		MockMvc mvc = MockMvcBuilders.standaloneSetup(new DeletionJobController(deletionJobs)).build();
+
+		String body = mvc.perform(post("/api/delete/folders").param("bucket", "bucket")
+				.content(String.format("[\"%s\"]", folder.getFolderid())))
+				.andExpect(status().isAccepted()).andExpect(jsonPath("$.folders").value(1))
+				.andReturn().getResponse().getContentAsString();
+		String job = new Gson().fromJson(body, DeletionStatus.class).getJob();
+		await(job);
+		mvc.perform(get("/api/delete/jobs/" + job)).andExpect(status().isOk())
+				.andExpect(jsonPath("$.deleted").value(1)).andExpect(jsonPath("$.done").value(true));
+
+		mvc.perform(post("/api/delete/folders").param("bucket", "bucket").content("[]"))
+				.andExpect(status().isBadRequest());
+		mvc.perform(get("/api/delete/jobs/unknown")).andExpect(status().isNotFound());
+	}
+
+	private DeletionStatus await(String job) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		DeletionStatus status;
+		while (!(status = deletionJobs.getStatus(job)).isDone()) {
+			assertTrue(System.currentTimeMillis() < deadline, "job did not finish");
+			Thread.sleep(10);
+		}
+		return status;
+	}
+
+	private RequiredObject createFolder(String prefix, byte[] content) throws Exception {
+		RequiredObject requiredObject = new RequiredObject("bucket", null);
+		requiredObject.setFolderid(fileserverService.generateFolderUniqueId(requiredObject, prefix));
+		fileserverService.uploadFile(requiredObject, "a.txt", new ByteArrayInputStream(content), true);
+		return requiredObject;
+	}
+
+	// as if the folder had been left alone for that many days
+	private void age(RequiredObject requiredObject, int days) throws Exception {
+		accessTracker.flush();
+		Files.setLastModifiedTime(paths.getFolder(requiredObject),
+				FileTime.from(Instant.now().minus(days, ChronoUnit.DAYS)));
+		metadataIndex.refresh(requiredObject);
+	}
+
+	private ArchivalExecutor archival() {
+		return new ArchivalExecutor(paths, commonService, folderLocks, metadataIndex, accessTracker, fileCache,
+				blobStore, checksums, packStore, cluster, metrics, 30, 1, 0, 6, new String[0], true);
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import com.project.fileserver.model.CacheStatistics;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.FolderLockManager;
+
+class FileCacheServiceTests {
+
+	@TempDir
+	Path root;
+
+	private final RequiredObject folder = new RequiredObject("bucket", "folder");
+
+	@Test
+	void smallFilesAreServedFromMemoryUntilInvalidated() throws Exception {
+		FileCacheService fileCache = new FileCacheService(new FolderLockManager(), true, 1 << 20, 1024, 1 << 20);
+		Path small = Files.write(root.resolve("small.bin"), new byte[] { 1, 2, 3 });
+		Path large = Files.write(root.resolve("large.bin"), new byte[2048]);
+
+		assertNull(fileCache.getIfPresent(folder, "small.bin"));
+		fileCache.load(folder, "small.bin", small);
+		fileCache.load(folder, "large.bin", large);
+		Files.delete(small);
+		Resource cached = fileCache.getIfPresent(folder, "small.bin");
+		assertNotNull(cached);
+		try (InputStream in = cached.getInputStream()) {
+			assertArrayEquals(new byte[] { 1, 2, 3 }, in.readAllBytes());
+		}
+		assertNull(fileCache.getIfPresent(folder, "large.bin"));
+
+		fileCache.invalidate(folder);
+		assertNull(fileCache.getIfPresent(folder, "small.bin"));
+		CacheStatistics statistics = fileCache.getStatistics();
+		assertEquals(1, statistics.getHits());
+		assertEquals(3, statistics.getMisses());
+	}
+
+	@Test
+	void variantsAreEncodedOnceUntilTheFileChanges() throws Exception {
+		FileCacheService fileCache = new FileCacheService(new FolderLockManager(), true, 1 << 20, 1024, 1 << 20);
+		Path text = Files.write(root.resolve("a.txt"), "aaaa".getBytes());
+		AtomicInteger encoded = new AtomicInteger();
+		FileCacheService.Encoder encoder = in -> {
+			encoded.incrementAndGet();
+			return new StringBuilder(new String(in.readAllBytes())).reverse().toString().getBytes();
+		};
+
+		fileCache.getVariant(folder, new FileSystemResource(text), "test", encoder);
+		fileCache.getVariant(folder, new FileSystemResource(text), "test", encoder);
+		assertEquals(1, encoded.get());
+
+		Files.write(text, "abcd".getBytes());
+		Files.setLastModifiedTime(text, FileTime.fromMillis(Files.getLastModifiedTime(text).toMillis() + 5000));
+		byte[] variant = fileCache.getVariant(folder, new FileSystemResource(text), "test", encoder);
+		assertArrayEquals("dcba".getBytes(), variant);
+		fileCache.invalidate(folder, "a.txt");
+		fileCache.getVariant(folder, new FileSystemResource(text), "test", encoder);
+		assertEquals(3, encoded.get());
+	}
+
+	@Test
+	void concurrentRequestsShareOneEncoding() throws Exception {
+		FileCacheService fileCache = new FileCacheService(new FolderLockManager(), true, 1 << 20, 1024, 1 << 20);
+		Path text = Files.write(root.resolve("a.txt"), "abcd".getBytes());
+		AtomicInteger encoded = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		FileCacheService.Encoder encoder = in -> {
+			encoded.incrementAndGet();
+			started.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return in.readAllBytes();
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> variants = new ArrayList<>();
+			variants.add(executor.submit(() -> fileCache.getVariant(folder, new FileSystemResource(text), "test",
+					encoder)));
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			for (int index = 0; index < 3; index++) {
+				variants.add(executor.submit(() -> fileCache.getVariant(folder, new FileSystemResource(text), "test",
+						encoder)));
+			}
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<byte[]> variant : variants) {
+				assertArrayEquals("abcd".getBytes(), variant.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, encoded.get());
+	}
+
+	@Test
+	void byteBudgetIsEnforced() throws Exception {
+		FileCacheService fileCache = new FileCacheService(new FolderLockManager(), true, 64 * 1024, 16 * 1024,
+				64 * 1024);
+		// folders are weighed with all their files
+		for (int index = 0; index < 32; index++) {
+			fileCache.load(new RequiredObject("bucket", "folder" + index % 8), index + ".bin",
+					Files.write(root.resolve(index + ".bin"), new byte[8 * 1024]));
+		}
+		CacheStatistics statistics = fileCache.getStatistics();
+		assertTrue(statistics.getSize() <= 64 * 1024);
+		assertTrue(statistics.getEvictions() > 0);
+	}
+
+}
@@ -0,0 +1,232 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.impl.LocalFileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.StoragePathResolver;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ManifestDownloadServiceTests {
+
+	@TempDir
+	Path root;
+
+	private StoragePathResolver paths;
+	private CommonServiceUtils commonService;
+	private FileserverMetrics metrics;
+	private FolderLockManager folderLocks;
+	private PackStoreService packStore;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private LocalFileserverService fileserverService;
+	private ManifestDownloadService manifestDownload;
+	private RequiredObject folder;
+	// files served in place of the stored ones
+	private final Map<String, Resource> overrides = new LinkedHashMap<>();
+
+	@BeforeEach
+	void open() throws Exception {
+		paths = new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), 0);
+		commonService = new CommonServiceUtils();
+		metrics = new FileserverMetrics(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(commonService, "temppath", root.resolve("temp").toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "metrics", metrics);
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		folderLocks = new FolderLockManager();
+		packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144, 268435456, 0.5);
+		metadataIndex = new MetadataIndexService(paths, packStore, root.resolve("metadata/index.mv.db").toString(),
+				false);
+		accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 3600, 100000);
+		BlobStoreService blobStore = new BlobStoreService(false, root.resolve("blobs").toString(), 65536);
+		FileCacheService fileCache = new FileCacheService(folderLocks, true, 1 << 20, 1 << 16, 1 << 20);
+		fileserverService = new LocalFileserverService(0, 60, 100000, true, paths, commonService, folderLocks,
+				metadataIndex, accessTracker, fileCache, blobStore, new ChecksumService(blobStore, true, 1000),
+				packStore, metrics) {
+			@Override
+			public List<Resource> getFiles(RequiredObject requiredObject, String filenames) throws Exception {
+				List<Resource> resources = new ArrayList<>(super.getFiles(requiredObject, filenames));
+				for (int index = 0; index < resources.size(); index++) {
+					Resource override = overrides.get(resources.get(index).getFilename());
+					if (override != null) {
+						resources.set(index, override);
+					}
+				}
+				return resources;
+			}
+		};
+		folder = new RequiredObject("bucket", null);
+		folder.setFolderid(fileserverService.generateFolderUniqueId(folder, "manifest"));
+		fileserverService.uploadFile(folder, "a.txt", new ByteArrayInputStream("hello".getBytes()), true);
+		fileserverService.uploadFile(folder, "b.txt", new ByteArrayInputStream("world".getBytes()), true);
+		manifestDownload = newService(2);
+	}
+
+	@AfterEach
+	void close() {
+		manifestDownload.close();
+		accessTracker.close();
+		metadataIndex.close();
+		packStore.close();
+	}
+
+	@Test
+	void missingFilesAndFoldersAreListedAsErrors() throws Exception {
+		Map<String, String> zip = write(String.format("[{\"bucket\": \"bucket\", \"id\": \"%s\", "
+				+ "\"filenames\": [\"a.txt\", \"c.txt\", \"a.txt\"]}, "
+				+ "{\"bucket\": \"bucket\", \"id\": \"missing\", \"filenames\": [\"a.txt\"]}]", folder.getFolderid()));
+
+		assertEquals("hello", zip.get("bucket/" + folder.getFolderid() + "/a.txt"));
+		assertEquals(2, zip.size());
+		String errors = zip.get(ManifestDownloadService.ERRORS);
+		assertTrue(errors.contains("\"filename\":\"c.txt\",\"error\":\"Not found\""), errors);
+		assertTrue(errors.contains("\"filename\":\"a.txt\",\"error\":\"Duplicate entry\""), errors);
+		assertTrue(errors.contains("\"id\":\"missing\",\"filename\":\"a.txt\",\"error\":\"Not found\""), errors);
+	}
+
+	@Test
+	void manifestsAreLimited() {
+		String entry = String.format("{\"bucket\": \"bucket\", \"id\": \"%s\", \"filenames\": [\"a.txt\"]}",
+				folder.getFolderid());
+		assertEquals(2, manifestDownload.parse("[" + entry + ", " + entry + "]").size());
+		assertThrows(IllegalArgumentException.class,
+				() -> manifestDownload.parse("[" + entry + ", " + entry + ", " + entry + "]"));
+		assertThrows(IllegalArgumentException.class, () -> manifestDownload.parse("[]"));
+		assertThrows(IllegalArgumentException.class, () -> manifestDownload.parse("{"));
+		assertThrows(IllegalArgumentException.class, () -> manifestDownload.parse(
+				"[{\"bucket\": \"bucket\", \"id\": \"..\", \"filenames\": [\"a.txt\"]}]"));
+		assertThrows(IllegalArgumentException.class, () -> manifestDownload.parse(
+				"[{\"bucket\": \"bucket\", \"id\": \"one\", \"filenames\": [\"../a.txt\"]}]"));
+	}
+
+	@Test
+	void filesThatCannotBeOpenedAreLeftOut() throws Exception {
+		overrides.put("a.txt", new FailingResource("a.txt", null));
+
+		Map<String, String> zip = write(String.format("[{\"bucket\": \"bucket\", \"id\": \"%s\", "
+				+ "\"filenames\": [\"a.txt\", \"b.txt\"]}]", folder.getFolderid()));
+
+		assertFalse(zip.containsKey("bucket/" + folder.getFolderid() + "/a.txt"));
+		assertEquals("world", zip.get("bucket/" + folder.getFolderid() + "/b.txt"));
+		String errors = zip.get(ManifestDownloadService.ERRORS);
+		assertTrue(errors.contains("\"filename\":\"a.txt\",\"error\":\"Unreadable\""), errors);
+	}
+
+	@Test
+	void aFileThatFailsOnceWrittenAbortsTheZip() throws Exception {
+		overrides.put("b.txt", new FailingResource("b.txt", "wor"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		assertThrows(IOException.class, () -> manifestDownload.write(manifestDownload.parse(String.format(
+				"[{\"bucket\": \"bucket\", \"id\": \"%s\", \"filenames\": [\"a.txt\", \"b.txt\"]}]",
+				folder.getFolderid())), out));
+
+		// no central directory, the truncated entry is not passed off as
+		// complete
+		byte[] bytes = out.toByteArray();
+		for (int index = 0; index + 4 <= bytes.length; index++) {
+			assertFalse(bytes[index] == 'P' && bytes[index + 1] == 'K' && bytes[index + 2] == 1
+					&& bytes[index + 3] == 2, "central directory written");
+		}
+	}
+
+	private ManifestDownloadService newService(int maxfolders) {
+		StaticListableBeanFactory beanFactory = new StaticListableBeanFactory(Map.of("local", fileserverService));
+		ClusterService cluster = new ClusterService(beanFactory, "local", commonService, paths, metadataIndex, false,
+				"", new String[0], "", 128, "redirect", 10);
+		return new ManifestDownloadService(beanFactory, "local", commonService, cluster, folderLocks, metrics, 2,
+				maxfolders, 4, 1);
+	}
+
+	private Map<String, String> write(String manifest) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifestDownload.write(manifestDownload.parse(manifest), out);
+		Map<String, String> entries = new LinkedHashMap<>();
+		try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			ZipEntry entry;
+			while ((entry = zipIn.getNextEntry()) != null) {
+				entries.put(entry.getName(), new String(zipIn.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+		return entries;
+	}
+
+	// fails when it is opened, or after the given content has been read
+	private static class FailingResource extends AbstractResource {
+
+		private final String filename;
+		private final String content;
+
+		private FailingResource(String filename, String content) {
+			this.filename = filename;
+			this.content = content;
+		}
+
+		@Override
+		public boolean exists() {
+			return true;
+		}
+
+		@Override
+		public String getFilename() {
+			return filename;
+		}
+
+		@Override
+		public long lastModified() {
+			return 0;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (content == null) {
+				throw new IOException("Unreadable");
+			}
+			return new SequenceInputStream(new ByteArrayInputStream(content.getBytes()), new InputStream() {
+				@Override
+				public int read() throws IOException {
+					throw new IOException("Disk failure");
+				}
+			});
+		}
+
+		@Override
+		public String getDescription() {
+			return filename;
+		}
+
+	}
+
+}
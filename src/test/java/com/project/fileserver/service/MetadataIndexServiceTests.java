@@ -0,0 +1,136 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.project.fileserver.model.FolderMetadata;
+import com.project.fileserver.model.FolderMetadata.State;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.StoragePathResolver;
+
+class MetadataIndexServiceTests {
+
+	@TempDir
+	Path root;
+
+	private PackStoreService packStore;
+
+	@BeforeEach
+	void openPacks() throws Exception {
+		packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144, 268435456, 0.5);
+	}
+
+	@AfterEach
+	void closePacks() {
+		packStore.close();
+	}
+
+	@Test
+	void findReturnsFoldersInStateOldestFirst() throws Exception {
+		MetadataIndexService index = open(false);
+		awaitReady(index);
+		try {
+			RequiredObject old = createFolder("old", 3000);
+			RequiredObject older = createFolder("older", 1000);
+			RequiredObject recent = createFolder("recent", 2000);
+			index.touch(old, 3000);
+			index.touch(older, 1000);
+			index.touch(recent, 10000);
+			index.archived(older, 1500);
+			List<String> live = index.find(State.LIVE, 5000).map(FolderMetadata::getFolderid)
+					.collect(Collectors.toList());
+			assertEquals(List.of("old"), live);
+			List<String> archived = index.find(State.ARCHIVED, 1500).map(FolderMetadata::getFolderid)
+					.collect(Collectors.toList());
+			assertEquals(List.of("older"), archived);
+			index.remove(older);
+			assertNull(index.get(older));
+			assertEquals(0, index.find(State.ARCHIVED, Long.MAX_VALUE - 1).count());
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	void findContinuesAfterACheckpoint() throws Exception {
+		MetadataIndexService index = open(false);
+		awaitReady(index);
+		try {
+			for (int folder = 0; folder < 5; folder++) {
+				index.touch(createFolder("folder" + folder, 1000), 1000 + folder);
+			}
+			FolderMetadata second = index.find(State.LIVE, 5000).skip(1).findFirst().get();
+			index.setCheckpoint("archival", index.getPosition(second));
+		} finally {
+			index.close();
+		}
+
+		index = open(false);
+		try {
+			List<String> rest = index.find(State.LIVE, 5000, index.getCheckpoint("archival"))
+					.map(FolderMetadata::getFolderid).collect(Collectors.toList());
+			assertEquals(List.of("folder2", "folder3", "folder4"), rest);
+			index.setCheckpoint("archival", null);
+			assertNull(index.getCheckpoint("archival"));
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	void indexIsRebuiltFromDiskAfterAnUncleanShutdown() throws Exception {
+		RequiredObject folder = createFolder("folder", 0);
+		Files.write(root.resolve("files/bucket/folder/a.bin"), new byte[100]);
+		Files.write(root.resolve("files/bucket/folder/b.bin"), new byte[200]);
+		Files.write(root.resolve("files/bucket/folder/.c.bin.part"), new byte[400]);
+		MetadataIndexService index = open(true);
+		awaitReady(index);
+		FolderMetadata metadata = index.get(folder);
+		assertEquals(300, metadata.getSize());
+		assertEquals(2, metadata.getFiles());
+		assertEquals(State.LIVE, metadata.getState());
+		index.add(folder, 50, 1);
+		assertEquals(350, index.get(folder).getSize());
+		index.close();
+
+		// a clean shutdown keeps the index as it is
+		index = open(false);
+		assertTrue(index.isReady());
+		assertEquals(3, index.get(folder).getFiles());
+		index.close();
+	}
+
+	private MetadataIndexService open(boolean rebuild) throws Exception {
+		return new MetadataIndexService(
+				new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), 0),
+				packStore, root.resolve("metadata/index.mv.db").toString(), rebuild);
+	}
+
+	private RequiredObject createFolder(String folderid, long modified) throws Exception {
+		Path folder = Files.createDirectories(root.resolve("files/bucket").resolve(folderid));
+		Files.setLastModifiedTime(folder, FileTime.fromMillis(modified));
+		return new RequiredObject("bucket", folderid);
+	}
+
+	private void awaitReady(MetadataIndexService index) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!index.isReady() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(index.isReady());
+	}
+
+}
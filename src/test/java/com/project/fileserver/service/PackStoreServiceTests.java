@@ -0,0 +1,151 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.project.fileserver.model.PackEntry;
+import com.project.fileserver.model.RequiredObject;
+
+class PackStoreServiceTests {
+
+	@TempDir
+	Path root;
+
+	@Test
+	void packedFoldersAreReadBackAfterARestart() throws Exception {
+		RequiredObject one = new RequiredObject("bucket", "one");
+		RequiredObject two = new RequiredObject("bucket", "two");
+		PackStoreService packStore = open(1 << 20);
+		try {
+			assertTrue(packStore.accepts(1024));
+			assertFalse(packStore.accepts(4096));
+			packStore.append(one, archive("one", 100), 10, 1, 1000);
+			packStore.append(two, archive("two", 200), 20, 2, 2000);
+			packStore.touch(one, 1500);
+		} finally {
+			packStore.close();
+		}
+
+		packStore = open(1 << 20);
+		try {
+			PackEntry entry = packStore.get("bucket", "one");
+			assertEquals(entry.getSegment(), packStore.get("bucket", "two").getSegment());
+			assertEquals(10, entry.getSize());
+			assertEquals(1500, entry.getLastAccess());
+			assertArrayEquals(Files.readAllBytes(root.resolve("one.zip")), packStore.read(one));
+			assertArrayEquals(Files.readAllBytes(root.resolve("two.zip")), packStore.read(two));
+
+			assertTrue(packStore.remove(one));
+			assertFalse(packStore.contains(one));
+			assertNull(packStore.read(one));
+		} finally {
+			packStore.close();
+		}
+	}
+
+	@Test
+	void compactionMovesLiveRecordsOutOfDeadSegments() throws Exception {
+		RequiredObject one = new RequiredObject("bucket", "one");
+		RequiredObject two = new RequiredObject("bucket", "two");
+		RequiredObject three = new RequiredObject("bucket", "three");
+		// every record fills a segment of its own
+		PackStoreService packStore = open(100);
+		try {
+			packStore.append(one, archive("one", 300), 10, 1, 1000);
+			packStore.append(two, archive("two", 300), 10, 1, 1000);
+			packStore.append(three, archive("three", 300), 10, 1, 1000);
+			String segment = "bucket/" + packStore.get("bucket", "one").getSegment();
+			assertEquals(List.of(one), packStore.getFolders(segment));
+			assertTrue(packStore.getCompactable().isEmpty());
+
+			packStore.remove(one);
+			packStore.remove(two);
+			List<String> compactable = packStore.getCompactable();
+			assertEquals(2, compactable.size());
+			assertTrue(compactable.contains(segment));
+			for (String key : compactable) {
+				assertTrue(packStore.getFolders(key).isEmpty());
+				assertTrue(packStore.drop(key));
+			}
+			assertEquals(1, countSegments());
+			assertArrayEquals(Files.readAllBytes(root.resolve("three.zip")), packStore.read(three));
+
+			// a record that is still referenced is copied before its segment goes
+			String current = "bucket/" + packStore.get("bucket", "three").getSegment();
+			assertFalse(packStore.drop(current));
+			assertTrue(packStore.relocate(three, current));
+			assertFalse(packStore.relocate(three, current));
+			assertTrue(packStore.drop(current));
+			assertArrayEquals(Files.readAllBytes(root.resolve("three.zip")), packStore.read(three));
+			assertEquals(1, countSegments());
+		} finally {
+			packStore.close();
+		}
+	}
+
+	@Test
+	void concurrentAppendsAreAllIndexed() throws Exception {
+		// a few records to a segment, so appends also race the switch to the
+		// next one
+		PackStoreService packStore = open(1000);
+		try {
+			List<Callable<PackEntry>> appends = new ArrayList<>();
+			for (int index = 0; index < 40; index++) {
+				RequiredObject folder = new RequiredObject("bucket" + index % 2, "folder" + index);
+				Path archive = archive(folder.getFolderid(), 300);
+				appends.add(() -> packStore.append(folder, archive, 10, 1, 1000));
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				for (Future<PackEntry> append : executor.invokeAll(appends)) {
+					append.get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+
+			for (int index = 0; index < 40; index++) {
+				RequiredObject folder = new RequiredObject("bucket" + index % 2, "folder" + index);
+				assertArrayEquals(Files.readAllBytes(root.resolve(folder.getFolderid() + ".zip")),
+						packStore.read(folder));
+			}
+		} finally {
+			packStore.close();
+		}
+	}
+
+	private PackStoreService open(long segmentsize) throws Exception {
+		return new PackStoreService(root.resolve("packs").toString(), true, 2048, segmentsize, 0.5);
+	}
+
+	private Path archive(String name, int length) throws Exception {
+		byte[] content = new byte[length];
+		for (int index = 0; index < length; index++) {
+			content[index] = (byte) (name.hashCode() + index);
+		}
+		return Files.write(root.resolve(name + ".zip"), content);
+	}
+
+	private long countSegments() throws Exception {
+		try (Stream<Path> segments = Files.list(root.resolve("packs/bucket"))) {
+			return segments.count();
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.project.fileserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.model.UploadStatus;
+import com.project.fileserver.service.impl.LocalFileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.StoragePathResolver;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class UploadSessionServiceTests {
+
+	@TempDir
+	Path root;
+
+	private StoragePathResolver paths;
+	private CommonServiceUtils commonService;
+	private PackStoreService packStore;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private LocalFileserverService fileserverService;
+	private RequiredObject folder;
+
+	@BeforeEach
+	void open() throws Exception {
+		paths = new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), 0);
+		commonService = new CommonServiceUtils();
+		FileserverMetrics metrics = new FileserverMetrics(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(commonService, "temppath", root.resolve("temp").toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "metrics", metrics);
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144, 268435456, 0.5);
+		metadataIndex = new MetadataIndexService(paths, packStore, root.resolve("metadata/index.mv.db").toString(),
+				false);
+		accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 3600, 100000);
+		BlobStoreService blobStore = new BlobStoreService(false, root.resolve("blobs").toString(), 65536);
+		FolderLockManager folderLocks = new FolderLockManager();
+		fileserverService = new LocalFileserverService(0, 60, 100000, true, paths, commonService, folderLocks,
+				metadataIndex, accessTracker, new FileCacheService(folderLocks, true, 1 << 20, 1 << 16, 1 << 20),
+				blobStore, new ChecksumService(blobStore, true, 1000), packStore, metrics);
+		folder = new RequiredObject("bucket", null);
+		folder.setFolderid(fileserverService.generateFolderUniqueId(folder, "sessions"));
+	}
+
+	@AfterEach
+	void close() {
+		accessTracker.close();
+		metadataIndex.close();
+		packStore.close();
+	}
+
+	@Test
+	void chunksOutsideTheDeclaredSizeAreRefused() throws Exception {
+		UploadSessionService sessions = newService();
+		String id = sessions.initiate(folder, "a.txt", 10, false).getSession();
+
+		assertThrows(IllegalArgumentException.class, () -> write(sessions, id, -1, "a"));
+		assertThrows(IllegalArgumentException.class, () -> write(sessions, id, 11, "a"));
+		assertThrows(IllegalArgumentException.class, () -> write(sessions, id, 6, "world"));
+		assertThrows(IllegalArgumentException.class, () -> sessions.initiate(folder, "../a.txt", 10, false));
+		assertEquals(0, sessions.getStatus(id).getReceived());
+		// a session with gaps cannot be completed
+		write(sessions, id, 5, "world");
+		assertFalse(sessions.complete(id));
+		assertThrows(NoSuchFileException.class, () -> sessions.getStatus("unknown"));
+	}
+
+	@Test
+	void sessionsAreResumedAfterARestart() throws Exception {
+		UploadSessionService before = newService();
+		String id = before.initiate(folder, "a.txt", 10, false).getSession();
+		write(before, id, 5, "world");
+
+		UploadSessionService after = newService();
+		UploadStatus status = after.getStatus(id);
+		assertEquals(5, status.getReceived());
+		assertArrayEquals(new long[] { 5, 10 }, status.getRanges().get(0));
+		assertEquals(10, write(after, id, 0, "hello").getReceived());
+		assertTrue(after.complete(id));
+
+		assertEquals("helloworld", Files.readString(paths.getFolder(folder).resolve("a.txt")));
+		assertThrows(NoSuchFileException.class, () -> after.getStatus(id));
+		assertFalse(Files.exists(root.resolve("sessions").resolve(id)));
+	}
+
+	@Test
+	void aFailedImportKeepsTheSessionForARetry() throws Exception {
+		fileserverService.uploadFile(folder, "a.txt", new ByteArrayInputStream("old".getBytes()), true);
+		UploadSessionService sessions = newService();
+		String id = sessions.initiate(folder, "a.txt", 5, false).getSession();
+		write(sessions, id, 0, "hello");
+
+		assertThrows(FileAlreadyExistsException.class, () -> sessions.complete(id));
+		assertEquals(5, sessions.getStatus(id).getReceived());
+		assertEquals("old", Files.readString(paths.getFolder(folder).resolve("a.txt")));
+
+		fileserverService.deleteFiles(folder, "[\"a.txt\"]");
+		assertTrue(sessions.complete(id));
+		assertEquals("hello", Files.readString(paths.getFolder(folder).resolve("a.txt")));
+	}
+
+	@Test
+	void abortedSessionsAreDiscarded() throws Exception {
+		UploadSessionService sessions = newService();
+		String id = sessions.initiate(folder, "a.txt", 10, false).getSession();
+		write(sessions, id, 0, "hello");
+
+		sessions.abort(id);
+		assertFalse(Files.exists(root.resolve("sessions").resolve(id)));
+		assertThrows(NoSuchFileException.class, () -> write(sessions, id, 5, "world"));
+		assertThrows(NoSuchFileException.class, () -> sessions.complete(id));
+		assertThrows(NoSuchFileException.class, () -> sessions.abort(id));
+		assertFalse(Files.exists(paths.getFolder(folder).resolve("a.txt")));
+	}
+
+	private UploadSessionService newService() {
+		StaticListableBeanFactory beanFactory = new StaticListableBeanFactory(Map.of("local", fileserverService));
+		ClusterService cluster = new ClusterService(beanFactory, "local", commonService, paths, metadataIndex, false,
+				"", new String[0], "", 128, "redirect", 10);
+		return new UploadSessionService(beanFactory, "local", commonService, cluster,
+				root.resolve("sessions").toString(), -1, 24);
+	}
+
+	private UploadStatus write(UploadSessionService sessions, String id, long offset, String content)
+			throws Exception {
+		return sessions.writeChunk(id, offset, content.length(), new ByteArrayInputStream(content.getBytes()));
+	}
+
+}
@@ -0,0 +1,312 @@
+package com.project.fileserver.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.DescriptiveResource;
+import org.springframework.core.io.Resource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.FileserverService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CachingFileserverServiceTests {
+
+	private static final RequiredObject FOLDER = new RequiredObject("bucket", "folder");
+
+	@TempDir
+	Path root;
+
+	@Test
+	void concurrentReadsFetchAFileOnce() throws Exception {
+		ObjectStore store = new ObjectStore(200);
+		store.objects.put("bucket/folder/a.txt", "hello".getBytes());
+		CachingFileserverService cache = open(store, 1 << 20, false);
+		ExecutorService readers = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<Resource>> reads = new ArrayList<>();
+			for (int reader = 0; reader < 8; reader++) {
+				reads.add(() -> cache.getFiles(new RequiredObject("bucket", "folder"), "[\"a.txt\"]").get(0));
+			}
+			for (Future<Resource> read : readers.invokeAll(reads)) {
+				assertArrayEquals("hello".getBytes(), read.get().getInputStream().readAllBytes());
+				assertTrue(read.get().getFile().toPath().startsWith(root));
+			}
+			assertEquals(1, store.gets.get());
+
+			// checksums are asked for once per cached copy
+			assertEquals(cache.getChecksum(FOLDER, "a.txt"), cache.getChecksum(FOLDER, "a.txt"));
+			assertEquals(1, store.checksums.get());
+
+			// files the backend does not have are passed through as missing
+			assertFalse(cache.getFiles(FOLDER, "[\"b.txt\"]").get(0).exists());
+		} finally {
+			readers.shutdown();
+			cache.close();
+		}
+	}
+
+	@Test
+	void copiesAreEvictedBySize() throws Exception {
+		ObjectStore store = new ObjectStore(0);
+		for (int file = 0; file < 8; file++) {
+			store.objects.put("bucket/folder/" + file + ".bin", new byte[100]);
+		}
+		CachingFileserverService cache = open(store, 300, false);
+		try {
+			for (int file = 0; file < 8; file++) {
+				assertTrue(cache.getFiles(FOLDER, String.format("[\"%d.bin\"]", file)).get(0).exists());
+			}
+			// evicted copies are deleted on the writer
+			cache.flush();
+			try (Stream<Path> copies = Files.list(root.resolve("cache/files/bucket/folder"))) {
+				assertTrue(copies.count() <= 3);
+			}
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	void copiesDeletedBeforeTheyAreReadAreServedByTheBackend() throws Exception {
+		ObjectStore store = new ObjectStore(0);
+		store.objects.put("bucket/folder/a.txt", "hello".getBytes());
+		CachingFileserverService cache = open(store, 1 << 20, false);
+		try {
+			Resource resource = cache.getFiles(FOLDER, "[\"a.txt\"]").get(0);
+			assertTrue(resource.isFile());
+			Files.delete(resource.getFile().toPath());
+
+			assertFalse(resource.isFile());
+			assertTrue(resource.exists());
+			assertEquals(5, resource.contentLength());
+			assertArrayEquals("hello".getBytes(), resource.getInputStream().readAllBytes());
+			assertEquals(2, store.gets.get());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	void copiesAreKeptAcrossRestarts() throws Exception {
+		ObjectStore store = new ObjectStore(0);
+		store.objects.put("bucket/folder/a.txt", "hello".getBytes());
+		CachingFileserverService cache = open(store, 1 << 20, false);
+		try {
+			cache.getFiles(FOLDER, "[\"a.txt\"]");
+		} finally {
+			cache.close();
+		}
+		Path folder = root.resolve("cache/files/bucket/folder");
+		Files.write(folder.resolve(".b.txt.1.part"), "partial".getBytes());
+
+		cache = open(store, 1 << 20, false);
+		try {
+			Resource resource = cache.getFiles(FOLDER, "[\"a.txt\"]").get(0);
+			assertArrayEquals("hello".getBytes(), resource.getInputStream().readAllBytes());
+			assertEquals(1, store.gets.get());
+			assertFalse(Files.exists(folder.resolve(".b.txt.1.part")));
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	void writeThroughUploadsAreCachedAndDeletesInvalidate() throws Exception {
+		ObjectStore store = new ObjectStore(0);
+		CachingFileserverService cache = open(store, 1 << 20, false);
+		try {
+			assertEquals(5, cache.uploadFile(FOLDER, "a.txt", new ByteArrayInputStream("hello".getBytes()), true));
+			assertArrayEquals("hello".getBytes(), store.objects.get("bucket/folder/a.txt"));
+			Resource resource = cache.getFiles(FOLDER, "[\"a.txt\"]").get(0);
+			assertArrayEquals("hello".getBytes(), resource.getInputStream().readAllBytes());
+			assertEquals(0, store.gets.get());
+
+			assertTrue(cache.deleteFiles(FOLDER, "[\"a.txt\"]"));
+			assertNull(store.objects.get("bucket/folder/a.txt"));
+			assertFalse(resource.exists());
+			assertFalse(cache.getFiles(FOLDER, "[\"a.txt\"]").get(0).exists());
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	void writeBackUploadsAreSentInTheBackgroundAndAfterARestart() throws Exception {
+		ObjectStore store = new ObjectStore(0);
+		store.failing = true;
+		CachingFileserverService cache = open(store, 1 << 20, true);
+		try {
+			cache.uploadFile(FOLDER, "a.txt", new ByteArrayInputStream("hello".getBytes()), true);
+			cache.flush();
+			// not sent yet, but served from the pending copy
+			assertNull(store.objects.get("bucket/folder/a.txt"));
+			Resource resource = cache.getFiles(FOLDER, "[\"a.txt\"]").get(0);
+			assertArrayEquals("hello".getBytes(), resource.getInputStream().readAllBytes());
+			assertEquals(0, store.gets.get());
+		} finally {
+			cache.close();
+		}
+
+		store.failing = false;
+		cache = open(store, 1 << 20, true);
+		try {
+			cache.flush();
+			assertArrayEquals("hello".getBytes(), store.objects.get("bucket/folder/a.txt"));
+			assertArrayEquals("hello".getBytes(),
+					cache.getFiles(FOLDER, "[\"a.txt\"]").get(0).getInputStream().readAllBytes());
+			assertEquals(0, store.gets.get());
+		} finally {
+			cache.close();
+		}
+	}
+
+	private CachingFileserverService open(FileserverService backend, long maxsize, boolean writeBack)
+			throws IOException {
+		CommonServiceUtils commonService = new CommonServiceUtils();
+		ReflectionTestUtils.setField(commonService, "temppath", root.resolve("temp").toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "metrics", new FileserverMetrics(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		return new CachingFileserverService(backend, commonService, root.resolve("cache"), maxsize, writeBack, 3600,
+				0);
+	}
+
+	// stands in for a remote object store: flat keys, whole objects, and a
+	// round trip on every read
+	private static class ObjectStore implements FileserverService {
+
+		private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+		private final AtomicInteger gets = new AtomicInteger();
+		private final AtomicInteger checksums = new AtomicInteger();
+		private final long latency;
+		private volatile boolean failing;
+
+		private ObjectStore(long latency) {
+			this.latency = latency;
+		}
+
+		@Override
+		public String generateFolderUniqueId(RequiredObject requiredObject, String prefix) {
+			return prefix;
+		}
+
+		@Override
+		public boolean uploadFiles(RequiredObject requiredObject, MultipartFile[] files, boolean replace)
+				throws Exception {
+			for (MultipartFile file : files) {
+				try (InputStream in = file.getInputStream()) {
+					uploadFile(requiredObject, file.getOriginalFilename(), in, replace);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public long uploadFile(RequiredObject requiredObject, String filename, InputStream content, boolean replace)
+				throws IOException {
+			if (failing) {
+				throw new IOException("Object store is not reachable");
+			}
+			byte[] bytes = content.readAllBytes();
+			objects.put(getKey(requiredObject, filename), bytes);
+			return bytes.length;
+		}
+
+		@Override
+		public boolean importFile(RequiredObject requiredObject, String filename, Path source, boolean replace)
+				throws IOException {
+			objects.put(getKey(requiredObject, filename), Files.readAllBytes(source));
+			return true;
+		}
+
+		@Override
+		public File downloadFiles(RequiredObject requiredObject, String filenames) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<Resource> getFiles(RequiredObject requiredObject, String filenames) throws Exception {
+			Thread.sleep(latency);
+			List<Resource> resources = new ArrayList<>();
+			for (JsonElement element : new Gson().fromJson(filenames, JsonArray.class)) {
+				byte[] bytes = objects.get(getKey(requiredObject, element.getAsString()));
+				if (bytes == null) {
+					resources.add(new DescriptiveResource(element.getAsString()));
+				} else {
+					gets.incrementAndGet();
+					resources.add(new ByteArrayResource(bytes));
+				}
+			}
+			return resources;
+		}
+
+		@Override
+		public String getChecksum(RequiredObject requiredObject, String filename) throws Exception {
+			checksums.incrementAndGet();
+			byte[] bytes = objects.get(getKey(requiredObject, filename));
+			if (bytes == null) {
+				return null;
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte value : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+				hex.append(String.format("%02x", value));
+			}
+			return hex.toString();
+		}
+
+		@Override
+		public boolean deleteFiles(RequiredObject requiredObject, String filenames) {
+			boolean result = true;
+			for (JsonElement element : new Gson().fromJson(filenames, JsonArray.class)) {
+				result = objects.remove(getKey(requiredObject, element.getAsString())) != null && result;
+			}
+			return result;
+		}
+
+		@Override
+		public boolean deleteFolder(RequiredObject requiredObject) {
+			String prefix = getKey(requiredObject, "");
+			return objects.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+
+		private String getKey(RequiredObject requiredObject, String filename) {
+			return String.format("%s/%s/%s", requiredObject.getBucket(), requiredObject.getFolderid(), filename);
+		}
+
+	}
+
+}
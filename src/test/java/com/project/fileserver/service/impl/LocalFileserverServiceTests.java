@@ -0,0 +1,233 @@
+package com.project.fileserver.service.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.project.fileserver.executors.ArchivalExecutor;
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.service.AccessTrackerService;
+import com.project.fileserver.service.BlobStoreService;
+import com.project.fileserver.service.ChecksumService;
+import com.project.fileserver.service.ClusterService;
+import com.project.fileserver.service.FileCacheService;
+import com.project.fileserver.service.MetadataIndexService;
+import com.project.fileserver.service.PackStoreService;
+import com.project.fileserver.utils.CommonServiceUtils;
+import com.project.fileserver.utils.FileserverMetrics;
+import com.project.fileserver.utils.FolderLockManager;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+import com.project.fileserver.utils.StoragePathResolver;
+import com.project.fileserver.utils.TimeOrderedIdGenerator;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class LocalFileserverServiceTests {
+
+	private static final String HELLO = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+	@TempDir
+	Path root;
+
+	private StoragePathResolver paths;
+	private CommonServiceUtils commonService;
+	private FolderLockManager folderLocks;
+	private PackStoreService packStore;
+	private MetadataIndexService metadataIndex;
+	private AccessTrackerService accessTracker;
+	private FileCacheService fileCache;
+	private BlobStoreService blobStore;
+	private ChecksumService checksums;
+	private FileserverMetrics metrics;
+	private LocalFileserverService fileserverService;
+
+	@BeforeEach
+	void open() throws Exception {
+		paths = new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), 0);
+		commonService = new CommonServiceUtils();
+		metrics = new FileserverMetrics(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(commonService, "temppath", root.resolve("temp").toString());
+		ReflectionTestUtils.setField(commonService, "buffersize", 65536);
+		ReflectionTestUtils.setField(commonService, "metrics", metrics);
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(0));
+		folderLocks = new FolderLockManager();
+		packStore = new PackStoreService(root.resolve("archives/.packs").toString(), true, 262144, 268435456, 0.5);
+		metadataIndex = new MetadataIndexService(paths, packStore, root.resolve("metadata/index.mv.db").toString(),
+				false);
+		accessTracker = new AccessTrackerService(metadataIndex, packStore, paths, 3600, 100000);
+		fileCache = new FileCacheService(folderLocks, true, 1 << 20, 1 << 16, 1 << 20);
+		blobStore = new BlobStoreService(false, root.resolve("blobs").toString(), 65536);
+		checksums = new ChecksumService(blobStore, true, 1000);
+		fileserverService = new LocalFileserverService(0, 60, 100000, true, paths, commonService, folderLocks,
+				metadataIndex, accessTracker, fileCache, blobStore, checksums, packStore, metrics);
+	}
+
+	@AfterEach
+	void close() throws Exception {
+		fileserverService.close();
+		accessTracker.close();
+		metadataIndex.close();
+		packStore.close();
+	}
+
+	@Test
+	void oldFoldersThatAreStillWrittenToAreNotArchived() throws Exception {
+		RequiredObject written = createFolder("old");
+		RequiredObject idle = createFolder("idle");
+		age(written, 60);
+		age(idle, 60);
+
+		fileserverService.uploadFile(written, "b.txt", new ByteArrayInputStream("world".getBytes()), true);
+		archival().runPass();
+
+		assertTrue(Files.isDirectory(paths.getFolder(written)));
+		assertFalse(Files.exists(paths.getFolder(idle)));
+		assertTrue(packStore.contains(idle));
+	}
+
+	@Test
+	void foldersInUseAreArchivedAtTheEndOfThePass() throws Exception {
+		RequiredObject folder = createFolder("busy");
+		age(folder, 60);
+		// released while the pass is running, as by the end of a download
+		FolderLock download = folderLocks.lease(folder);
+		CompletableFuture.runAsync(download::close, CompletableFuture.delayedExecutor(300, TimeUnit.MILLISECONDS));
+
+		ArchivalExecutor archival = archival();
+		try {
+			archival.runPass();
+		} finally {
+			archival.close();
+		}
+
+		assertFalse(Files.exists(paths.getFolder(folder)));
+		assertTrue(packStore.contains(folder));
+	}
+
+	@Test
+	void everyUploadPathRecordsTheChecksum() throws Exception {
+		RequiredObject folder = createFolder("sums");
+		fileserverService.uploadFiles(folder, new MultipartFile[] {
+				new MockMultipartFile("files", "b.txt", "text/plain", "hello".getBytes()) }, false);
+		Path staged = Files.write(Files.createDirectories(root.resolve("temp")).resolve("c.txt"), "hello".getBytes());
+		fileserverService.importFile(folder, "c.txt", staged, false);
+
+		assertFalse(Files.exists(staged));
+		for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+			assertEquals(HELLO, fileserverService.getChecksum(folder, name));
+		}
+		// a refused import leaves the source where it was
+		Path again = Files.write(root.resolve("temp/c.txt"), "other".getBytes());
+		assertThrows(FileAlreadyExistsException.class, () -> fileserverService.importFile(folder, "c.txt", again,
+				false));
+		assertTrue(Files.exists(again));
+	}
+
+	@Test
+	void packedFoldersKeepTheirChecksums() throws Exception {
+		RequiredObject folder = createFolder("packed");
+		age(folder, 60);
+		archival().runPass();
+		assertTrue(packStore.contains(folder));
+
+		assertEquals(HELLO, fileserverService.getChecksum(folder, "a.txt"));
+		assertNull(fileserverService.getChecksum(folder, "b.txt"));
+	}
+
+	@Test
+	void archivedFoldersAreRehydratedAfterRepeatedReads() throws Exception {
+		fileserverService.close();
+		fileserverService = new LocalFileserverService(2, 60, 100000, true, paths, commonService, folderLocks,
+				metadataIndex, accessTracker, fileCache, blobStore, checksums, packStore, metrics);
+		RequiredObject folder = createFolder("reads");
+		age(folder, 60);
+		archival().runPass();
+		assertFalse(Files.exists(paths.getFolder(folder)));
+
+		assertTrue(fileserverService.getFiles(folder, "[\"a.txt\"]").get(0).exists());
+		assertFalse(Files.exists(paths.getFolder(folder)));
+		fileserverService.getFiles(folder, "[\"a.txt\"]");
+		awaitRehydration(folder);
+
+		// the count starts over once the folder has been rehydrated
+		age(folder, 60);
+		archival().runPass();
+		fileserverService.getFiles(folder, "[\"a.txt\"]");
+		Thread.sleep(100);
+		assertFalse(Files.exists(paths.getFolder(folder)));
+		fileserverService.getFiles(folder, "[\"a.txt\"]");
+		awaitRehydration(folder);
+	}
+
+	@Test
+	void leasedFoldersAreRehydratedOnceTheirDownloadsEnd() throws Exception {
+		fileserverService.close();
+		fileserverService = new LocalFileserverService(2, 60, 100000, true, paths, commonService, folderLocks,
+				metadataIndex, accessTracker, fileCache, blobStore, checksums, packStore, metrics);
+		RequiredObject folder = createFolder("leased");
+		age(folder, 60);
+		archival().runPass();
+
+		// read while downloads of the folder go on, as the controller does
+		try (FolderLock lease = folderLocks.lease(folder)) {
+			fileserverService.getFiles(folder, "[\"a.txt\"]");
+			fileserverService.getFiles(folder, "[\"a.txt\"]");
+			Thread.sleep(200);
+			assertFalse(Files.exists(paths.getFolder(folder)));
+		}
+		awaitRehydration(folder);
+	}
+
+	private void awaitRehydration(RequiredObject requiredObject) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!Files.exists(paths.getFolder(requiredObject).resolve("a.txt")) || packStore.contains(requiredObject)) {
+			assertTrue(System.currentTimeMillis() < deadline, "folder was not rehydrated");
+			Thread.sleep(10);
+		}
+	}
+
+	private RequiredObject createFolder(String prefix) throws Exception {
+		RequiredObject requiredObject = new RequiredObject("bucket", null);
+		requiredObject.setFolderid(fileserverService.generateFolderUniqueId(requiredObject, prefix));
+		fileserverService.uploadFile(requiredObject, "a.txt", new ByteArrayInputStream("hello".getBytes()), true);
+		return requiredObject;
+	}
+
+	// as if the folder had been left alone for that many days
+	private void age(RequiredObject requiredObject, int days) throws Exception {
+		accessTracker.flush();
+		Files.setLastModifiedTime(paths.getFolder(requiredObject),
+				FileTime.from(Instant.now().minus(days, ChronoUnit.DAYS)));
+		metadataIndex.refresh(requiredObject);
+	}
+
+	private ArchivalExecutor archival() {
+		ClusterService cluster = new ClusterService(new StaticListableBeanFactory(Map.of("local", fileserverService)),
+				"local", commonService, paths, metadataIndex, false, "", new String[0], "", 128, "redirect", 10);
+		return new ArchivalExecutor(paths, commonService, folderLocks, metadataIndex, accessTracker, fileCache,
+				blobStore, checksums, packStore, cluster, metrics, 30, 1, 0, 6, new String[0], true);
+	}
+
+}
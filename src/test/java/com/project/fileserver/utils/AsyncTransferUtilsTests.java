@@ -0,0 +1,337 @@
+package com.project.fileserver.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.project.fileserver.model.RequiredObject;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// the mock response of spring-test does not take write listeners, the
+// client here is one that reads as long as it is not stalled
+class AsyncTransferUtilsTests {
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	@TempDir
+	Path root;
+
+	private final AsyncTransferUtils asyncTransfer = new AsyncTransferUtils(true, 2, 4, 1);
+
+	@AfterEach
+	void close() {
+		asyncTransfer.close();
+	}
+
+	@Test
+	void rangesAreSentFromTheirPosition() throws Exception {
+		Path file = Files.write(root.resolve("a.txt"), "hello world".getBytes());
+		Exchange exchange = new Exchange(false);
+
+		asyncTransfer.write(new FileSystemResource(file), 6, 5, exchange.request, exchange.response, () -> {
+		});
+		exchange.await();
+
+		assertEquals("world", exchange.client.getContent());
+		assertEquals(HttpStatus.OK.value(), exchange.response.getStatus());
+	}
+
+	@Test
+	void completedTransfersReleaseTheirResources() throws Exception {
+		TrackedResource resource = new TrackedResource("hello world");
+		AtomicBoolean lease = new AtomicBoolean();
+		AtomicBoolean sent = new AtomicBoolean();
+		Exchange exchange = new Exchange(false, () -> lease.set(true));
+
+		asyncTransfer.write(resource, 0, 11, exchange.request, exchange.response, () -> sent.set(true));
+		exchange.await();
+
+		assertEquals("hello world", exchange.client.getContent());
+		assertTrue(resource.closed.get());
+		assertTrue(lease.get());
+		assertTrue(sent.get());
+	}
+
+	@Test
+	void failedTransfersAnswerWithAnError() throws Exception {
+		// shorter than announced, as a file truncated under the transfer
+		TrackedResource resource = new TrackedResource("hello");
+		AtomicBoolean sent = new AtomicBoolean();
+		Exchange exchange = new Exchange(false);
+
+		asyncTransfer.write(resource, 0, 11, exchange.request, exchange.response, () -> sent.set(true));
+		exchange.await();
+
+		assertEquals(HttpStatus.INTERNAL_SERVER_ERROR.value(), exchange.response.getStatus());
+		assertTrue(resource.closed.get());
+		assertFalse(sent.get());
+	}
+
+	@Test
+	void timedOutTransfersReleaseTheirResources() throws Exception {
+		TrackedResource resource = new TrackedResource("hello world");
+		Exchange exchange = new Exchange(true);
+
+		asyncTransfer.write(resource, 0, 11, exchange.request, exchange.response, () -> {
+		});
+		assertTrue(exchange.client.written.await(5, TimeUnit.SECONDS));
+		MockAsyncContext context = (MockAsyncContext) exchange.request.getAsyncContext();
+		for (AsyncListener listener : new ArrayList<>(context.getListeners())) {
+			listener.onTimeout(new AsyncEvent(context));
+		}
+		exchange.await();
+
+		assertTrue(resource.closed.get());
+		assertFalse(exchange.request.isAsyncStarted());
+		// the client catching up later starts nothing again
+		exchange.client.listener.onWritePossible();
+		Thread.sleep(100);
+		assertEquals("hell", exchange.client.getContent());
+	}
+
+	@Test
+	void idleTransfersTimeOut() throws Exception {
+		ReflectionTestUtils.setField(asyncTransfer, "timeout", 200L);
+		TrackedResource resource = new TrackedResource("hello world");
+		Exchange exchange = new Exchange(true);
+
+		asyncTransfer.write(resource, 0, 11, exchange.request, exchange.response, () -> {
+		});
+		exchange.await();
+
+		assertTrue(resource.closed.get());
+		assertEquals("hell", exchange.client.getContent());
+	}
+
+	@Test
+	void slowTransfersDoNotTimeOutWhileTheyMove() throws Exception {
+		ReflectionTestUtils.setField(asyncTransfer, "timeout", 300L);
+		TrackedResource resource = new TrackedResource("hello world");
+		AtomicBoolean sent = new AtomicBoolean();
+		Exchange exchange = new Exchange(true);
+
+		asyncTransfer.write(resource, 0, 11, exchange.request, exchange.response, () -> sent.set(true));
+		// a chunk every 150ms, the whole transfer takes longer than the timeout
+		for (int chunk = 0; chunk < 3; chunk++) {
+			Thread.sleep(150);
+			exchange.client.step();
+		}
+		exchange.await();
+
+		assertEquals("hello world", exchange.client.getContent());
+		assertTrue(sent.get());
+	}
+
+	@Test
+	void downloadBytesAreRecordedOnceSent() throws Exception {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		FileTransferUtils fileTransfer = new FileTransferUtils();
+		ReflectionTestUtils.setField(fileTransfer, "maxranges", 16);
+		ReflectionTestUtils.setField(fileTransfer, "metrics", new FileserverMetrics(registry));
+		ReflectionTestUtils.setField(fileTransfer, "asyncTransfer", asyncTransfer);
+		DistributionSummary downloaded = registry.get("fileserver.download.bytes").summary();
+		Exchange exchange = new Exchange(true);
+
+		fileTransfer.transfer(new TrackedResource("hello world"), exchange.request, exchange.response);
+		assertTrue(exchange.client.written.await(5, TimeUnit.SECONDS));
+		// the handler has returned, the client has only read part of it
+		assertEquals(0, downloaded.count());
+
+		exchange.client.resume();
+		exchange.await();
+		assertEquals("hello world", exchange.client.getContent());
+		assertEquals(1, downloaded.count());
+		assertEquals(11, downloaded.totalAmount());
+	}
+
+	@Test
+	void filesOfLeasedFoldersAreNotLeftToSendfile() throws Exception {
+		Path file = Files.write(root.resolve("a.txt"), "hello world".getBytes());
+		FileTransferUtils fileTransfer = new FileTransferUtils();
+		ReflectionTestUtils.setField(fileTransfer, "sendfile", true);
+		ReflectionTestUtils.setField(fileTransfer, "metrics", new FileserverMetrics(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(fileTransfer, "asyncTransfer", asyncTransfer);
+		Exchange exchange = new Exchange(false);
+		exchange.request.setAttribute(SENDFILE_SUPPORT, true);
+
+		fileTransfer.transfer(new FileSystemResource(file), null, new RequiredObject("bucket", "one"),
+				exchange.request, exchange.response);
+		exchange.await();
+		// sent while the lease is held, and released once it is
+		assertEquals("hello world", exchange.client.getContent());
+		assertNull(exchange.request.getAttribute(SENDFILE_FILENAME));
+
+		Exchange other = new Exchange(false);
+		other.request.setAttribute(SENDFILE_SUPPORT, true);
+		fileTransfer.transfer(new FileSystemResource(file), other.request, other.response);
+		assertEquals(file.toFile().getCanonicalPath(), other.request.getAttribute(SENDFILE_FILENAME));
+	}
+
+	private class Exchange {
+
+		private final ClientOutputStream client;
+		private final MockHttpServletResponse response;
+		private final MockHttpServletRequest request;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		// the resources are closed once the transfer is done, the way downloads
+		// release their folder leases
+		private Exchange(boolean stalls, AutoCloseable... resources) {
+			client = new ClientOutputStream(stalls);
+			response = new MockHttpServletResponse() {
+				@Override
+				public ServletOutputStream getOutputStream() {
+					return client;
+				}
+			};
+			request = new MockHttpServletRequest() {
+				@Override
+				public AsyncContext startAsync() {
+					AsyncContext context = startAsync(this, response);
+					// before the transfer starts, it may be done before write
+					// returns; the latch last, once the others have been closed
+					for (AutoCloseable resource : resources) {
+						asyncTransfer.closeWhenDone(resource, this);
+					}
+					asyncTransfer.closeWhenDone(done::countDown, this);
+					return context;
+				}
+			};
+			request.setAsyncSupported(true);
+		}
+
+		private void await() throws Exception {
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+
+	}
+
+	// stops accepting data after the first write when it stalls, until it is
+	// resumed
+	private static class ClientOutputStream extends ServletOutputStream {
+
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private final CountDownLatch written = new CountDownLatch(1);
+		private volatile boolean stalls;
+		private volatile boolean ready = true;
+		private volatile WriteListener listener;
+
+		private ClientOutputStream(boolean stalls) {
+			this.stalls = stalls;
+		}
+
+		@Override
+		public boolean isReady() {
+			return ready;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener listener) {
+			this.listener = listener;
+			try {
+				listener.onWritePossible();
+			} catch (IOException e) {
+				listener.onError(e);
+			}
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			content.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			content.write(b, off, len);
+			ready = !stalls;
+			written.countDown();
+		}
+
+		// takes one more write and stalls again
+		private void step() throws IOException {
+			ready = true;
+			listener.onWritePossible();
+		}
+
+		private void resume() throws IOException {
+			stalls = false;
+			ready = true;
+			listener.onWritePossible();
+		}
+
+		private synchronized String getContent() {
+			return new String(content.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+	}
+
+	private static class TrackedResource extends AbstractResource {
+
+		private final byte[] content;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private TrackedResource(String content) {
+			this.content = content.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(content) {
+				@Override
+				public void close() {
+					closed.set(true);
+				}
+			};
+		}
+
+		@Override
+		public String getFilename() {
+			return "tracked.txt";
+		}
+
+		@Override
+		public long lastModified() {
+			return 0;
+		}
+
+		@Override
+		public String getDescription() {
+			return "tracked resource";
+		}
+
+	}
+
+}
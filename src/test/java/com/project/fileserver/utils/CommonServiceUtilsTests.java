@@ -0,0 +1,127 @@
+package com.project.fileserver.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CommonServiceUtilsTests {
+
+	private final CommonServiceUtils commonService = new CommonServiceUtils();
+
+	CommonServiceUtilsTests() {
+		ReflectionTestUtils.setField(commonService, "idGenerator", new TimeOrderedIdGenerator(7));
+	}
+
+	@Test
+	void namesAreSanitizedLikeTheRegexes() {
+		String[] names = { "", "bucket", "Customer-Uploads_2021", "\u00c9T\u00c9 \u00e9t\u00e9",
+				"\u212Aelvin \u0130stanbul", "a1b2c3",
+				"0123456789012345678901234567890123456789012345678901234567890123456789" };
+		for (String name : names) {
+			String lower = name.toLowerCase().replaceAll("[^a-z]", "");
+			assertEquals(lower.substring(0, Math.min(50, lower.length())), commonService.refactorBucketName(name));
+			assertEquals(name.replaceAll("[^a-z]", ""), commonService.retainLowerCaseOnly(name));
+			assertEquals(name.replaceAll("[^a-z0-9]", ""), commonService.retainAplhaNumericOnly(name));
+		}
+		String clean = "bucket";
+		assertSame(clean, commonService.refactorBucketName(clean));
+		assertEquals(50, commonService.refactorBucketName(clean.repeat(10)).length());
+	}
+
+	@Test
+	void orderedIdsSortByCreationTime() {
+		TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(7);
+		List<String> ids = new ArrayList<>();
+		for (long time = 1622548800000L; time < 1622548800000L + 100000; time += 997) {
+			ids.add(generator.generate("invoice", time));
+		}
+		List<String> sorted = new ArrayList<>(ids);
+		Collections.sort(sorted);
+		assertEquals(ids, sorted);
+
+		String id = commonService.generateUniqueId("Invoice-");
+		assertEquals("invoice".length() + TimeOrderedIdGenerator.LENGTH, id.length());
+		assertTrue(id.startsWith("invoice"));
+		assertEquals(id, commonService.retainAplhaNumericOnly(id));
+		// the node follows the timestamp
+		assertEquals("07", id.substring(17, 19));
+		assertNotEquals(id, commonService.generateUniqueId("invoice"));
+	}
+
+	@Test
+	void incompressibleFilesAreCopiedInOnePass(@TempDir Path root) throws Exception {
+		ReflectionTestUtils.setField(commonService, "buffersize", 4096);
+		ReflectionTestUtils.setField(commonService, "metrics", new FileserverMetrics(new SimpleMeterRegistry()));
+		Path folder = Files.createDirectories(root.resolve("folder"));
+		byte[] photo = new byte[100000];
+		new Random(7).nextBytes(photo);
+		Files.write(folder.resolve("photo.jpg"), photo);
+		Files.write(folder.resolve("notes.txt"), "hello ".repeat(10000).getBytes());
+		// every byte read passes the throttle
+		AtomicLong read = new AtomicLong();
+		IoThrottle throttle = new IoThrottle(0) {
+			@Override
+			public void acquire(long bytes) {
+				read.addAndGet(bytes);
+			}
+		};
+
+		Path target = root.resolve("folder.zip");
+		commonService.zipDirectory(folder, target, Deflater.BEST_SPEED, Set.of("jpg"), throttle);
+
+		assertEquals(photo.length + 60000, read.get());
+		try (ZipFile zipFile = new ZipFile(target.toFile())) {
+			ZipEntry entry = zipFile.getEntry("folder/photo.jpg");
+			assertTrue(entry.getCompressedSize() < photo.length + 100);
+			assertArrayEquals(photo, zipFile.getInputStream(entry).readAllBytes());
+			assertTrue(zipFile.getEntry("folder/notes.txt").getCompressedSize() < 1000);
+		}
+	}
+
+	@Test
+	void directoriesAreDeletedWhileTheyAreWalked(@TempDir Path root) throws Exception {
+		Path tree = root.resolve("tree");
+		Path folder = tree;
+		for (int depth = 0; depth < 20; depth++) {
+			folder = Files.createDirectories(folder.resolve("level" + depth));
+			for (int file = 0; file < 5; file++) {
+				Files.write(folder.resolve("file" + file), new byte[] { (byte) file });
+			}
+		}
+		Path outside = Files.write(root.resolve("outside"), new byte[] { 1 });
+		Files.createSymbolicLink(folder.resolve("link"), outside);
+
+		assertEquals(20 * 6 + 1 + 1, commonService.deleteDirectory(tree));
+		assertFalse(Files.exists(tree));
+		assertTrue(Files.exists(outside));
+	}
+
+	@Test
+	void randomIdsKeepTheUuidFormat() {
+		String id = new RandomIdGenerator().generate("upload");
+		assertEquals("upload".length() + RandomIdGenerator.LENGTH, id.length());
+		assertTrue(id.matches("upload[0-9a-f]{32}"));
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.project.fileserver.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.project.fileserver.model.RequiredObject;
+import com.project.fileserver.utils.FolderLockManager.FolderLock;
+
+class FolderLockManagerTests {
+
+	private final FolderLockManager folderLocks = new FolderLockManager();
+
+	@Test
+	void exclusiveLockExcludesOnlyTheSameFolder() {
+		RequiredObject folder = new RequiredObject("bucket", "one");
+		try (FolderLock shared = folderLocks.lock(folder, false)) {
+			assertNull(folderLocks.tryLock(folder, true));
+			try (FolderLock other = folderLocks.tryLock(new RequiredObject("bucket", "two"), true)) {
+				assertNotNull(other);
+			}
+		}
+		try (FolderLock exclusive = folderLocks.tryLock(folder, true)) {
+			assertNotNull(exclusive);
+		}
+	}
+
+	@Test
+	void leasesHoldOffExclusiveLocksUntilReleasedElsewhere() throws Exception {
+		RequiredObject folder = new RequiredObject("bucket", "one");
+		FolderLock lease = folderLocks.lease(folder);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			assertNull(folderLocks.tryLock(folder, true));
+			// readers are not held off by a lease
+			try (FolderLock shared = folderLocks.tryLock(folder, false)) {
+				assertNotNull(shared);
+			}
+			Future<?> exclusive = executor.submit(() -> folderLocks.lock(folder, true).close());
+			Thread.sleep(200);
+			assertFalse(exclusive.isDone());
+			// released by another thread, as the completion of an async download
+			executor.submit(lease::close).get(5, TimeUnit.SECONDS);
+			exclusive.get(5, TimeUnit.SECONDS);
+			lease.close();
+			try (FolderLock again = folderLocks.tryLock(folder, true)) {
+				assertNotNull(again);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void waitingExclusiveLocksHoldOffNewLeases() throws Exception {
+		RequiredObject folder = new RequiredObject("bucket", "one");
+		FolderLock lease = folderLocks.lease(folder);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			CountDownLatch locked = new CountDownLatch(1);
+			CountDownLatch unlock = new CountDownLatch(1);
+			Future<?> exclusive = executor.submit(() -> {
+				try (FolderLock lock = folderLocks.lock(folder, true)) {
+					locked.countDown();
+					unlock.await();
+				}
+				return null;
+			});
+			Thread.sleep(200);
+			Future<?> next = executor.submit(() -> folderLocks.lease(folder).close());
+			Thread.sleep(200);
+			assertFalse(next.isDone());
+			lease.close();
+			assertTrue(locked.await(5, TimeUnit.SECONDS));
+			assertFalse(next.isDone());
+			unlock.countDown();
+			exclusive.get(5, TimeUnit.SECONDS);
+			next.get(5, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void waitsForLeasesEndWhenInterrupted() throws Exception {
+		RequiredObject folder = new RequiredObject("bucket", "one");
+		FolderLock lease = folderLocks.lease(folder);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AtomicReference<Exception> failure = new AtomicReference<>();
+			executor.execute(() -> {
+				try {
+					folderLocks.lock(folder, true).close();
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			});
+			Thread.sleep(200);
+			executor.shutdownNow();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+			assertTrue(failure.get() instanceof CancellationException);
+			// the folder is still leased, and free for leases again
+			assertNull(folderLocks.tryLock(folder, true));
+			folderLocks.lease(folder).close();
+		} finally {
+			lease.close();
+		}
+	}
+
+	@Test
+	void concurrentCallersShareOneFlight() throws Exception {
+		RequiredObject folder = new RequiredObject("bucket", "one");
+		AtomicInteger executions = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			results.add(executor.submit(() -> folderLocks.singleFlight(folder, () -> {
+				started.countDown();
+				release.await();
+				return executions.incrementAndGet();
+			})));
+			started.await();
+			for (int index = 0; index < 7; index++) {
+				results.add(executor.submit(() -> folderLocks.singleFlight(folder, executions::incrementAndGet)));
+			}
+			Thread.sleep(500);
+			release.countDown();
+			for (Future<Integer> result : results) {
+				assertEquals(1, result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, executions.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
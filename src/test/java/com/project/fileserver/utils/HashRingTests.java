@@ -0,0 +1,54 @@
+package com.project.fileserver.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class HashRingTests {
+
+	private static final int KEYS = 30000;
+
+	@Test
+	void keysAreSpreadEvenlyOverTheNodes() {
+		HashRing ring = new HashRing(List.of("a", "b", "c"), 128);
+		Map<String, Integer> counts = new HashMap<>();
+		for (int key = 0; key < KEYS; key++) {
+			counts.merge(ring.getOwner("bucket" + key), 1, Integer::sum);
+		}
+		assertEquals(3, counts.size());
+		for (int count : counts.values()) {
+			assertTrue(Math.abs(count - KEYS / 3) < KEYS / 3 / 5, counts.toString());
+		}
+		assertNull(new HashRing(List.of(), 128).getOwner("bucket"));
+	}
+
+	@Test
+	void onlyKeysOfTheChangedNodeMove() {
+		HashRing three = new HashRing(List.of("a", "b", "c"), 128);
+		HashRing four = new HashRing(List.of("a", "b", "c", "d"), 128);
+		int moved = 0;
+		for (int key = 0; key < KEYS; key++) {
+			String before = three.getOwner("bucket" + key);
+			String after = four.getOwner("bucket" + key);
+			if (!before.equals(after)) {
+				// a joining node only takes keys over, the others keep theirs
+				assertEquals("d", after);
+				moved++;
+			}
+		}
+		assertTrue(Math.abs(moved - KEYS / 4) < KEYS / 4 / 5, String.valueOf(moved));
+
+		// the order nodes are listed in does not matter
+		HashRing shuffled = new HashRing(List.of("c", "a", "b"), 128);
+		for (int key = 0; key < 1000; key++) {
+			assertEquals(three.getOwner("bucket" + key), shuffled.getOwner("bucket" + key));
+		}
+	}
+
+}
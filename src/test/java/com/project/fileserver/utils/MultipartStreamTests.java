@@ -0,0 +1,96 @@
+package com.project.fileserver.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class MultipartStreamTests {
+
+	private static final String BOUNDARY = "----boundary42";
+
+	@Test
+	void readsFilePartsAcrossSmallBuffers() throws IOException {
+		byte[] first = new byte[100_000];
+		new Random(7).nextBytes(first);
+		byte[] second = ("line\r\n--" + BOUNDARY.substring(0, 6) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		byte[] body = body(part("note", null, "hello".getBytes(StandardCharsets.US_ASCII)),
+				part("files", "C:\\temp\\a.bin", first), part("files", "b.txt", second));
+
+		MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body), BOUNDARY, 64, -1);
+		MultipartStream.Part part = multipart.nextPart();
+		assertNull(part.getFilename());
+		part = multipart.nextPart();
+		assertEquals("a.bin", part.getFilename());
+		assertArrayEquals(first, read(part.getInputStream()));
+		part = multipart.nextPart();
+		assertEquals("b.txt", part.getFilename());
+		assertArrayEquals(second, read(part.getInputStream()));
+		assertNull(multipart.nextPart());
+	}
+
+	@Test
+	void rejectsOversizedParts() throws IOException {
+		byte[] body = body(part("files", "a.bin", new byte[2048]));
+		MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body), BOUNDARY, 256, 1024);
+		MultipartStream.Part part = multipart.nextPart();
+		assertThrows(MultipartStream.SizeLimitExceededException.class, () -> read(part.getInputStream()));
+	}
+
+	@Test
+	void failsOnTruncatedBody() throws IOException {
+		byte[] body = body(part("files", "a.bin", new byte[512]));
+		byte[] truncated = new byte[body.length - 40];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+		MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(truncated), BOUNDARY, 128, -1);
+		MultipartStream.Part part = multipart.nextPart();
+		assertThrows(IOException.class, () -> read(part.getInputStream()));
+	}
+
+	@Test
+	void extractsBoundaryFromContentType() {
+		assertEquals("abc", MultipartStream.getBoundary("multipart/form-data; boundary=abc"));
+		assertEquals("a b", MultipartStream.getBoundary("multipart/form-data; charset=utf-8; Boundary=\"a b\""));
+		assertNull(MultipartStream.getBoundary("multipart/form-data"));
+	}
+
+	private byte[] part(String name, String filename, byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String disposition = "Content-Disposition: form-data; name=\"" + name + "\""
+				+ (filename == null ? "" : "; filename=\"" + filename + "\"");
+		out.write(("--" + BOUNDARY + "\r\n" + disposition + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(content);
+		out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		return out.toByteArray();
+	}
+
+	private byte[] body(byte[]... parts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("preamble\r\n".getBytes(StandardCharsets.US_ASCII));
+		for (byte[] part : parts) {
+			out.write(part);
+		}
+		out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		return out.toByteArray();
+	}
+
+	private byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int length;
+		while ((length = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, length);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.project.fileserver.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.project.fileserver.executors.StorageMigrationExecutor;
+import com.project.fileserver.model.RequiredObject;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class StoragePathResolverTests {
+
+	@TempDir
+	Path root;
+
+	private final String folderid = "default0123456789abcdef0123456789abcdef";
+
+	@Test
+	void shardsAreDerivedFromTheFolderid() {
+		StoragePathResolver flat = resolver(0);
+		StoragePathResolver sharded = resolver(2);
+
+		assertEquals(root.resolve("files/bucket").resolve(folderid), flat.getFolder("bucket", folderid));
+		Path folder = sharded.getFolder("bucket", folderid);
+		Path archive = sharded.getArchive("bucket", folderid);
+		assertEquals(root.resolve("files/bucket"), folder.getParent().getParent().getParent());
+		assertTrue(sharded.isShard(folder.getParent().getFileName().toString()));
+		assertEquals(root.relativize(folder.getParent()).subpath(1, 4),
+				root.relativize(archive.getParent()).subpath(1, 4));
+		assertEquals(folderid + ".zip", archive.getFileName().toString());
+		assertEquals(archive.resolveSibling(folderid + ".links"), sharded.getLinks("bucket", folderid));
+	}
+
+	@Test
+	void flatFoldersAreFoundUntilTheyAreMigrated() throws Exception {
+		StoragePathResolver paths = resolver(2);
+		Path flat = Files.createDirectories(root.resolve("files/bucket").resolve(folderid));
+		Files.write(flat.resolve("file.txt"), new byte[] { 1 });
+		Path archive = Files.createDirectories(root.resolve("archives/bucket")).resolve("other.zip");
+		Files.write(archive, new byte[] { 2 });
+		Files.createDirectories(root.resolve("archives/bucket/other.links"));
+		assertEquals(flat, paths.getFolder("bucket", folderid));
+
+		StorageMigrationExecutor migration = new StorageMigrationExecutor(paths, new FolderLockManager(),
+				new FileserverMetrics(new SimpleMeterRegistry()), false);
+		migration.runPass();
+
+		assertFalse(Files.exists(flat));
+		Path moved = paths.getFolder(new RequiredObject("bucket", folderid));
+		assertEquals(paths.getShardedPath(root.resolve("files/bucket"), folderid), moved);
+		assertTrue(Files.isRegularFile(moved.resolve("file.txt")));
+		assertFalse(Files.exists(archive));
+		assertTrue(Files.isRegularFile(paths.getArchive("bucket", "other")));
+		assertTrue(Files.isDirectory(paths.getLinks("bucket", "other")));
+
+		Set<String> entries = new HashSet<>();
+		paths.forEachEntry(root.resolve("archives/bucket"), entry -> entries.add(entry.getFileName().toString()));
+		assertEquals(Set.of("other.zip", "other.links"), entries);
+	}
+
+	private StoragePathResolver resolver(int levels) {
+		return new StoragePathResolver(root.resolve("files").toString(), root.resolve("archives").toString(), levels);
+	}
+
+}